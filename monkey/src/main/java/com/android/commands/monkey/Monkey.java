@@ -38,15 +38,19 @@ import android.os.SystemClock;
 import android.view.IWindowManager;
 import android.view.Surface;
 
+import com.android.commands.monkey.events.InjectionLatency;
 import com.android.commands.monkey.events.MonkeyEvent;
 import com.android.commands.monkey.events.MonkeyEventSource;
 import com.android.commands.monkey.events.base.MonkeyFlipEvent;
+import com.android.commands.monkey.events.base.MonkeyGestureEvent;
 import com.android.commands.monkey.events.base.MonkeyKeyEvent;
 import com.android.commands.monkey.events.base.MonkeyMotionEvent;
 import com.android.commands.monkey.events.base.MonkeyRotationEvent;
 import com.android.commands.monkey.events.base.MonkeyThrottleEvent;
 import com.android.commands.monkey.framework.APIAdapter;
 import com.android.commands.monkey.framework.AndroidDevice;
+import com.android.commands.monkey.framework.PackageCache;
+import com.android.commands.monkey.framework.TopActivityTracker;
 import com.android.commands.monkey.events.base.mutation.MutationAirplaneEvent;
 import com.android.commands.monkey.events.base.mutation.MutationWifiEvent;
 import com.android.commands.monkey.source.MonkeySourceApeNative;
@@ -133,6 +137,8 @@ public class Monkey {
      * Dropped-event statistics
      **/
     private long mDroppedKeyEvents = 0;
+    private final InjectionLatency mInjectionLatency = new InjectionLatency();
+    private long mInjectedEvents = 0;
     private long mDroppedPointerEvents = 0;
     private long mDroppedTrackballEvents = 0;
     private long mDroppedFlipEvents = 0;
@@ -845,6 +851,7 @@ public class Monkey {
             new MutationWifiEvent().resetStatusAndExecute(mWm,mAm,mVerbose);
             ((MonkeySourceApeNative) this.mEventSource).tearDown();
         }
+        mInjectionLatency.dump(mOutputDirectory);
 
         // sync handle error information
         synchronized (this) {
@@ -1298,6 +1305,11 @@ public class Monkey {
             return false;
         }
         PackageManager packageManager = systemContext.getPackageManager();
+        String launcherQuery = mMainIntentAction != null && mMainIntentData != null
+                ? mMainIntentAction + " " + mMainIntentData : "categories " + mMainCategories;
+        if (loadCachedMainApps(packageManager, launcherQuery)) {
+            return true;
+        }
         if (mMainIntentAction != null && mMainIntentData != null) {
             Intent intent = new Intent(mMainIntentAction);
             Uri uri = Uri.parse(mMainIntentData);
@@ -1363,10 +1375,69 @@ public class Monkey {
             Logger.warningPrintln("** No activities found to run, monkey aborted.");
             return false;
         }
+        cacheMainApps(packageManager, launcherQuery);
+        return true;
+    }
+
+    /**
+     * The launcher activities are cached per package, so only when the packages are given by -p
+     * and none are excluded, otherwise any installed package may add to them.
+     */
+    private static boolean canCacheMainApps() {
+        MonkeyUtils.PackageFilter filter = MonkeyUtils.getPackageFilter();
+        return filter.hasValidPackages() && !filter.hasInvalidPackages();
+    }
 
+    /**
+     * @return true if the launcher activities of all the packages are in the package cache
+     */
+    private boolean loadCachedMainApps(PackageManager packageManager, String launcherQuery) {
+        if (!canCacheMainApps()) {
+            return false;
+        }
+        List<ComponentName> mainApps = new ArrayList<>();
+        for (String packageName : MonkeyUtils.getPackageFilter().getmValidPackages()) {
+            PackageCache cache = PackageCache.get(packageManager, packageName);
+            String[] activities = cache == null ? null : cache.getLauncherActivities(launcherQuery);
+            if (activities == null) {
+                return false;
+            }
+            for (String activity : activities) {
+                mainApps.add(new ComponentName(packageName, activity));
+            }
+        }
+        if (mainApps.isEmpty()) {
+            return false;
+        }
+        if (mVerbose >= 2) {
+            for (ComponentName app : mainApps) {
+                Logger.println("//   + Using cached main activity " + app.getClassName() + " (from package "
+                        + app.getPackageName() + ")");
+            }
+        }
+        mMainApps.addAll(mainApps);
         return true;
     }
 
+    private void cacheMainApps(PackageManager packageManager, String launcherQuery) {
+        if (!canCacheMainApps()) {
+            return;
+        }
+        for (String packageName : MonkeyUtils.getPackageFilter().getmValidPackages()) {
+            PackageCache cache = PackageCache.get(packageManager, packageName);
+            if (cache == null) {
+                continue;
+            }
+            List<String> activities = new ArrayList<>();
+            for (ComponentName app : mMainApps) {
+                if (app.getPackageName().equals(packageName)) {
+                    activities.add(app.getClassName());
+                }
+            }
+            cache.setLauncherActivities(launcherQuery, activities.toArray(new String[0]));
+        }
+    }
+
     /**
      * Run mCount cycles and see if we hit any crashers.
      *
@@ -1515,12 +1586,18 @@ public class Monkey {
             // generate next event and inject it
             MonkeyEvent ev = mEventSource.getNextEvent();
             if (ev != null) {
+                long injectStart = System.nanoTime();
                 int injectCode = ev.injectEvent(mWm, mAm, mVerbose);
+                mInjectionLatency.record(ev, System.nanoTime() - injectStart);
+                if (Config.injectionLatencyDumpInterval > 0
+                        && ++mInjectedEvents % Config.injectionLatencyDumpInterval == 0) {
+                    dumpInjectionLatency();
+                }
                 if (injectCode == MonkeyEvent.INJECT_FAIL) {
                     Logger.println("    // Injection Failed " + ev);
                     if (ev instanceof MonkeyKeyEvent) {
                         mDroppedKeyEvents++;
-                    } else if (ev instanceof MonkeyMotionEvent) {
+                    } else if (ev instanceof MonkeyMotionEvent || ev instanceof MonkeyGestureEvent) {
                         mDroppedPointerEvents++;
                     } else if (ev instanceof MonkeyFlipEvent) {
                         mDroppedFlipEvents++;
@@ -1583,6 +1660,18 @@ public class Monkey {
         }
     }
 
+    /**
+     * Write the injection latency so far, on an image writer of the source if it has them.
+     */
+    private void dumpInjectionLatency() {
+        Runnable snapshot = mInjectionLatency.snapshot(mOutputDirectory);
+        if (mEventSource instanceof MonkeySourceApeNative) {
+            ((MonkeySourceApeNative) mEventSource).postOutput(snapshot);
+        } else {
+            snapshot.run();
+        }
+    }
+
     /**
      * Watch for appearance of new tombstone files, which indicate native
      * crashes.
@@ -1891,6 +1980,14 @@ public class Monkey {
     private class ActivityController extends IActivityController.Stub {
 
         public boolean activityStarting(Intent intent, String pkg) {
+            boolean allow = isStartAllowed(intent, pkg);
+            if (allow) {
+                TopActivityTracker.onActivityStarting(intent.getComponent());
+            }
+            return allow;
+        }
+
+        private boolean isStartAllowed(Intent intent, String pkg) {
 
             if (allowStartActivityEscapeAny && ("".equals(allowStartActivityEscapePackageName) || pkg.equals(allowStartActivityEscapePackageName))) {
                 return true;
@@ -1970,6 +2067,7 @@ public class Monkey {
         }
 
         public boolean activityResuming(String pkg) {
+            TopActivityTracker.onActivityResuming(pkg);
             StrictMode.ThreadPolicy savedPolicy = StrictMode.allowThreadDiskWrites();
             Logger.println("    // activityResuming(" + pkg + ")");
             boolean allow = MonkeyUtils.getPackageFilter().checkEnteringPackage(pkg) || (DEBUG_ALLOW_ANY_STARTS != 0);
@@ -1985,6 +2083,8 @@ public class Monkey {
 
         public boolean appCrashed(String processName, int pid, String shortMsg, String longMsg, long timeMillis,
                                   String stackTrace) {
+            // the activities of the crashed process go away without a resume callback
+            TopActivityTracker.invalidate();
             if (!AndroidDevice.isAppCrash(processName, mMainApps)) {
                 Logger.println("// crash processName: " + processName + ", is not testing app");
                 return false;
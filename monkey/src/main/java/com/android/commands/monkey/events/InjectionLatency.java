@@ -0,0 +1,142 @@
+/*
+ * This code is licensed under the Fastbot license. You may obtain a copy of this license in the LICENSE.txt file in the root directory of this source tree.
+ */
+
+package com.android.commands.monkey.events;
+
+import com.android.commands.monkey.events.base.MonkeyActivityEvent;
+import com.android.commands.monkey.events.base.MonkeyCommandEvent;
+import com.android.commands.monkey.events.base.MonkeyDataActivityEvent;
+import com.android.commands.monkey.events.base.MonkeyGestureEvent;
+import com.android.commands.monkey.events.base.MonkeyHistoryActivityEvent;
+import com.android.commands.monkey.events.base.MonkeyIMEEvent;
+import com.android.commands.monkey.events.base.MonkeyKeyEvent;
+import com.android.commands.monkey.events.base.MonkeySchemaEvent;
+import com.android.commands.monkey.events.base.MonkeyTextEvent;
+import com.android.commands.monkey.events.base.MonkeyThrottleEvent;
+import com.android.commands.monkey.events.base.MonkeyTouchEvent;
+import com.android.commands.monkey.utils.LatencyHistogram;
+import com.android.commands.monkey.utils.Logger;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * How long injectEvent takes per kind of event, to tell a slow input path of the device from
+ * overhead of the monkey. For a throttle the time it overran its throttle is recorded instead.
+ * Written as json to max.injection.latency.log in the output directory.
+ */
+public class InjectionLatency {
+
+    private static final String[] KINDS = {
+            "touch", "gesture", "key", "ime", "activity", "schema", "shell", "throttle_overshoot", "other"};
+    private static final int TOUCH = 0;
+    private static final int GESTURE = 1;
+    private static final int KEY = 2;
+    private static final int IME = 3;
+    private static final int ACTIVITY = 4;
+    private static final int SCHEMA = 5;
+    private static final int SHELL = 6;
+    private static final int THROTTLE_OVERSHOOT = 7;
+    private static final int OTHER = 8;
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[KINDS.length];
+    private int mSnapshots = 0;
+    /**
+     * the newest snapshot written, guarded by this, snapshots may be written on other threads
+     */
+    private int mWritten = 0;
+
+    public InjectionLatency() {
+        for (int i = 0; i < mHistograms.length; i++) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * @param nanos time injectEvent of event took
+     */
+    public void record(MonkeyEvent event, long nanos) {
+        long micros = nanos / 1000;
+        int kind = kindOf(event);
+        if (kind == THROTTLE_OVERSHOOT) {
+            micros -= ((MonkeyThrottleEvent) event).getThrottle() * 1000;
+        }
+        mHistograms[kind].record(micros);
+    }
+
+    private static int kindOf(MonkeyEvent event) {
+        if (event instanceof MonkeyTouchEvent) {
+            return TOUCH;
+        } else if (event instanceof MonkeyGestureEvent) {
+            // swipes and drags take as long as they are planned to, not mixed with taps
+            return GESTURE;
+        } else if (event instanceof MonkeyKeyEvent) {
+            return KEY;
+        } else if (event instanceof MonkeyIMEEvent || event instanceof MonkeyTextEvent) {
+            return IME;
+        } else if (event instanceof MonkeyActivityEvent || event instanceof MonkeyDataActivityEvent
+                || event instanceof MonkeyHistoryActivityEvent) {
+            return ACTIVITY;
+        } else if (event instanceof MonkeySchemaEvent) {
+            return SCHEMA;
+        } else if (event instanceof MonkeyCommandEvent) {
+            return SHELL;
+        } else if (event instanceof MonkeyThrottleEvent) {
+            return THROTTLE_OVERSHOOT;
+        }
+        return OTHER;
+    }
+
+    public void dump(File outputDirectory) {
+        snapshot(outputDirectory).run();
+    }
+
+    /**
+     * @return writes the histograms as they are now when run, unless a newer snapshot was
+     * written before, so it may run on any thread
+     */
+    public Runnable snapshot(final File outputDirectory) {
+        final int snapshot = ++mSnapshots;
+        final String latency = format();
+        return new Runnable() {
+            @Override
+            public void run() {
+                write(outputDirectory, snapshot, latency);
+            }
+        };
+    }
+
+    private String format() {
+        JSONObject json = new JSONObject();
+        try {
+            for (int i = 0; i < KINDS.length; i++) {
+                if (mHistograms[i].getCount() > 0) {
+                    json.put(KINDS[i], mHistograms[i].toJSONObject());
+                }
+            }
+        } catch (JSONException e) {
+            Logger.warningPrintln("cannot format injection latency: " + e);
+        }
+        return json.toString();
+    }
+
+    private synchronized void write(File outputDirectory, int snapshot, String latency) {
+        if (snapshot <= mWritten) {
+            return;
+        }
+        mWritten = snapshot;
+        File file = new File(outputDirectory, "max.injection.latency.log");
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file, false))) {
+            writer.write(latency);
+            writer.newLine();
+        } catch (IOException e) {
+            Logger.warningPrintln("cannot write injection latency to " + file + ": " + e);
+        }
+    }
+}
@@ -47,6 +47,10 @@ public abstract class MonkeyEvent {
     public static final int INJECT_ERROR_SECURITY_EXCEPTION = -2;
     protected int eventType;
     int eventId = -1;
+    /**
+     * obtained from a MonkeyEventPool and given back to it once injected
+     */
+    boolean pooled;
 
     public MonkeyEvent(int type) {
         eventType = type;
@@ -0,0 +1,118 @@
+/*
+ * This code is licensed under the Fastbot license. You may obtain a copy of this license in the LICENSE.txt file in the root directory of this source tree.
+ */
+
+package com.android.commands.monkey.events;
+
+import com.android.commands.monkey.events.base.MonkeyGestureEvent;
+import com.android.commands.monkey.events.base.MonkeyKeyEvent;
+import com.android.commands.monkey.events.base.MonkeyThrottleEvent;
+import com.android.commands.monkey.events.base.MonkeyTouchEvent;
+import com.android.commands.monkey.events.base.MonkeyWaitEvent;
+
+import java.util.ArrayDeque;
+
+/**
+ * Touch, gesture, key, wait and throttle events that are used again once injected, so generating the
+ * events of an action allocates nothing after the first actions. Events not obtained here are
+ * ignored by recycle.
+ *
+ * Not thread safe, the events are generated and injected on the monkey thread.
+ */
+public class MonkeyEventPool {
+
+    /**
+     * at most this many free events are kept per type, a long burst does not stay allocated
+     */
+    private static final int MAX_POOLED = 64;
+
+    private final ArrayDeque<MonkeyTouchEvent> mTouchEvents = new ArrayDeque<>();
+    private final ArrayDeque<MonkeyGestureEvent> mGestureEvents = new ArrayDeque<>();
+    private final ArrayDeque<MonkeyKeyEvent> mKeyEvents = new ArrayDeque<>();
+    private final ArrayDeque<MonkeyWaitEvent> mWaitEvents = new ArrayDeque<>();
+    private final ArrayDeque<MonkeyThrottleEvent> mThrottleEvents = new ArrayDeque<>();
+
+    public MonkeyTouchEvent obtainTouchEvent(int action) {
+        MonkeyTouchEvent event = mTouchEvents.pollLast();
+        if (event == null) {
+            event = markPooled(new MonkeyTouchEvent(action));
+        } else {
+            event.reset(action);
+        }
+        return event;
+    }
+
+    public MonkeyGestureEvent obtainGestureEvent(float startX, float startY, float endX, float endY,
+                                                 long duration, int steps, MonkeyGestureEvent.Profile profile) {
+        MonkeyGestureEvent event = mGestureEvents.pollLast();
+        if (event == null) {
+            event = markPooled(new MonkeyGestureEvent(startX, startY, endX, endY, duration, steps, profile));
+        } else {
+            event.set(startX, startY, endX, endY, duration, steps, profile);
+        }
+        return event;
+    }
+
+    public MonkeyKeyEvent obtainKeyEvent(int action, int keyCode) {
+        MonkeyKeyEvent event = mKeyEvents.pollLast();
+        if (event == null) {
+            event = markPooled(new MonkeyKeyEvent(action, keyCode));
+        } else {
+            event.reset(action, keyCode);
+        }
+        return event;
+    }
+
+    public MonkeyWaitEvent obtainWaitEvent(long waitTime) {
+        MonkeyWaitEvent event = mWaitEvents.pollLast();
+        if (event == null) {
+            event = markPooled(new MonkeyWaitEvent(waitTime));
+        } else {
+            event.setWaitTime(waitTime);
+        }
+        return event;
+    }
+
+    public MonkeyThrottleEvent obtainThrottleEvent(long throttle) {
+        MonkeyThrottleEvent event = mThrottleEvents.pollLast();
+        if (event == null) {
+            event = markPooled(new MonkeyThrottleEvent(throttle));
+        } else {
+            event.setThrottle(throttle);
+        }
+        return event;
+    }
+
+    /**
+     * Give an event back once it is injected or dropped, it must not be used afterwards.
+     */
+    public void recycle(MonkeyEvent event) {
+        if (event == null || !event.pooled) {
+            return;
+        }
+        event.eventId = -1;
+        if (event instanceof MonkeyTouchEvent) {
+            release(mTouchEvents, (MonkeyTouchEvent) event);
+        } else if (event instanceof MonkeyGestureEvent) {
+            release(mGestureEvents, (MonkeyGestureEvent) event);
+        } else if (event instanceof MonkeyKeyEvent) {
+            release(mKeyEvents, (MonkeyKeyEvent) event);
+        } else if (event instanceof MonkeyWaitEvent) {
+            release(mWaitEvents, (MonkeyWaitEvent) event);
+        } else if (event instanceof MonkeyThrottleEvent) {
+            release(mThrottleEvents, (MonkeyThrottleEvent) event);
+        }
+    }
+
+    private static <T extends MonkeyEvent> T markPooled(T event) {
+        MonkeyEvent pooled = event;
+        pooled.pooled = true;
+        return event;
+    }
+
+    private static <T extends MonkeyEvent> void release(ArrayDeque<T> pool, T event) {
+        if (pool.size() < MAX_POOLED) {
+            pool.addLast(event);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * This code is licensed under the Fastbot license. You may obtain a copy of this license in the LICENSE.txt file in the root directory of this source tree.
+ */
+
+package com.android.commands.monkey.events;
+
+import com.android.commands.monkey.events.base.MonkeyThrottleEvent;
+
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * The queue of {@link MonkeyEventQueue} in a ring of slots instead of a linked list, with the
+ * throttle events after throttlable events taken from a {@link MonkeyEventPool}. The ring doubles
+ * only when a burst of events does not fit, so queueing does not allocate.
+ */
+public class MonkeyEventRingQueue {
+
+    private final MonkeyEventPool mPool;
+    private final Random mRandom;
+    private final long mThrottle;
+    private final boolean mRandomizeThrottle;
+
+    private MonkeyEvent[] mEvents;
+    private int mHead;
+    private int mSize;
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public MonkeyEventRingQueue(MonkeyEventPool pool, Random random, long throttle, boolean randomizeThrottle,
+                                int capacity) {
+        mPool = pool;
+        mRandom = random;
+        mThrottle = throttle;
+        mRandomizeThrottle = randomizeThrottle;
+        int slots = 1;
+        while (slots < capacity) {
+            slots <<= 1;
+        }
+        mEvents = new MonkeyEvent[slots];
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public void addLast(MonkeyEvent e) {
+        add(e);
+        if (e.isThrottlable()) {
+            long throttle = mThrottle;
+            if (mRandomizeThrottle && (mThrottle > 0)) {
+                throttle = mRandom.nextLong();
+                if (throttle < 0) {
+                    throttle = -throttle;
+                }
+                throttle %= mThrottle;
+                ++throttle;
+            }
+            MonkeyThrottleEvent throttleEvent = mPool.obtainThrottleEvent(throttle);
+            add(throttleEvent);
+        }
+    }
+
+    public MonkeyEvent removeFirst() {
+        if (mSize == 0) {
+            throw new NoSuchElementException();
+        }
+        MonkeyEvent e = mEvents[mHead];
+        mEvents[mHead] = null;
+        mHead = (mHead + 1) & (mEvents.length - 1);
+        mSize--;
+        return e;
+    }
+
+    /**
+     * Drop the queued events, giving the pooled ones back to the pool.
+     */
+    public void clear() {
+        while (mSize > 0) {
+            mPool.recycle(removeFirst());
+        }
+        mHead = 0;
+    }
+
+    private void add(MonkeyEvent e) {
+        if (mSize == mEvents.length) {
+            MonkeyEvent[] events = new MonkeyEvent[mEvents.length << 1];
+            for (int i = 0; i < mSize; i++) {
+                events[i] = mEvents[(mHead + i) & (mEvents.length - 1)];
+            }
+            mEvents = events;
+            mHead = 0;
+        }
+        mEvents[(mHead + mSize) & (mEvents.length - 1)] = e;
+        mSize++;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * This code is licensed under the Fastbot license. You may obtain a copy of this license in the LICENSE.txt file in the root directory of this source tree.
+ */
+
+package com.android.commands.monkey.events.base;
+
+import android.app.IActivityManager;
+import android.hardware.input.InputManager;
+import android.os.SystemClock;
+import android.view.IWindowManager;
+import android.view.InputDevice;
+import android.view.MotionEvent;
+
+import com.android.commands.monkey.events.MonkeyEvent;
+import com.android.commands.monkey.utils.Logger;
+
+import java.util.Locale;
+
+/**
+ * A whole one finger swipe injected as a single event: the down, steps moves and the up are
+ * timed on a timeline of SystemClock.uptimeMillis deadlines fixed at the down, so the swipe
+ * lasts its duration however long an injection takes, and the event times the app computes
+ * the fling velocity from are the same in every run.
+ */
+public class MonkeyGestureEvent extends MonkeyEvent {
+
+    /**
+     * how the finger covers the way over the duration
+     */
+    public enum Profile {
+        /**
+         * constant speed
+         */
+        LINEAR,
+        /**
+         * slowing down to rest before the up, lands where it ends without a fling
+         */
+        EASE_OUT,
+        /**
+         * speeding up until the up, lifts at full speed and flings
+         */
+        FLING;
+
+        /**
+         * @return the profile named by max.swipeProfile, LINEAR if there is none
+         */
+        public static Profile fromName(String name) {
+            for (Profile profile : values()) {
+                if (profile.name().equalsIgnoreCase(name)) {
+                    return profile;
+                }
+            }
+            Logger.warningPrintln("Unknown swipe profile " + name + ", swipe linearly");
+            return LINEAR;
+        }
+
+        /**
+         * @param t fraction of the duration
+         * @return fraction of the way
+         */
+        float progress(float t) {
+            switch (this) {
+                case EASE_OUT:
+                    return 1 - (1 - t) * (1 - t) * (1 - t);
+                case FLING:
+                    return t * t;
+                default:
+                    return t;
+            }
+        }
+    }
+
+    private float mStartX;
+    private float mStartY;
+    private float mEndX;
+    private float mEndY;
+    private long mDuration;
+    private int mSteps;
+    private Profile mProfile;
+
+    private final int[] mPointerIds = {0};
+    private final MotionEvent.PointerCoords[] mPointerCoords = {new MotionEvent.PointerCoords()};
+
+    public MonkeyGestureEvent(float startX, float startY, float endX, float endY, long duration, int steps,
+                              Profile profile) {
+        super(MonkeyEvent.EVENT_TYPE_TOUCH);
+        set(startX, startY, endX, endY, duration, steps, profile);
+    }
+
+    /**
+     * The y of both points is kept off the status bar and the navigation bar, as for a scroll
+     * by {@link MonkeyMotionEvent}.
+     */
+    public MonkeyGestureEvent set(float startX, float startY, float endX, float endY, long duration, int steps,
+                                  Profile profile) {
+        mStartX = startX;
+        mStartY = MonkeyMotionEvent.clampY(startY, 1);
+        mEndX = endX;
+        mEndY = MonkeyMotionEvent.clampY(endY, 1);
+        mDuration = Math.max(duration, 0);
+        mSteps = Math.max(steps, 1);
+        mProfile = profile;
+        return this;
+    }
+
+    @Override
+    public int injectEvent(IWindowManager iwm, IActivityManager iam, int verbose) {
+        if (verbose > 0) {
+            Logger.println(String.format(Locale.ENGLISH, ":Sending Gesture (%s): (%.1f,%.1f) -> (%.1f,%.1f) in %d ms",
+                    mProfile, mStartX, mStartY, mEndX, mEndY, mDuration));
+        }
+        long downTime = SystemClock.uptimeMillis();
+        if (!inject(MotionEvent.ACTION_DOWN, downTime, downTime, mStartX, mStartY)) {
+            return MonkeyEvent.INJECT_FAIL;
+        }
+        float x = mStartX;
+        float y = mStartY;
+        long eventTime = downTime;
+        boolean injected = true;
+        for (int step = 1; step <= mSteps && injected; step++) {
+            eventTime = downTime + mDuration * step / mSteps;
+            long delay = eventTime - SystemClock.uptimeMillis();
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Logger.warningPrintln("Monkey interrupted in gesture.");
+                    injected = false;
+                    break;
+                }
+            }
+            float progress = mProfile.progress(step / (float) mSteps);
+            x = mStartX + (mEndX - mStartX) * progress;
+            y = mStartY + (mEndY - mStartY) * progress;
+            injected = inject(MotionEvent.ACTION_MOVE, downTime, eventTime, x, y);
+        }
+        // lift the finger where it is even if a move failed, no pointer is left down
+        if (!inject(MotionEvent.ACTION_UP, downTime, eventTime, x, y) || !injected) {
+            return MonkeyEvent.INJECT_FAIL;
+        }
+        return MonkeyEvent.INJECT_SUCCESS;
+    }
+
+    private boolean inject(int action, long downTime, long eventTime, float x, float y) {
+        MotionEvent.PointerCoords coords = mPointerCoords[0];
+        coords.clear();
+        coords.x = x;
+        coords.y = y;
+        MotionEvent me = MotionEvent.obtain(downTime, eventTime, action, 1, mPointerIds, mPointerCoords, 0,
+                1, 1, 0, 0, InputDevice.SOURCE_TOUCHSCREEN, 0);
+        try {
+            return InputManager.getInstance().injectInputEvent(me,
+                    InputManager.INJECT_INPUT_EVENT_MODE_WAIT_FOR_RESULT);
+        } catch (SecurityException e) {
+            return false;
+        } finally {
+            me.recycle();
+        }
+    }
+}
@@ -65,6 +65,21 @@ public class MonkeyKeyEvent extends MonkeyEvent {
         mKeyEvent = e;
     }
 
+    /**
+     * Make a recycled event the same as new MonkeyKeyEvent(action, keyCode).
+     */
+    public void reset(int action, int keyCode) {
+        mDownTime = -1;
+        mEventTime = -1;
+        mAction = action;
+        mKeyCode = keyCode;
+        mRepeatCount = 0;
+        mMetaState = 0;
+        mDeviceId = KeyCharacterMap.VIRTUAL_KEYBOARD;
+        mScanCode = 0;
+        mKeyEvent = null;
+    }
+
     public int getKeyCode() {
         return mKeyEvent != null ? mKeyEvent.getKeyCode() : mKeyCode;
     }
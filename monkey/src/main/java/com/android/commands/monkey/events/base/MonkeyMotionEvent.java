@@ -21,7 +21,6 @@ import android.hardware.display.DisplayManagerGlobal;
 import android.hardware.input.InputManager;
 import android.os.SystemClock;
 import android.util.DisplayMetrics;
-import android.util.SparseArray;
 import android.view.Display;
 import android.view.IWindowManager;
 import android.view.MotionEvent;
@@ -67,10 +66,19 @@ public abstract class MonkeyMotionEvent extends MonkeyEvent {
         bottomBarHeight = display.getHeight() - statusBarHeight;
     }
 
+    /**
+     * reused by {@link #log}, events are injected by the monkey thread only
+     */
+    private static final StringBuilder sLogMessage = new StringBuilder();
+
     private long mDownTime;
     private long mEventTime;
     private int mAction;
-    private SparseArray<MotionEvent.PointerCoords> mPointers;
+    // sorted by id, the first mPointerCount are used and passed to MotionEvent.obtain as they are;
+    // the coords beyond are kept from an earlier use of a recycled event
+    private int[] mPointerIds;
+    private MotionEvent.PointerCoords[] mPointerCoords;
+    private int mPointerCount;
     private int mMetaState;
     private float mXPrecision;
     private float mYPrecision;
@@ -89,7 +97,8 @@ public abstract class MonkeyMotionEvent extends MonkeyEvent {
         mDownTime = -1;
         mEventTime = -1;
         mAction = action;
-        mPointers = new SparseArray<MotionEvent.PointerCoords>();
+        mPointerIds = new int[1];
+        mPointerCoords = new MotionEvent.PointerCoords[1];
         mXPrecision = 1;
         mYPrecision = 1;
     }
@@ -98,19 +107,77 @@ public abstract class MonkeyMotionEvent extends MonkeyEvent {
         return addPointer(id, x, y, 0, 0);
     }
 
+    /**
+     * Make a recycled event the same as a new one of action, keeping its pointer coords for the
+     * next addPointer.
+     */
+    public void reset(int action) {
+        mDownTime = -1;
+        mEventTime = -1;
+        mAction = action;
+        mPointerCount = 0;
+        mMetaState = 0;
+        mXPrecision = 1;
+        mYPrecision = 1;
+        mDeviceId = 0;
+        mFlags = 0;
+        mEdgeFlags = 0;
+        type = 0;
+        mIntermediateNote = false;
+    }
+
+    /**
+     * Set the pointer of id, replacing it if it was added before.
+     */
     public MonkeyMotionEvent addPointer(int id, float x, float y, float pressure, float size) {
-        MotionEvent.PointerCoords c = new MotionEvent.PointerCoords();
+        int index = 0;
+        while (index < mPointerCount && mPointerIds[index] < id) {
+            index++;
+        }
+        if (index == mPointerCount || mPointerIds[index] != id) {
+            insertPointer(index, id);
+        }
+        MotionEvent.PointerCoords c = mPointerCoords[index];
+        c.clear();
         c.x = x;
+        c.y = clampY(y, type);
+        c.pressure = pressure;
+        c.size = size;
+        return this;
+    }
+
+    private void insertPointer(int index, int id) {
+        if (mPointerCount == mPointerIds.length) {
+            int capacity = mPointerIds.length * 2;
+            int[] pointerIds = new int[capacity];
+            MotionEvent.PointerCoords[] pointerCoords = new MotionEvent.PointerCoords[capacity];
+            System.arraycopy(mPointerIds, 0, pointerIds, 0, mPointerCount);
+            System.arraycopy(mPointerCoords, 0, pointerCoords, 0, mPointerCount);
+            mPointerIds = pointerIds;
+            mPointerCoords = pointerCoords;
+        }
+        // the coords object past the used ones moves to the new slot
+        MotionEvent.PointerCoords c = mPointerCoords[mPointerCount];
+        if (c == null) {
+            c = new MotionEvent.PointerCoords();
+        }
+        System.arraycopy(mPointerIds, index, mPointerIds, index + 1, mPointerCount - index);
+        System.arraycopy(mPointerCoords, index, mPointerCoords, index + 1, mPointerCount - index);
+        mPointerIds[index] = id;
+        mPointerCoords[index] = c;
+        mPointerCount++;
+    }
+
+    /**
+     * @return y moved below the status bar, and above the navigation bar for a scroll (type 1)
+     */
+    static float clampY(float y, int type) {
         if (y <= statusBarHeight) {
             y = statusBarHeight + 1;
         } else if (y >= bottomBarHeight) {
             if (type == 1) y = bottomBarHeight - 1;
         }
-        c.y = y;
-        c.pressure = pressure;
-        c.size = size;
-        mPointers.append(id, c);
-        return this;
+        return y;
     }
 
     public boolean getIntermediateNote() {
@@ -171,19 +238,12 @@ public abstract class MonkeyMotionEvent extends MonkeyEvent {
     }
 
     /**
-     * @return instance of a motion event
+     * @return instance of a motion event from the pool of MotionEvent, recycle it once injected
      */
     /* private */ MotionEvent getEvent() {
-        int pointerCount = mPointers.size();
-        int[] pointerIds = new int[pointerCount];
-        MotionEvent.PointerCoords[] pointerCoords = new MotionEvent.PointerCoords[pointerCount];
-        for (int i = 0; i < pointerCount; i++) {
-            pointerIds[i] = mPointers.keyAt(i);
-            pointerCoords[i] = mPointers.valueAt(i);
-        }
-
+        // obtain reads only the first mPointerCount ids and coords
         MotionEvent ev = MotionEvent.obtain(mDownTime, mEventTime < 0 ? SystemClock.uptimeMillis() : mEventTime,
-                mAction, pointerCount, pointerIds, pointerCoords, mMetaState, mXPrecision, mYPrecision, mDeviceId,
+                mAction, mPointerCount, mPointerIds, mPointerCoords, mMetaState, mXPrecision, mYPrecision, mDeviceId,
                 mEdgeFlags, mSource, mFlags);
         return ev;
     }
@@ -195,42 +255,10 @@ public abstract class MonkeyMotionEvent extends MonkeyEvent {
 
     @Override
     public int injectEvent(IWindowManager iwm, IActivityManager iam, int verbose) {
-        MotionEvent me = getEvent();
         if ((verbose > 0 && !mIntermediateNote) || verbose > 1) {
-            StringBuilder msg = new StringBuilder(":Sending ");
-            msg.append(getTypeLabel()).append(" (");
-            switch (me.getActionMasked()) {
-                case MotionEvent.ACTION_DOWN:
-                    msg.append("ACTION_DOWN");
-                    break;
-                case MotionEvent.ACTION_MOVE:
-                    msg.append("ACTION_MOVE");
-                    break;
-                case MotionEvent.ACTION_UP:
-                    msg.append("ACTION_UP");
-                    break;
-                case MotionEvent.ACTION_CANCEL:
-                    msg.append("ACTION_CANCEL");
-                    break;
-                case MotionEvent.ACTION_POINTER_DOWN:
-                    msg.append("ACTION_POINTER_DOWN ").append(me.getPointerId(me.getActionIndex()));
-                    break;
-                case MotionEvent.ACTION_POINTER_UP:
-                    msg.append("ACTION_POINTER_UP ").append(me.getPointerId(me.getActionIndex()));
-                    break;
-                default:
-                    msg.append(me.getAction());
-                    break;
-            }
-            msg.append("):");
-
-            int pointerCount = me.getPointerCount();
-            for (int i = 0; i < pointerCount; i++) {
-                msg.append(" ").append(me.getPointerId(i));
-                msg.append(":(").append(me.getX(i)).append(",").append(me.getY(i)).append(")");
-            }
-            Logger.println(msg.toString());
+            log();
         }
+        MotionEvent me = getEvent();
         try {
             if (!InputManager.getInstance().injectInputEvent(me,
                     InputManager.INJECT_INPUT_EVENT_MODE_WAIT_FOR_RESULT)) {
@@ -244,5 +272,50 @@ public abstract class MonkeyMotionEvent extends MonkeyEvent {
         return MonkeyEvent.INJECT_SUCCESS;
     }
 
+    /**
+     * The message is only built when it is printed, from the fields rather than the MotionEvent.
+     */
+    private void log() {
+        StringBuilder msg = sLogMessage;
+        msg.setLength(0);
+        msg.append(":Sending ").append(getTypeLabel()).append(" (");
+        int actionIndex = (mAction & MotionEvent.ACTION_POINTER_INDEX_MASK)
+                >> MotionEvent.ACTION_POINTER_INDEX_SHIFT;
+        switch (mAction & MotionEvent.ACTION_MASK) {
+            case MotionEvent.ACTION_DOWN:
+                msg.append("ACTION_DOWN");
+                break;
+            case MotionEvent.ACTION_MOVE:
+                msg.append("ACTION_MOVE");
+                break;
+            case MotionEvent.ACTION_UP:
+                msg.append("ACTION_UP");
+                break;
+            case MotionEvent.ACTION_CANCEL:
+                msg.append("ACTION_CANCEL");
+                break;
+            case MotionEvent.ACTION_POINTER_DOWN:
+                msg.append("ACTION_POINTER_DOWN ").append(pointerIdAt(actionIndex));
+                break;
+            case MotionEvent.ACTION_POINTER_UP:
+                msg.append("ACTION_POINTER_UP ").append(pointerIdAt(actionIndex));
+                break;
+            default:
+                msg.append(mAction);
+                break;
+        }
+        msg.append("):");
+
+        for (int i = 0; i < mPointerCount; i++) {
+            msg.append(" ").append(mPointerIds[i]);
+            msg.append(":(").append(mPointerCoords[i].x).append(",").append(mPointerCoords[i].y).append(")");
+        }
+        Logger.println(msg.toString());
+    }
+
+    private int pointerIdAt(int index) {
+        return index < mPointerCount ? mPointerIds[index] : -1;
+    }
+
     protected abstract String getTypeLabel();
 }
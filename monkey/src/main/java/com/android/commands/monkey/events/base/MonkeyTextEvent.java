@@ -0,0 +1,50 @@
+/*
+ * This code is licensed under the Fastbot license. You may obtain a copy of this license in the LICENSE.txt file in the root directory of this source tree.
+ */
+
+package com.android.commands.monkey.events.base;
+
+import android.app.IActivityManager;
+import android.view.IWindowManager;
+import android.view.KeyEvent;
+
+import com.android.commands.monkey.events.MonkeyEvent;
+import com.android.commands.monkey.framework.AndroidDevice;
+import com.android.commands.monkey.framework.TextInputChannel;
+import com.android.commands.monkey.utils.Logger;
+
+/**
+ * Text typed into the focused editor by the text input channel of {@link AndroidDevice}, all of
+ * it in one event. Unlike {@link MonkeyIMEEvent} it does not wait for the soft keyboard.
+ */
+public class MonkeyTextEvent extends MonkeyEvent {
+
+    private final String mText;
+    private final boolean mCommit;
+
+    /**
+     * @param commit commit the text by the ADB keyboard if it is available, typing it as keys
+     *               followed by ENTER otherwise; if false the text is always typed as keys
+     */
+    public MonkeyTextEvent(String text, boolean commit) {
+        super(EVENT_TYPE_IME);
+        mText = text;
+        mCommit = commit;
+    }
+
+    @Override
+    public int injectEvent(IWindowManager iwm, IActivityManager iam, int verbose) {
+        if (verbose > 0) {
+            Logger.println(":Sending Text (" + mText + ")" + (mCommit ? " by commit" : " by keys"));
+        }
+        TextInputChannel channel = AndroidDevice.getTextInputChannel();
+        if (mCommit && channel.commitText(mText)) {
+            return MonkeyEvent.INJECT_SUCCESS;
+        }
+        boolean typed = channel.typeText(mText);
+        if (mCommit) {
+            typed &= channel.pressKey(KeyEvent.KEYCODE_ENTER);
+        }
+        return typed ? MonkeyEvent.INJECT_SUCCESS : MonkeyEvent.INJECT_FAIL;
+    }
+}
@@ -33,6 +33,14 @@ public class MonkeyThrottleEvent extends MonkeyEvent {
         mThrottle = throttle;
     }
 
+    public long getThrottle() {
+        return mThrottle;
+    }
+
+    public void setThrottle(long throttle) {
+        mThrottle = throttle;
+    }
+
     @Override
     public int injectEvent(IWindowManager iwm, IActivityManager iam, int verbose) {
 
@@ -33,6 +33,10 @@ public class MonkeyWaitEvent extends MonkeyEvent {
         mWaitTime = waitTime;
     }
 
+    public void setWaitTime(long waitTime) {
+        mWaitTime = waitTime;
+    }
+
     @Override
     public int injectEvent(IWindowManager iwm, IActivityManager iam, int verbose) {
         if (verbose > 1) {
@@ -5,7 +5,10 @@
 package com.android.commands.monkey.fastbot.client;
 
 import android.graphics.Point;
+import android.graphics.Rect;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -17,8 +20,36 @@ import java.util.List;
  * Communication interface
  */
 public class Operate extends GsonIface {
+    /**
+     * Binary layout written by DeviceOperateWrapper::writeTo in native, in native byte order
+     */
+    private static final int OFFSET_ACT = 0;
+    private static final int OFFSET_POS = 4;
+    private static final int OFFSET_FLAGS = 12;
+    private static final int OFFSET_THROTTLE = 16;
+    private static final int OFFSET_WAIT_TIME = 20;
+    private static final int OFFSET_SID = 24;
+    private static final int OFFSET_AID = 28;
+    private static final int FIXED_SIZE = 32;
+
+    private static final int FLAG_ALLOW_FUZZING = 1;
+    private static final int FLAG_CLEAR = 1 << 1;
+    private static final int FLAG_ADB_INPUT = 1 << 2;
+    private static final int FLAG_RAW_INPUT = 1 << 3;
+    private static final int FLAG_EDITABLE = 1 << 4;
+    private static final int FLAG_NEW_SID = 1 << 5;
+    private static final int FLAG_NEW_AID = 1 << 6;
+
+    private static final ActionType[] ACTION_TYPES = ActionType.values();
+
     public ActionType act;
     public List<Short> pos;
+    // pos of an operate decoded from the binary layout
+    public Rect bounds;
+    // precondition of a planned operate: a widget with this key (see MirrorTree#widgetKey) is on screen
+    public long widgetKey;
+    // operates native planned to follow this one on the same page, run while their preconditions hold
+    public transient List<Operate> plan;
     // Text information to be inputed
     public String text;
     // Do you need to clear the original text before input text?
@@ -43,6 +74,107 @@ public class Operate extends GsonIface {
         return gson.fromJson(jsonStr, Operate.class);
     }
 
+    /**
+     * Decode an operate from the binary layout, without reflection or boxing.
+     *
+     * @param buffer the layout at position 0, in native byte order
+     * @param length bytes written by native
+     * @param strings interned sids and aids by id, the ones sent for the first time are added
+     * @return the operate with its plan, null if the layout is broken
+     */
+    public static Operate fromBuffer(ByteBuffer buffer, int length, List<String> strings) {
+        int[] offset = new int[]{0};
+        Operate operate = decode(buffer, offset, length, strings);
+        if (operate == null || offset[0] + 4 > length) {
+            return operate;
+        }
+        int planned = buffer.getInt(offset[0]);
+        offset[0] += 4;
+        for (int i = 0; i < planned && offset[0] + 8 <= length; i++) {
+            long widgetKey = buffer.getLong(offset[0]);
+            offset[0] += 8;
+            Operate plannedOperate = decode(buffer, offset, length, strings);
+            if (plannedOperate == null) {
+                break;
+            }
+            plannedOperate.widgetKey = widgetKey;
+            if (operate.plan == null) {
+                operate.plan = new ArrayList<>(planned);
+            }
+            operate.plan.add(plannedOperate);
+        }
+        return operate;
+    }
+
+    /**
+     * @param offset start of the operate, moved past its end
+     */
+    private static Operate decode(ByteBuffer buffer, int[] offset, int length, List<String> strings) {
+        int start = offset[0];
+        if (length - start < FIXED_SIZE + 4) {
+            return null;
+        }
+        int act = buffer.getInt(start + OFFSET_ACT);
+        if (act < 0 || act >= ACTION_TYPES.length) {
+            return null;
+        }
+        Operate operate = new Operate();
+        operate.act = ACTION_TYPES[act];
+        operate.bounds = new Rect(buffer.getShort(start + OFFSET_POS), buffer.getShort(start + OFFSET_POS + 2),
+                buffer.getShort(start + OFFSET_POS + 4), buffer.getShort(start + OFFSET_POS + 6));
+        int flags = buffer.getInt(start + OFFSET_FLAGS);
+        operate.allowFuzzing = (flags & FLAG_ALLOW_FUZZING) != 0;
+        operate.clear = (flags & FLAG_CLEAR) != 0;
+        operate.adbinput = (flags & FLAG_ADB_INPUT) != 0;
+        operate.rawinput = (flags & FLAG_RAW_INPUT) != 0;
+        operate.editable = (flags & FLAG_EDITABLE) != 0;
+        operate.throttle = buffer.getInt(start + OFFSET_THROTTLE);
+        operate.waitTime = buffer.getInt(start + OFFSET_WAIT_TIME);
+        int sid = buffer.getInt(start + OFFSET_SID);
+        int aid = buffer.getInt(start + OFFSET_AID);
+        offset[0] = start + FIXED_SIZE;
+        if ((flags & FLAG_NEW_SID) != 0) {
+            strings.add(readString(buffer, offset));
+        }
+        if ((flags & FLAG_NEW_AID) != 0) {
+            strings.add(readString(buffer, offset));
+        }
+        if (sid < 0 || sid >= strings.size() || aid < 0 || aid >= strings.size()) {
+            return null;
+        }
+        operate.sid = strings.get(sid);
+        operate.aid = strings.get(aid);
+        operate.text = readString(buffer, offset);
+        return operate;
+    }
+
+    private static String readString(ByteBuffer buffer, int[] offset) {
+        int length = buffer.getInt(offset[0]);
+        offset[0] += 4;
+        if (length == 0) {
+            return "";
+        }
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset[0]);
+        view.get(bytes);
+        offset[0] += length;
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the bounds of the target, null if native sent none
+     */
+    public Rect getBounds() {
+        if (bounds != null) {
+            return bounds;
+        }
+        if (pos != null && pos.size() >= 4) {
+            return new Rect(pos.get(0), pos.get(1), pos.get(2), pos.get(3));
+        }
+        return null;
+    }
+
     public List<Point> getPoints() {
         List<Point> points = new ArrayList<>();
         if (pos == null)
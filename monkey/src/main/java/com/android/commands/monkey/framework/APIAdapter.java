@@ -33,7 +33,9 @@ import android.content.pm.PermissionInfo;
 import android.content.pm.ResolveInfo;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.os.Build;
 import android.os.RemoteException;
+import android.view.accessibility.AccessibilityNodeInfo;
 import android.view.inputmethod.InputMethodInfo;
 
 import com.android.commands.monkey.utils.Logger;
@@ -56,6 +58,8 @@ public class APIAdapter {
 
 
     private static Method getTasksMethod = null;
+    private static Method getChildMethod = null;
+    private static boolean getChildResolved = false;
 
     private static Method findMethod(Class<?> clazz, String name, Class<?>... types) {
         Method method = null;
@@ -192,6 +196,23 @@ public class APIAdapter {
     }
 
 
+    /**
+     * AccessibilityNodeInfo#getChild(int, int) on API 33 and later, which lets the caller choose
+     * how the descendants of the child are prefetched, plain getChild(int) before.
+     */
+    public static AccessibilityNodeInfo getChild(AccessibilityNodeInfo info, int index, int prefetchingStrategy) {
+        if (!getChildResolved) {
+            getChildResolved = true;
+            if (Build.VERSION.SDK_INT >= 33) {
+                getChildMethod = findMethod(AccessibilityNodeInfo.class, "getChild", int.class, int.class);
+            }
+        }
+        if (getChildMethod != null) {
+            return (AccessibilityNodeInfo) invokej(getChildMethod, info, index, prefetchingStrategy);
+        }
+        return info.getChild(index);
+    }
+
     public static void setActivityController(IActivityManager mAm, Object controller) {
         Class<?> clazz = mAm.getClass();
         String name = "setActivityController";
@@ -46,16 +46,13 @@ import android.view.inputmethod.InputMethodInfo;
 import android.view.inputmethod.InputMethodManager;
 
 import com.android.commands.monkey.utils.ContextUtils;
-import com.android.commands.monkey.utils.InputUtils;
 import com.android.commands.monkey.utils.Logger;
-import com.android.commands.monkey.utils.Utils;
 import com.android.internal.statusbar.IStatusBarService;
 import com.android.internal.view.IInputMethodManager;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -96,6 +93,13 @@ public class AndroidDevice {
     static Pattern TASK_PATTERN = Pattern.compile("^    \\* Task.*#([0-9]+).*$");
     static Pattern ACTIVITY_PATTERN = Pattern.compile("^      [*] Hist #[0-9]+: ActivityRecord[{][0-9a-z]+ u[0-9]+ ([^ /]+)/([^ ]+) t[0-9]+[}]$");
     private static Set<String> blacklistPermissions = new HashSet<String>();
+    /**
+     * top task of the last dumpsys parse, see getCurrentTaskActivityStack
+     */
+    private static int lastTaskId;
+    private static int lastTaskSize;
+    private static ComponentName lastTaskTop;
+    private static List<ActivityName> lastTaskActivityStack;
     /**
      * https://github.com/senzhk/ADBKeyBoard
      */
@@ -104,6 +108,7 @@ public class AndroidDevice {
     private static String IME_KEYCODE = "ADB_INPUT_CODE";
     private static String IME_EDITORCODE = "ADB_EDITOR_CODE";
     private static String IME_ADB_KEYBOARD;
+    private static TextInputChannel textInputChannel;
 
     public static void initializeAndroidDevice(IActivityManager mAm, IWindowManager mWm, IPackageManager mPm, String keyboard) {
         iActivityManager = mAm;
@@ -130,6 +135,7 @@ public class AndroidDevice {
         }
 
         AndroidDevice.useADBKeyboard = enableADBKeyboard();
+        textInputChannel = new TextInputChannel(IME_ADB_KEYBOARD, useADBKeyboard, IME_MESSAGE);
 
         iPowerManager = IPowerManager.Stub.asInterface(ServiceManager.getService("power"));
         if (iPowerManager == null) {
@@ -167,11 +173,19 @@ public class AndroidDevice {
         return bounds;
     }
 
+    /**
+     * @return the top activity known to {@link TopActivityTracker}, or that of the top task
+     */
     public static ComponentName getTopActivityComponentName() {
+        ComponentName cn = TopActivityTracker.getTopActivity();
+        if (cn != null) {
+            return cn;
+        }
         try {
-            List<RunningTaskInfo> taskInfo = APIAdapter.getTasks(AndroidDevice.iActivityManager, Integer.MAX_VALUE);
+            List<RunningTaskInfo> taskInfo = APIAdapter.getTasks(AndroidDevice.iActivityManager, 1);
             if (taskInfo != null && !taskInfo.isEmpty()) {
                 RunningTaskInfo task = taskInfo.get(0);
+                TopActivityTracker.setTopActivity(task.topActivity);
                 return task.topActivity;
             }
         } catch (Exception e) {
@@ -181,10 +195,55 @@ public class AndroidDevice {
         return null;
     }
 
+    /**
+     * The activities of the top task, top first.
+     *
+     * The task list only tells the base and the top activity of a task, which is the whole stack
+     * for tasks of one or two activities. Deeper tasks are read from dumpsys once, and served again
+     * as long as the top task keeps its id, top activity and size.
+     */
     public static List<ActivityName> getCurrentTaskActivityStack() {
+        RunningTaskInfo task = null;
+        try {
+            List<RunningTaskInfo> taskInfo = APIAdapter.getTasks(AndroidDevice.iActivityManager, 1);
+            if (taskInfo != null && !taskInfo.isEmpty()) {
+                task = taskInfo.get(0);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        if (task != null && task.topActivity != null && task.baseActivity != null) {
+            if (task.numActivities == 1) {
+                List<ActivityName> activityNames = new ArrayList<>(1);
+                activityNames.add(new ActivityName(task.topActivity));
+                return activityNames;
+            }
+            if (task.numActivities == 2) {
+                List<ActivityName> activityNames = new ArrayList<>(2);
+                activityNames.add(new ActivityName(task.topActivity));
+                activityNames.add(new ActivityName(task.baseActivity));
+                return activityNames;
+            }
+            synchronized (AndroidDevice.class) {
+                if (lastTaskActivityStack != null && lastTaskId == task.id
+                        && lastTaskSize == task.numActivities && task.topActivity.equals(lastTaskTop)) {
+                    return new ArrayList<>(lastTaskActivityStack);
+                }
+            }
+        }
         StackInfo stackInfo = getFocusedStack();
         if (stackInfo != null && !stackInfo.getTasks().isEmpty()) {
-            return stackInfo.getTasks().get(0).activityNames;
+            List<ActivityName> activityNames = stackInfo.getTasks().get(0).activityNames;
+            if (task != null && !activityNames.isEmpty()
+                    && activityNames.get(0).activity.equals(task.topActivity)) {
+                synchronized (AndroidDevice.class) {
+                    lastTaskId = task.id;
+                    lastTaskSize = task.numActivities;
+                    lastTaskTop = task.topActivity;
+                    lastTaskActivityStack = new ArrayList<>(activityNames);
+                }
+            }
+            return activityNames;
         }
         return null;
     }
@@ -234,16 +293,11 @@ public class AndroidDevice {
     }
 
     public static boolean checkAndSetInputMethod() {
-        try {
-            if (!useADBKeyboard) {
-                return false;
-            }
-            InputUtils.switchToIme(IME_ADB_KEYBOARD);
-            return true;
-        } catch (SecurityException e) {
-            e.printStackTrace();
-        }
-        return false;
+        return textInputChannel.selectIme();
+    }
+
+    public static TextInputChannel getTextInputChannel() {
+        return textInputChannel;
     }
 
     public static String[] getGrantedPermissions(String packageName) {
@@ -585,7 +639,7 @@ public class AndroidDevice {
         return sendIMEIntent(intent);
     }
 
-    private static boolean broadcastIntent(Intent intent) {
+    static boolean broadcastIntent(Intent intent) {
         boolean ret = false;
         try {
             APIAdapter.broadcastIntent(iActivityManager, intent);
@@ -597,10 +651,7 @@ public class AndroidDevice {
     }
 
     public static boolean sendText(String text) {
-        Intent intent = new Intent();
-        intent.setAction(IME_MESSAGE);
-        intent.putExtra("msg", text);
-        return sendIMEIntent(intent);
+        return textInputChannel.commitText(text);
         // sendIMEActionGo();
     }
 
@@ -608,29 +659,71 @@ public class AndroidDevice {
      * Get activity stack through dumpsys
      * @return StackInfo object containing current activity stack
      */
+    /**
+     * Parse the focused stack from dumpsys activity a, line by line as the output comes in. Reading
+     * stops once the focused stack of a display has been parsed.
+     */
     public static StackInfo getFocusedStack() {
         String[] cmd = new String[]{
                 "dumpsys", "activity", "a"
         };
 
+        Process process = null;
         try {
-            String output = Utils.getProcessOutput(cmd);
+            ProcessBuilder processBuilder = new ProcessBuilder(cmd);
+            processBuilder.redirectErrorStream(true);
+            process = processBuilder.start();
             String line = null;
             Display currentDisplay = null;
             StackInfo currentStackInfo = null;
             Task currentTask = null;
             ActivityName currentActivityName = null;
             List<Display> displays = new ArrayList<>();
-            BufferedReader br = new BufferedReader(new StringReader(output));
+            // the focused stack of currentDisplay is known, it is complete at the next stack or display
+            boolean focusedStackSeen = false;
+            BufferedReader br = new BufferedReader(new InputStreamReader(process.getInputStream()));
             while ((line = br.readLine()) != null) {
-                Matcher m = DISPLAY_PATTERN.matcher(line);
-                if (m.matches()) {
-                    currentDisplay = new Display(Integer.parseInt(m.group(1)));
-                    displays.add(currentDisplay);
+                // cheap prefix checks first, most lines match none of the patterns
+                if (line.startsWith("Display #")) {
+                    Matcher m = DISPLAY_PATTERN.matcher(line);
+                    if (m.matches()) {
+                        StackInfo focused = focusedStackSeen ? findFocusedStack(currentDisplay) : null;
+                        if (focused != null) {
+                            return focused;
+                        }
+                        focusedStackSeen = false;
+                        currentDisplay = new Display(Integer.parseInt(m.group(1)));
+                        displays.add(currentDisplay);
+                        continue;
+                    }
+                }
+                if (line.contains("ocusedStack=")) {
+                    Matcher m = FOCUSED_STACK_PATTERN.matcher(line);
+                    if (!m.find()) {
+                        m = DISPLAY_FOCUSED_STACK_PATTERN.matcher(line);
+                        if (!m.find()) {
+                            continue;
+                        }
+                    }
+                    if (currentDisplay != null) {
+                        currentDisplay.focusedStackId = Integer.parseInt(m.group(1));
+                        focusedStackSeen = true;
+                        StackInfo focused = findFocusedStack(currentDisplay);
+                        if (focused != null) {
+                            return focused;
+                        }
+                    }
+                    continue;
+                }
+                if (!line.startsWith("  ")) {
                     continue;
                 }
-                m = STACK_PATTERN.matcher(line);
+                Matcher m = STACK_PATTERN.matcher(line);
                 if (m.matches() && currentDisplay != null) {
+                    StackInfo focused = focusedStackSeen ? findFocusedStack(currentDisplay) : null;
+                    if (focused != null) {
+                        return focused;
+                    }
                     currentStackInfo = new StackInfo(Integer.parseInt(m.group(1)));
 
                     currentDisplay.stackInfos.add(currentStackInfo);
@@ -654,27 +747,29 @@ public class AndroidDevice {
                     currentActivityName = new ActivityName(comp);
                     currentTask.activityNames.add(currentActivityName);
                     //Logger.println("// zhangzhao stack.id=" + currentStack.id + ", task.id=" + currentTask.id + ", act=" + currentActivity);
-                    continue;
-                }
-                m = FOCUSED_STACK_PATTERN.matcher(line);
-                if (m.find() && currentDisplay != null) {
-                    currentDisplay.focusedStackId = Integer.parseInt(m.group(1));
-                    continue;
-                }
-                m = DISPLAY_FOCUSED_STACK_PATTERN.matcher(line);
-                if (m.find() && currentDisplay != null) {
-                    currentDisplay.focusedStackId = Integer.parseInt(m.group(1));
                 }
             }
             for (Display d : displays) {
-                for (StackInfo s : d.stackInfos) {
-                    if (s.id == d.focusedStackId) {
-                        return s;
-                    }
+                StackInfo focused = findFocusedStack(d);
+                if (focused != null) {
+                    return focused;
                 }
             }
         } catch (IOException ignore) {
-        } catch (InterruptedException ignore) {
+        } finally {
+            if (process != null) {
+                // dumpsys may still be writing the rest of the output
+                process.destroy();
+            }
+        }
+        return null;
+    }
+
+    private static StackInfo findFocusedStack(Display display) {
+        for (StackInfo s : display.stackInfos) {
+            if (s.id == display.focusedStackId) {
+                return s;
+            }
         }
         return null;
     }
@@ -0,0 +1,214 @@
+/*
+ * This code is licensed under the Fastbot license. You may obtain a copy of this license in the LICENSE.txt file in the root directory of this source tree.
+ */
+
+package com.android.commands.monkey.framework;
+
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+
+import com.android.commands.monkey.utils.Config;
+import com.android.commands.monkey.utils.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * What the monkey resolves about a package at startup, its activities, requested permissions and
+ * launcher activities, kept across runs in /data/local/tmp/fastbot_cache/&lt;package&gt;.
+ *
+ * The file is only trusted while the versionCode and lastUpdateTime of the installed package
+ * match the ones it was written with, checking them is a getPackageInfo without flags instead of
+ * a scan of the activities or permissions.
+ */
+public class PackageCache {
+
+    private static final String CACHE_DIRECTORY = "/data/local/tmp/fastbot_cache";
+    private static final int MAGIC = 0x46425043; // FBPC
+    private static final int FORMAT_VERSION = 1;
+
+    private static final Map<String, PackageCache> sCaches = new HashMap<>();
+
+    private final String mPackageName;
+    private final long mVersionCode;
+    private final long mLastUpdateTime;
+    private final String mVersionName;
+
+    /**
+     * null while not resolved yet
+     */
+    private String[] mActivities;
+    private String[] mPermissions;
+    private String mLauncherQuery = "";
+    private String[] mLauncherActivities;
+
+    private PackageCache(PackageInfo packageInfo) {
+        mPackageName = packageInfo.packageName;
+        mVersionCode = packageInfo.versionCode;
+        mLastUpdateTime = packageInfo.lastUpdateTime;
+        mVersionName = packageInfo.versionName == null ? "" : packageInfo.versionName;
+    }
+
+    /**
+     * @return the cache of the installed package, loaded from its file if that is still valid,
+     * null if the package is not installed or max.packageCache is off
+     */
+    public static synchronized PackageCache get(PackageManager packageManager, String packageName) {
+        if (!Config.packageCache || packageManager == null) {
+            return null;
+        }
+        PackageCache cache = sCaches.get(packageName);
+        if (cache != null) {
+            return cache;
+        }
+        PackageInfo packageInfo;
+        try {
+            packageInfo = packageManager.getPackageInfo(packageName, 0);
+        } catch (PackageManager.NameNotFoundException e) {
+            return null;
+        }
+        if (packageInfo == null) {
+            return null;
+        }
+        cache = new PackageCache(packageInfo);
+        cache.load();
+        sCaches.put(packageName, cache);
+        return cache;
+    }
+
+    public String getVersionName() {
+        return mVersionName;
+    }
+
+    /**
+     * @return the activities of the package, null if they are not cached
+     */
+    public String[] getActivities() {
+        return mActivities;
+    }
+
+    public void setActivities(String[] activities) {
+        mActivities = activities;
+        save();
+    }
+
+    /**
+     * @return the requested permissions of the package, null if they are not cached
+     */
+    public String[] getPermissions() {
+        return mPermissions;
+    }
+
+    public void setPermissions(String[] permissions) {
+        mPermissions = permissions;
+        save();
+    }
+
+    /**
+     * @param query the intent the launcher activities were resolved with
+     * @return the launcher activities of the package, null if they are not cached for query
+     */
+    public String[] getLauncherActivities(String query) {
+        return mLauncherQuery.equals(query) ? mLauncherActivities : null;
+    }
+
+    public void setLauncherActivities(String query, String[] activities) {
+        mLauncherQuery = query;
+        mLauncherActivities = activities;
+        save();
+    }
+
+    private File getFile() {
+        return new File(CACHE_DIRECTORY, mPackageName);
+    }
+
+    private void load() {
+        File file = getFile();
+        if (!file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION
+                    || !mPackageName.equals(in.readUTF())
+                    || in.readLong() != mVersionCode || in.readLong() != mLastUpdateTime) {
+                Logger.println("// package cache of " + mPackageName + " is out of date");
+                return;
+            }
+            String[] activities = readStrings(in);
+            String[] permissions = readStrings(in);
+            String launcherQuery = in.readUTF();
+            String[] launcherActivities = readStrings(in);
+            mActivities = activities;
+            mPermissions = permissions;
+            mLauncherQuery = launcherQuery;
+            mLauncherActivities = launcherActivities;
+            Logger.println("// loaded package cache of " + mPackageName);
+        } catch (IOException e) {
+            Logger.warningPrintln("Fail to read package cache " + file + ": " + e);
+        }
+    }
+
+    private void save() {
+        File directory = new File(CACHE_DIRECTORY);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Logger.warningPrintln("Fail to create package cache directory " + directory);
+            return;
+        }
+        // a run killed while saving leaves the old file behind instead of half of a new one
+        File file = getFile();
+        File part = new File(directory, mPackageName + ".part");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(part)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(mPackageName);
+            out.writeLong(mVersionCode);
+            out.writeLong(mLastUpdateTime);
+            writeStrings(out, mActivities);
+            writeStrings(out, mPermissions);
+            out.writeUTF(mLauncherQuery);
+            writeStrings(out, mLauncherActivities);
+        } catch (IOException e) {
+            Logger.warningPrintln("Fail to write package cache " + part + ": " + e);
+            part.delete();
+            return;
+        }
+        if (!part.renameTo(file)) {
+            Logger.warningPrintln("Fail to write package cache " + file);
+            part.delete();
+        }
+    }
+
+    /**
+     * a count of -1 stands for null
+     */
+    private static String[] readStrings(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            return null;
+        }
+        String[] strings = new String[count];
+        for (int i = 0; i < count; i++) {
+            strings[i] = in.readUTF();
+        }
+        return strings;
+    }
+
+    private static void writeStrings(DataOutputStream out, String[] strings) throws IOException {
+        if (strings == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(strings.length);
+        for (String string : strings) {
+            out.writeUTF(string);
+        }
+    }
+}
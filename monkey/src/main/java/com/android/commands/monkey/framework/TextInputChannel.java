@@ -0,0 +1,229 @@
+/*
+ * This code is licensed under the Fastbot license. You may obtain a copy of this license in the LICENSE.txt file in the root directory of this source tree.
+ */
+
+package com.android.commands.monkey.framework;
+
+import android.content.Intent;
+import android.hardware.input.InputManager;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.view.KeyCharacterMap;
+import android.view.KeyEvent;
+
+import com.android.commands.monkey.utils.InputUtils;
+import com.android.commands.monkey.utils.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+/**
+ * Text typed into the focused editor from within the monkey process, kept for the whole run.
+ * With the ADB keyboard the text is committed by broadcasts of one reused intent, the input
+ * method is looked up by a binder call before each text instead of by a shell command, and only
+ * switched by one if another is selected. Without it the text is typed as key events injected
+ * here, not by a forked input text.
+ *
+ * Used on the monkey thread only.
+ */
+public class TextInputChannel {
+
+    /**
+     * chars per broadcast, the text travels as an intent extra in a single binder transaction
+     */
+    private static final int MAX_CHUNK = 2048;
+    /**
+     * the line of the input method service dump that tells the selected input method
+     */
+    private static final String CURRENT_IME = "mCurMethodId=";
+
+    private final String mIme;
+    private final boolean mImeEnabled;
+    private final Intent mTextIntent;
+
+    private KeyCharacterMap mKeyCharacterMap;
+
+    private int mBroadcasts = 0;
+    private int mImeLookups = 0;
+    private int mImeSwitches = 0;
+    private int mKeyEvents = 0;
+    private int mUnmappedChars = 0;
+
+    /**
+     * @param ime id of the ADB keyboard
+     * @param imeEnabled whether the ADB keyboard is enabled on the device
+     * @param textAction action of the broadcast the ADB keyboard commits text on
+     */
+    TextInputChannel(String ime, boolean imeEnabled, String textAction) {
+        mIme = ime;
+        mImeEnabled = imeEnabled;
+        mTextIntent = new Intent(textAction);
+    }
+
+    /**
+     * Make sure the ADB keyboard is the input method, switching to it only if another one is.
+     * Anything may have switched it since the last text, so it is looked up every time.
+     *
+     * @return false if the ADB keyboard is not enabled or cannot be selected
+     */
+    public boolean selectIme() {
+        if (!mImeEnabled) {
+            return false;
+        }
+        try {
+            if (!mIme.equals(getCurrentIme())) {
+                InputUtils.switchToIme(mIme);
+                mImeSwitches++;
+            }
+            return true;
+        } catch (SecurityException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    /**
+     * The selected input method as the input method service dumps it, by the shell only if the
+     * dump has no such line.
+     */
+    private String getCurrentIme() {
+        mImeLookups++;
+        ParcelFileDescriptor[] pipe = null;
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+            AndroidDevice.iInputMethodManager.asBinder().dumpAsync(pipe[1].getFileDescriptor(), null);
+            // the service has its own copy, the dump ends when it closes that
+            pipe[1].close();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new ParcelFileDescriptor.AutoCloseInputStream(pipe[0])))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int index = line.indexOf(CURRENT_IME);
+                    if (index >= 0) {
+                        return line.substring(index + CURRENT_IME.length()).trim();
+                    }
+                }
+            }
+        } catch (IOException | RemoteException e) {
+            Logger.warningPrintln("cannot dump input method service: " + e);
+            if (pipe != null) {
+                closeQuietly(pipe[0]);
+                closeQuietly(pipe[1]);
+            }
+        }
+        return InputUtils.getDefaultIme().trim();
+    }
+
+    private static void closeQuietly(ParcelFileDescriptor fd) {
+        try {
+            fd.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Commit text by the ADB keyboard right away, in as few broadcasts as MAX_CHUNK allows.
+     *
+     * @return false if the ADB keyboard is not available
+     */
+    public boolean commitText(String text) {
+        if (!selectIme()) {
+            return false;
+        }
+        boolean sent = true;
+        int start = 0;
+        while (start < text.length()) {
+            int end = Math.min(text.length(), start + MAX_CHUNK);
+            // never split a surrogate pair over two broadcasts
+            if (end < text.length() && Character.isHighSurrogate(text.charAt(end - 1))) {
+                end--;
+            }
+            sent &= broadcast(text.substring(start, end));
+            start = end;
+        }
+        return sent;
+    }
+
+    private boolean broadcast(String text) {
+        mTextIntent.putExtra("msg", text);
+        mBroadcasts++;
+        return AndroidDevice.broadcastIntent(mTextIntent);
+    }
+
+    /**
+     * Type text as key events of the virtual keyboard, as input text does. Chars the key
+     * character map has no keys for are skipped. Only the last key waits for its result, so
+     * the text is in the editor when this returns.
+     *
+     * @return false if a key could not be injected
+     */
+    public boolean typeText(String text) {
+        if (mKeyCharacterMap == null) {
+            mKeyCharacterMap = KeyCharacterMap.load(KeyCharacterMap.VIRTUAL_KEYBOARD);
+        }
+        char[] chars = text.toCharArray();
+        KeyEvent[] events = mKeyCharacterMap.getEvents(chars);
+        if (events == null) {
+            // some char has no keys, look them up one by one
+            return typeMappableChars(chars);
+        }
+        return injectKeys(events, true);
+    }
+
+    /**
+     * Press and release a key, waiting for the release to be handled.
+     */
+    public boolean pressKey(int keyCode) {
+        long now = SystemClock.uptimeMillis();
+        KeyEvent[] events = {
+                new KeyEvent(now, now, KeyEvent.ACTION_DOWN, keyCode, 0),
+                new KeyEvent(now, now, KeyEvent.ACTION_UP, keyCode, 0)};
+        return injectKeys(events, true);
+    }
+
+    private boolean typeMappableChars(char[] chars) {
+        KeyEvent[][] events = new KeyEvent[chars.length][];
+        int last = -1;
+        char[] one = new char[1];
+        for (int i = 0; i < chars.length; i++) {
+            one[0] = chars[i];
+            events[i] = mKeyCharacterMap.getEvents(one);
+            if (events[i] == null) {
+                mUnmappedChars++;
+            } else {
+                last = i;
+            }
+        }
+        boolean injected = true;
+        for (int i = 0; i <= last; i++) {
+            if (events[i] != null) {
+                // the last char with keys waits, also if chars without keys follow it
+                injected &= injectKeys(events[i], i == last);
+            }
+        }
+        return injected;
+    }
+
+    private boolean injectKeys(KeyEvent[] events, boolean waitForLast) {
+        InputManager inputManager = InputManager.getInstance();
+        boolean injected = true;
+        for (int i = 0; i < events.length; i++) {
+            int mode = waitForLast && i == events.length - 1 ? InputManager.INJECT_INPUT_EVENT_MODE_WAIT_FOR_RESULT
+                    : InputManager.INJECT_INPUT_EVENT_MODE_ASYNC;
+            try {
+                injected &= inputManager.injectInputEvent(events[i], mode);
+            } catch (SecurityException e) {
+                injected = false;
+            }
+            mKeyEvents++;
+        }
+        return injected;
+    }
+
+    public void printStatistics() {
+        Logger.infoFormat("text input: %d broadcasts, %d input method lookups, %d switches, %d keys typed, %d chars without keys",
+                mBroadcasts, mImeLookups, mImeSwitches, mKeyEvents, mUnmappedChars);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * This code is licensed under the Fastbot license. You may obtain a copy of this license in the LICENSE.txt file in the root directory of this source tree.
+ */
+
+package com.android.commands.monkey.framework;
+
+import android.content.ComponentName;
+import android.content.pm.PackageManager;
+import android.os.SystemClock;
+import android.view.accessibility.AccessibilityEvent;
+
+import com.android.commands.monkey.utils.Logger;
+
+import java.util.HashMap;
+
+import static com.android.commands.monkey.utils.Config.topActivityCacheTimeout;
+
+/**
+ * Keeps the top activity as pushed by the activity controller and the accessibility window
+ * events, so that the monkey does not pull the task list over binder for every event.
+ *
+ * activityStarting names the activity that goes on top. activityResuming only names the package
+ * of the resumed activity. It follows every start, and the cached activity is kept for the resume
+ * that follows its start. Any other resume is a finish, a back or a task switch, which may bring
+ * up any activity, also one of the same package, so the cache is dropped until the window state
+ * event of that activity names it. A cached activity older than
+ * max.topActivityCacheTimeout ms is not trusted either, {@link AndroidDevice} then asks
+ * the activity manager for the top task.
+ */
+public class TopActivityTracker {
+
+    private static ComponentName sTopActivity = null;
+    private static long sUpdateTime = 0;
+    /**
+     * the activity of the last activityStarting, until the resume that follows it
+     */
+    private static ComponentName sStartingActivity = null;
+
+    /**
+     * whether a window class name is an activity, windows of dialogs and popups are not
+     */
+    private static final HashMap<ComponentName, Boolean> sIsActivity = new HashMap<>();
+
+    private static int sHits = 0;
+    private static int sMisses = 0;
+
+    /**
+     * @return the cached top activity, null if it is not known or too old
+     */
+    public static synchronized ComponentName getTopActivity() {
+        if (sTopActivity == null || topActivityCacheTimeout <= 0
+                || SystemClock.uptimeMillis() - sUpdateTime > topActivityCacheTimeout) {
+            sMisses++;
+            return null;
+        }
+        sHits++;
+        return sTopActivity;
+    }
+
+    /**
+     * Called with the top activity read from the activity manager.
+     */
+    public static synchronized void setTopActivity(ComponentName cn) {
+        sTopActivity = cn;
+        sUpdateTime = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * Called from IActivityController#activityStarting once the start is allowed.
+     */
+    public static synchronized void onActivityStarting(ComponentName cn) {
+        sStartingActivity = cn;
+        if (cn != null) {
+            setTopActivity(cn);
+        } else {
+            invalidate();
+        }
+    }
+
+    /**
+     * Called from IActivityController#activityResuming, the resumed activity is not known.
+     */
+    public static synchronized void onActivityResuming(String pkg) {
+        boolean resumesStarted = sStartingActivity != null && sStartingActivity.equals(sTopActivity)
+                && sStartingActivity.getPackageName().equals(pkg);
+        sStartingActivity = null;
+        if (!resumesStarted) {
+            sTopActivity = null;
+        }
+    }
+
+    public static synchronized void invalidate() {
+        sTopActivity = null;
+    }
+
+    /**
+     * Called on the UiAutomation thread for every accessibility event.
+     */
+    public static void onAccessibilityEvent(AccessibilityEvent event) {
+        if (event.getEventType() != AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED
+                || event.getPackageName() == null || event.getClassName() == null) {
+            return;
+        }
+        ComponentName cn = new ComponentName(event.getPackageName().toString(), event.getClassName().toString());
+        synchronized (TopActivityTracker.class) {
+            if (cn.equals(sTopActivity)) {
+                // known to be an activity, no need to look it up
+                sUpdateTime = SystemClock.uptimeMillis();
+                return;
+            }
+        }
+        if (isActivity(cn)) {
+            setTopActivity(cn);
+        }
+    }
+
+    private static boolean isActivity(ComponentName cn) {
+        synchronized (TopActivityTracker.class) {
+            Boolean known = sIsActivity.get(cn);
+            if (known != null) {
+                return known;
+            }
+        }
+        PackageManager pm = AndroidDevice.packageManager;
+        if (pm == null) {
+            return false;
+        }
+        boolean isActivity;
+        try {
+            isActivity = pm.getActivityInfo(cn, 0) != null;
+        } catch (PackageManager.NameNotFoundException e) {
+            isActivity = false;
+        } catch (Exception e) {
+            // not cached, the package may be installed later
+            return false;
+        }
+        synchronized (TopActivityTracker.class) {
+            sIsActivity.put(cn, isActivity);
+        }
+        return isActivity;
+    }
+
+    public static synchronized void printStatistics() {
+        Logger.infoFormat("top activity tracker: %d served from cache, %d read from the task list", sHits, sMisses);
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * This code is licensed under the Fastbot license. You may obtain a copy of this license in the LICENSE.txt file in the root directory of this source tree.
+ */
+
+package com.android.commands.monkey.source;
+
+import android.graphics.PointF;
+import android.graphics.Rect;
+
+import java.util.Random;
+
+/**
+ * The black widget rects native resolved for a page, in a uniform grid over the display, so
+ * that clicks are checked and moved out of them without going to native for every point.
+ *
+ * Each cell lists the rects that overlap it, a cell wholly inside one rect is marked covered and
+ * is never sampled from.
+ */
+public class BlackRectIndex {
+
+    private static final int CELL_SIZE = 64;
+    private static final int SAMPLE_TRIES = 16;
+
+    private final String mActivity;
+    private final int[] mRects;
+    private final int mLeft;
+    private final int mTop;
+    private final int mColumns;
+    private final int mRows;
+    /**
+     * indexes into mRects / 4 of the rects overlapping each cell, null if none
+     */
+    private final int[][] mCells;
+    private final boolean[] mCovered;
+
+    /**
+     * @param activity the activity the rects were resolved for
+     * @param rects left, top, right, bottom of each rect
+     * @param display bounds of the display, the grid covers it
+     */
+    public BlackRectIndex(String activity, int[] rects, Rect display) {
+        mActivity = activity;
+        mRects = rects;
+        mLeft = display.left;
+        mTop = display.top;
+        if (isEmpty()) {
+            // most pages have no black widgets, no grid is needed to tell that
+            mColumns = 0;
+            mRows = 0;
+            mCells = null;
+            mCovered = null;
+            return;
+        }
+        mColumns = Math.max(1, (display.width() + CELL_SIZE - 1) / CELL_SIZE);
+        mRows = Math.max(1, (display.height() + CELL_SIZE - 1) / CELL_SIZE);
+        mCells = new int[mColumns * mRows][];
+        mCovered = new boolean[mColumns * mRows];
+
+        int rectCount = rects.length / 4;
+        int[] counts = new int[mCells.length];
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < rectCount; i++) {
+                int left = rects[4 * i], top = rects[4 * i + 1], right = rects[4 * i + 2], bottom = rects[4 * i + 3];
+                // a rect of no width or height still holds its edge points, as on the native side
+                if (left > right || top > bottom) {
+                    continue;
+                }
+                int c0 = column(left), c1 = column(right);
+                int r0 = row(top), r1 = row(bottom);
+                for (int r = r0; r <= r1; r++) {
+                    for (int c = c0; c <= c1; c++) {
+                        int cell = r * mColumns + c;
+                        if (pass == 0) {
+                            counts[cell]++;
+                            continue;
+                        }
+                        if (mCells[cell] == null) {
+                            mCells[cell] = new int[counts[cell]];
+                            counts[cell] = 0;
+                        }
+                        mCells[cell][counts[cell]++] = i;
+                        int cellLeft = mLeft + c * CELL_SIZE, cellTop = mTop + r * CELL_SIZE;
+                        if (left <= cellLeft && top <= cellTop
+                                && right >= cellLeft + CELL_SIZE - 1 && bottom >= cellTop + CELL_SIZE - 1) {
+                            mCovered[cell] = true;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    public String getActivity() {
+        return mActivity;
+    }
+
+    public boolean isEmpty() {
+        return mRects.length < 4;
+    }
+
+    public int size() {
+        return mRects.length / 4;
+    }
+
+    private int column(int x) {
+        return Math.min(mColumns - 1, Math.max(0, (x - mLeft) / CELL_SIZE));
+    }
+
+    private int row(int y) {
+        return Math.min(mRows - 1, Math.max(0, (y - mTop) / CELL_SIZE));
+    }
+
+    private boolean rectContains(int i, int x, int y) {
+        return x >= mRects[4 * i] && x <= mRects[4 * i + 2] && y >= mRects[4 * i + 1] && y <= mRects[4 * i + 3];
+    }
+
+    /**
+     * Same as Rect::contains on the native side, right and bottom are inside.
+     */
+    public boolean contains(int x, int y) {
+        if (isEmpty()) {
+            return false;
+        }
+        int cell = row(y) * mColumns + column(x);
+        boolean inGrid = x >= mLeft && y >= mTop && x < mLeft + mColumns * CELL_SIZE && y < mTop + mRows * CELL_SIZE;
+        if (inGrid && mCovered[cell]) {
+            return true;
+        }
+        int[] rects = mCells[cell];
+        if (rects == null) {
+            return false;
+        }
+        for (int i : rects) {
+            if (rectContains(i, x, y)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean contains(PointF p) {
+        return contains((int) p.x, (int) p.y);
+    }
+
+    /**
+     * Pick a point of area outside all black rects, from the cells of area not wholly covered.
+     *
+     * @return null if no free point was found in area
+     */
+    public PointF sampleFree(Rect area, Random random) {
+        if (isEmpty()) {
+            return new PointF(area.exactCenterX(), area.exactCenterY());
+        }
+        int left = Math.max(area.left, mLeft);
+        int top = Math.max(area.top, mTop);
+        int right = Math.min(area.right, mLeft + mColumns * CELL_SIZE);
+        int bottom = Math.min(area.bottom, mTop + mRows * CELL_SIZE);
+        if (left >= right || top >= bottom) {
+            return null;
+        }
+        int c0 = column(left), c1 = column(right - 1);
+        int r0 = row(top), r1 = row(bottom - 1);
+        int[] freeCells = new int[(c1 - c0 + 1) * (r1 - r0 + 1)];
+        int freeCount = 0;
+        for (int r = r0; r <= r1; r++) {
+            for (int c = c0; c <= c1; c++) {
+                int cell = r * mColumns + c;
+                if (!mCovered[cell]) {
+                    freeCells[freeCount++] = cell;
+                }
+            }
+        }
+        for (int i = 0; i < SAMPLE_TRIES && freeCount > 0; i++) {
+            int cell = freeCells[random.nextInt(freeCount)];
+            int cellLeft = Math.max(left, mLeft + (cell % mColumns) * CELL_SIZE);
+            int cellTop = Math.max(top, mTop + (cell / mColumns) * CELL_SIZE);
+            int cellRight = Math.min(right, mLeft + (cell % mColumns + 1) * CELL_SIZE);
+            int cellBottom = Math.min(bottom, mTop + (cell / mColumns + 1) * CELL_SIZE);
+            int x = cellLeft + random.nextInt(cellRight - cellLeft);
+            int y = cellTop + random.nextInt(cellBottom - cellTop);
+            if (!contains(x, y)) {
+                return new PointF(x, y);
+            }
+        }
+        return null;
+    }
+}
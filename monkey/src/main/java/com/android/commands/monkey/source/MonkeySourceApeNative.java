@@ -20,10 +20,18 @@ import static com.android.commands.monkey.utils.Config.historyRestartRate;
 import static com.android.commands.monkey.utils.Config.homeAfterNSecondsofsleep;
 import static com.android.commands.monkey.utils.Config.homingRate;
 import static com.android.commands.monkey.utils.Config.imageWriterCount;
+import static com.android.commands.monkey.utils.Config.mirrorTreeFullFetchInterval;
+import static com.android.commands.monkey.utils.Config.pipelineIdleTimeout;
+import static com.android.commands.monkey.utils.Config.pipelineObservation;
+import static com.android.commands.monkey.utils.Config.planSteps;
 import static com.android.commands.monkey.utils.Config.refectchInfoCount;
 import static com.android.commands.monkey.utils.Config.refectchInfoWaitingInterval;
 import static com.android.commands.monkey.utils.Config.saveGUITreeToXmlEveryStep;
 import static com.android.commands.monkey.utils.Config.schemaTraversalMode;
+import static com.android.commands.monkey.utils.Config.settleQuietDefault;
+import static com.android.commands.monkey.utils.Config.settleQuietMax;
+import static com.android.commands.monkey.utils.Config.settleQuietMin;
+import static com.android.commands.monkey.utils.Config.settleTimeout;
 import static com.android.commands.monkey.utils.Config.scrollAfterNSecondsofsleep;
 import static com.android.commands.monkey.utils.Config.startAfterDoScrollAction;
 import static com.android.commands.monkey.utils.Config.startAfterDoScrollActionTimes;
@@ -31,24 +39,31 @@ import static com.android.commands.monkey.utils.Config.startAfterDoScrollBottomA
 import static com.android.commands.monkey.utils.Config.startAfterDoScrollBottomActionTimes;
 import static com.android.commands.monkey.utils.Config.startAfterNSecondsofsleep;
 import static com.android.commands.monkey.utils.Config.swipeDuration;
+import static com.android.commands.monkey.utils.Config.swipeProfile;
+import static com.android.commands.monkey.utils.Config.swipeSteps;
 import static com.android.commands.monkey.utils.Config.takeScreenshotForEveryStep;
 import static com.android.commands.monkey.utils.Config.throttleForExecPreSchema;
 import static com.android.commands.monkey.utils.Config.throttleForExecPreShell;
+import static com.android.commands.monkey.utils.Config.treeCacheSize;
+import static com.android.commands.monkey.utils.Config.treeFetchTimeBudget;
+import static com.android.commands.monkey.utils.Config.treeMaxDepth;
+import static com.android.commands.monkey.utils.Config.treeNodeBudget;
+import static com.android.commands.monkey.utils.Config.useGuiTreeBuffer;
+import static com.android.commands.monkey.utils.Config.useMirrorTree;
 import static com.android.commands.monkey.utils.Config.useRandomClick;
+import static com.android.commands.monkey.utils.Config.useSettleDetector;
 
 import android.accessibilityservice.AccessibilityServiceInfo;
 import android.app.IActivityManager;
 import android.app.UiAutomation;
 import android.app.UiAutomationConnection;
 import android.content.ComponentName;
-import android.content.pm.ActivityInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
 import android.graphics.PointF;
 import android.graphics.Rect;
 import android.hardware.display.DisplayManagerGlobal;
-import android.os.Build;
 import android.os.HandlerThread;
 
 import java.lang.Exception;
@@ -56,10 +71,10 @@ import android.os.SystemClock;
 import android.util.DisplayMetrics;
 import android.view.Display;
 import android.view.IWindowManager;
-import android.view.KeyCharacterMap;
 import android.view.KeyEvent;
 import android.view.MotionEvent;
 import android.view.Surface;
+import android.view.accessibility.AccessibilityEvent;
 import android.view.accessibility.AccessibilityNodeInfo;
 
 import com.android.commands.monkey.Monkey;
@@ -68,18 +83,17 @@ import com.android.commands.monkey.action.Action;
 import com.android.commands.monkey.action.FuzzAction;
 import com.android.commands.monkey.action.ModelAction;
 import com.android.commands.monkey.events.MonkeyEvent;
-import com.android.commands.monkey.events.MonkeyEventQueue;
+import com.android.commands.monkey.events.MonkeyEventPool;
+import com.android.commands.monkey.events.MonkeyEventRingQueue;
 import com.android.commands.monkey.events.MonkeyEventSource;
 import com.android.commands.monkey.events.base.MonkeyActivityEvent;
-import com.android.commands.monkey.events.base.MonkeyCommandEvent;
+import com.android.commands.monkey.events.base.MonkeyGestureEvent;
 import com.android.commands.monkey.events.base.MonkeyIMEEvent;
-import com.android.commands.monkey.events.base.MonkeyKeyEvent;
 import com.android.commands.monkey.events.base.MonkeyDataActivityEvent;
 import com.android.commands.monkey.events.base.MonkeyRotationEvent;
 import com.android.commands.monkey.events.base.MonkeySchemaEvent;
+import com.android.commands.monkey.events.base.MonkeyTextEvent;
 import com.android.commands.monkey.events.base.MonkeyThrottleEvent;
-import com.android.commands.monkey.events.base.MonkeyTouchEvent;
-import com.android.commands.monkey.events.base.MonkeyWaitEvent;
 import com.android.commands.monkey.events.customize.ClickEvent;
 import com.android.commands.monkey.events.CustomEvent;
 import com.android.commands.monkey.events.CustomEventFuzzer;
@@ -87,11 +101,15 @@ import com.android.commands.monkey.events.customize.ShellEvent;
 import com.android.commands.monkey.fastbot.client.ActionType;
 import com.android.commands.monkey.fastbot.client.Operate;
 import com.android.commands.monkey.framework.AndroidDevice;
+import com.android.commands.monkey.framework.PackageCache;
+import com.android.commands.monkey.framework.TopActivityTracker;
 import com.android.commands.monkey.events.base.mutation.MutationAirplaneEvent;
 import com.android.commands.monkey.events.base.mutation.MutationAlwaysFinishActivityEvent;
 import com.android.commands.monkey.events.base.mutation.MutationWifiEvent;
 import com.android.commands.monkey.provider.SchemaProvider;
 import com.android.commands.monkey.provider.ShellProvider;
+import com.android.commands.monkey.tree.GuiTreeBuffer;
+import com.android.commands.monkey.tree.MirrorTree;
 import com.android.commands.monkey.tree.TreeBuilder;
 import com.android.commands.monkey.utils.Config;
 import com.android.commands.monkey.utils.ImageWriterQueue;
@@ -105,6 +123,7 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.OutputStreamWriter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -114,6 +133,7 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
 import java.util.Stack;
+import java.util.concurrent.Callable;
 import java.util.concurrent.TimeoutException;
 
 
@@ -128,6 +148,7 @@ public class MonkeySourceApeNative implements MonkeyEventSource {
 
     private static long CLICK_WAIT_TIME = 0L;
     private static long LONG_CLICK_WAIT_TIME = 1000L;
+    private static final MonkeyGestureEvent.Profile SWIPE_PROFILE = MonkeyGestureEvent.Profile.fromName(swipeProfile);
     /**
      * UiAutomation client and connection
      */
@@ -147,7 +168,13 @@ public class MonkeySourceApeNative implements MonkeyEventSource {
     /**
      * monkey event queue
      */
-    private MonkeyEventQueue mQ;
+    private MonkeyEventRingQueue mQ;
+    private final MonkeyEventPool mEventPool = new MonkeyEventPool();
+    /**
+     * returned by the last getNextEvent, recycled when the next one is asked for
+     */
+    private MonkeyEvent mInjectingEvent;
+    private final PointF mClickPoint = new PointF();
     /**
      * debug level
      */
@@ -177,11 +204,57 @@ public class MonkeySourceApeNative implements MonkeyEventSource {
      * screenshot asynchronous storage queue
      */
     private ImageWriterQueue[] mImageWriters;
+    /**
+     * reusable direct buffer the guitree is written into for native
+     */
+    private final GuiTreeBuffer mGuiTreeBuffer = new GuiTreeBuffer();
+    /**
+     * xml writer of the guitree, keeps its char buffer between steps
+     */
+    private final TreeBuilder mTreeBuilder = new TreeBuilder();
+    /**
+     * guitree mirror, fed by accessibility events when useMirrorTree is on
+     */
+    private final MirrorTree mMirrorTree = new MirrorTree(useMirrorTree, mirrorTreeFullFetchInterval,
+            treeMaxDepth, treeNodeBudget, treeFetchTimeBudget);
+    /**
+     * captures the next observation during the throttle window when pipelineObservation is on
+     */
+    private ObservationPipeline<Observation> mPipeline;
+    private volatile long mPipelineWindow = 0;
+    /**
+     * hashes of the trees native keeps parsed, see max.treeCacheSize
+     */
+    private final long[] mRecentTrees = new long[Math.max(treeCacheSize, 1)];
+    private int mRecentTreeCount = 0;
+    private int mRecentTreeNext = 0;
+    private int mCachedTreeHits = 0;
+    /**
+     * operates native planned on the last observed page, see max.planSteps
+     */
+    private final ArrayDeque<Operate> mPlan = new ArrayDeque<>();
+    private ComponentName mPlanActivity;
+    private int mExecutedPlanSteps = 0;
+    private int mPlannedSteps = 0;
+    private int mPlanFailures = 0;
+    /**
+     * black widget rects of the last decided page, clicks are moved out of them
+     */
+    private BlackRectIndex mBlackRects;
+    private int mShieldedPoints = 0;
+    /**
+     * learns when the screen is stable from the event stream, null when useSettleDetector is off
+     */
+    private final SettleDetector mSettleDetector = useSettleDetector
+            ? new SettleDetector(settleQuietMin, settleQuietMax, settleQuietDefault) : null;
     /**
      * Record tested activities, but there are activities that may miss quick jumps
      */
     private HashSet<String> activityHistory = new HashSet<>();
-    private String currentActivity = "";
+    /**
+     * also read by the pipeline worker while it waits for the ui to settle
+     */
+    private volatile String currentActivity = "";
     /**
      * appliaction total、stub、plugin activity
      */
@@ -237,12 +310,12 @@ public class MonkeySourceApeNative implements MonkeyEventSource {
         mMainApps = MainApps;
         mThrottle = throttle;
         mRandomizeThrottle = randomizeThrottle;
-        mQ = new MonkeyEventQueue(random, 0, false); // we manage throttle
+        mQ = new MonkeyEventRingQueue(mEventPool, random, 0, false, 256); // we manage throttle
         mOutputDirectory = outputDirectory;
 
         packagePermissions = new HashMap<>();
         for (ComponentName app : MainApps) {
-            packagePermissions.put(app.getPackageName(), AndroidDevice.getGrantedPermissions(app.getPackageName()));
+            packagePermissions.put(app.getPackageName(), getRequestedPermissions(app.getPackageName()));
         }
         mImageWriters = new ImageWriterQueue[imageWriterCount];
         for (int i = 0; i < 3; i++) {
@@ -252,22 +325,19 @@ public class MonkeySourceApeNative implements MonkeyEventSource {
         }
         getTotalActivities();
         connect();
+        if (pipelineObservation) {
+            mPipeline = new ObservationPipeline<>(new Callable<Observation>() {
+                @Override
+                public Observation call() {
+                    return prefetchObservation();
+                }
+            });
+            mPipeline.start();
+        }
 
         Logger.println("// device uuid is " + did);
     }
 
-    /**
-     * In mathematics, linear interpolation is a method of curve fitting using linear polynomials
-     * to construct new data points within the range of a discrete set of known data points.
-     * @param a
-     * @param b
-     * @param alpha
-     * @return
-     */
-    private static float lerp(float a, float b, float alpha) {
-        return (b - a) * alpha + a;
-    }
-
     /**
      * Connect to AccessibilityService
      */
@@ -282,8 +352,22 @@ public class MonkeySourceApeNative implements MonkeyEventSource {
         AccessibilityServiceInfo info = mUiAutomation.getServiceInfo();
         // Compress this node
         info.flags &= ~AccessibilityServiceInfo.FLAG_INCLUDE_NOT_IMPORTANT_VIEWS;
+        if (mSettleDetector != null) {
+            // window bounds changes come as TYPE_WINDOWS_CHANGED only with this flag
+            info.flags |= AccessibilityServiceInfo.FLAG_RETRIEVE_INTERACTIVE_WINDOWS;
+        }
 
         mUiAutomation.setServiceInfo(info);
+        mUiAutomation.setOnAccessibilityEventListener(new UiAutomation.OnAccessibilityEventListener() {
+            @Override
+            public void onAccessibilityEvent(AccessibilityEvent event) {
+                mMirrorTree.onAccessibilityEvent(event);
+                TopActivityTracker.onAccessibilityEvent(event);
+                if (mSettleDetector != null) {
+                    mSettleDetector.onAccessibilityEvent(event);
+                }
+            }
+        });
     }
 
     /**
@@ -304,13 +388,32 @@ public class MonkeySourceApeNative implements MonkeyEventSource {
     }
 
     public void tearDown() {
+        if (mPipeline != null) {
+            mPipeline.tearDown();
+        }
         this.disconnect();
         this.printCoverage();
+        mMirrorTree.printStatistics();
+        TopActivityTracker.printStatistics();
+        Logger.infoFormat("tree cache: %d steps answered by tree hash", mCachedTreeHits);
+        Logger.infoFormat("plans: %d operates planned, %d plans dropped", mPlannedSteps, mPlanFailures);
+        Logger.infoFormat("black widget rects: %d click points moved out", mShieldedPoints);
+        if (mSettleDetector != null) {
+            mSettleDetector.printStatistics();
+        }
+        AndroidDevice.getTextInputChannel().printStatistics();
         for (ImageWriterQueue writer : mImageWriters) {
             writer.tearDown();
         }
     }
 
+    /**
+     * Write output such as logs on an image writer, done at the latest by tearDown.
+     */
+    public void postOutput(Runnable work) {
+        nextImageWriter().add(work);
+    }
+
     public boolean validate() {
         return mHandlerThread.isAlive();
     }
@@ -356,6 +459,10 @@ public class MonkeySourceApeNative implements MonkeyEventSource {
     }
 
     public AccessibilityNodeInfo getRootInActiveWindowSlow() {
+        if (mSettleDetector != null) {
+            mSettleDetector.waitForSettle(currentActivity, settleTimeout);
+            return mUiAutomation.getRootInActiveWindow();
+        }
         try {
             mUiAutomation.waitForIdle(1000, 1000 * 10);
         } catch (TimeoutException e) {
@@ -380,9 +487,7 @@ public class MonkeySourceApeNative implements MonkeyEventSource {
     }
 
     private final void clearEvent() {
-        while (!mQ.isEmpty()) {
-            MonkeyEvent e = mQ.removeFirst();
-        }
+        mQ.clear();
     }
 
     /**
@@ -410,7 +515,16 @@ public class MonkeySourceApeNative implements MonkeyEventSource {
      * @return the first event in the queue
      */
     public MonkeyEvent getNextEvent() {
+        // the monkey is done with the event it got last time
+        mEventPool.recycle(mInjectingEvent);
+        mInjectingEvent = null;
         checkAppActivity();
+        if (mPipeline != null && hasEvent()) {
+            // events were queued over the prefetched observation, it is stale once they run
+            if (mPipeline.await() != null) {
+                Logger.println("// drop the prefetched observation");
+            }
+        }
         if (!hasEvent()) {
             try {
                 generateEvents();
@@ -422,7 +536,17 @@ public class MonkeySourceApeNative implements MonkeyEventSource {
             }
         }
         mEventCount++;
-        return popEvent();
+        MonkeyEvent event = popEvent();
+        if (mSettleDetector != null && !(event instanceof MonkeyThrottleEvent)) {
+            mSettleDetector.onAction();
+        }
+        if (mPipeline != null && !hasEvent() && event instanceof MonkeyThrottleEvent && mPlan.isEmpty()) {
+            // everything of the last action is injected, observe while the throttle sleeps
+            mPipelineWindow = ((MonkeyThrottleEvent) event).getThrottle();
+            mPipeline.request();
+        }
+        mInjectingEvent = event;
+        return event;
     }
 
     public Random getRandom() {
@@ -608,7 +732,7 @@ public class MonkeySourceApeNative implements MonkeyEventSource {
         if (throttle < 0) {
             throttle = -throttle;
         }
-        addEvent(new MonkeyThrottleEvent(throttle));
+        addEvent(mEventPool.obtainThrottleEvent(throttle));
     }
 
     protected void generateActivateEvent() { // duplicated with custmozie
@@ -630,28 +754,28 @@ public class MonkeySourceApeNative implements MonkeyEventSource {
     }
 
     protected void generateKeyEvent(int key) {
-        MonkeyKeyEvent e = new MonkeyKeyEvent(KeyEvent.ACTION_DOWN, key);
-        addEvent(e);
-
-        e = new MonkeyKeyEvent(KeyEvent.ACTION_UP, key);
-        addEvent(e);
+        addEvent(mEventPool.obtainKeyEvent(KeyEvent.ACTION_DOWN, key));
+        addEvent(mEventPool.obtainKeyEvent(KeyEvent.ACTION_UP, key));
     }
 
-    private void attemptToSendTextByKeyEvents(String inputText) {
-        char[] szRes = inputText.toCharArray(); // Convert String to Char array
-
-        KeyCharacterMap CharMap;
-        if (Build.VERSION.SDK_INT >= 11) // My soft runs until API 5
-            CharMap = KeyCharacterMap.load(KeyCharacterMap.VIRTUAL_KEYBOARD);
-        else
-            CharMap = KeyCharacterMap.load(KeyCharacterMap.ALPHA);
-
-        KeyEvent[] events = CharMap.getEvents(szRes);
-
-        for (int i = 0; i < events.length; i += 2) {
-            generateKeyEvent(events[i].getKeyCode());
+    /**
+     * Move a point out of the black widget rects of the current page, to a free point of area
+     * if there is one, otherwise of the display.
+     */
+    private PointF shieldBlackRect(PointF p, Rect area) {
+        BlackRectIndex blackRects = mBlackRects;
+        if (blackRects == null || !blackRects.getActivity().equals(this.currentActivity)) {
+            return shieldBlackRect(p);
         }
-        generateKeyEvent(KeyEvent.KEYCODE_ENTER);
+        if (!blackRects.contains(p)) {
+            return p;
+        }
+        mShieldedPoints++;
+        PointF free = area != null ? blackRects.sampleFree(area, getRandom()) : null;
+        if (free == null) {
+            free = blackRects.sampleFree(AndroidDevice.getDisplayBounds(), getRandom());
+        }
+        return free != null ? free : p;
     }
 
     private PointF shieldBlackRect(PointF p) {
@@ -695,25 +819,27 @@ public class MonkeySourceApeNative implements MonkeyEventSource {
         if (useRandomClick) {
             int width = bounds.width() > 0 ? getRandom().nextInt(bounds.width()) : 0;
             int height = bounds.height() > 0 ? getRandom().nextInt(bounds.height()) : 0;
-            p1 = new PointF(bounds.left + width, bounds.top + height);
-        } else
-            p1 = new PointF(bounds.left + bounds.width()/2.0f, bounds.top + bounds.height()/2.0f);
+            p1 = mClickPoint;
+            p1.set(bounds.left + width, bounds.top + height);
+        } else {
+            p1 = mClickPoint;
+            p1.set(bounds.left + bounds.width() / 2.0f, bounds.top + bounds.height() / 2.0f);
+        }
         if (!bounds.contains((int) p1.x, (int) p1.y)) {
             Logger.warningFormat("Invalid bounds: %s", bounds);
             return;
         }
-        p1 = shieldBlackRect(p1);
+        p1 = shieldBlackRect(p1, bounds);
         long downAt = SystemClock.uptimeMillis();
 
-        addEvent(new MonkeyTouchEvent(MotionEvent.ACTION_DOWN).setDownTime(downAt).addPointer(0, p1.x, p1.y)
+        addEvent(mEventPool.obtainTouchEvent(MotionEvent.ACTION_DOWN).setDownTime(downAt).addPointer(0, p1.x, p1.y)
                 .setIntermediateNote(false));
 
         if (waitTime > 0) {
-            MonkeyWaitEvent we = new MonkeyWaitEvent(waitTime);
-            addEvent(we);
+            addEvent(mEventPool.obtainWaitEvent(waitTime));
         }
 
-        addEvent(new MonkeyTouchEvent(MotionEvent.ACTION_UP).setDownTime(downAt).addPointer(0, p1.x, p1.y)
+        addEvent(mEventPool.obtainTouchEvent(MotionEvent.ACTION_UP).setDownTime(downAt).addPointer(0, p1.x, p1.y)
                 .setIntermediateNote(false));
     }
 
@@ -723,8 +849,10 @@ public class MonkeySourceApeNative implements MonkeyEventSource {
             nodeRect = AndroidDevice.getDisplayBounds();
         }
 
-        PointF start = new PointF(nodeRect.exactCenterX(), nodeRect.exactCenterY());
-        PointF end;
+        float startX = nodeRect.exactCenterX();
+        float startY = nodeRect.exactCenterY();
+        float endX = startX;
+        float endY = startY;
 
         switch (type) {
             case SCROLL_BOTTOM_UP:
@@ -732,40 +860,25 @@ public class MonkeySourceApeNative implements MonkeyEventSource {
                 if (top < displayBounds.top) {
                     top = displayBounds.top;
                 }
-                end = new PointF(start.x, top); // top is inclusive
+                endY = top; // top is inclusive
                 break;
             case SCROLL_TOP_DOWN:
-                end = new PointF(start.x, displayBounds.bottom - 1); // bottom is
+                endY = displayBounds.bottom - 1; // bottom is
                 // exclusive
                 break;
             case SCROLL_LEFT_RIGHT:
-                end = new PointF(displayBounds.right - 1, start.y); // right is
+                endX = displayBounds.right - 1; // right is
                 // exclusive
                 break;
             case SCROLL_RIGHT_LEFT:
-                end = new PointF(displayBounds.left, start.y); // left is inclusive
+                endX = displayBounds.left; // left is inclusive
                 break;
             default:
                 throw new RuntimeException("Should not reach here");
         }
 
-        long downAt = SystemClock.uptimeMillis();
-
-
-        addEvent(new MonkeyTouchEvent(MotionEvent.ACTION_DOWN).setDownTime(downAt).addPointer(0, start.x, start.y)
-                .setIntermediateNote(false).setType(1));
-
-        int steps = 10;
-        long waitTime = swipeDuration / steps;
-        for (int i = 0; i < steps; i++) {
-            float alpha = i / (float) steps;
-            addEvent(new MonkeyTouchEvent(MotionEvent.ACTION_MOVE).setDownTime(downAt)
-                    .addPointer(0, lerp(start.x, end.x, alpha), lerp(start.y, end.y, alpha)).setIntermediateNote(true).setType(1));
-            addEvent(new MonkeyWaitEvent(waitTime));
-        }
-
-        addEvent(new MonkeyTouchEvent(MotionEvent.ACTION_UP).setDownTime(downAt).addPointer(0, end.x, end.y)
-                .setIntermediateNote(false).setType(1));
+        // the whole swipe is one event timed by deadlines, not moves and waits of their own
+        addEvent(mEventPool.obtainGestureEvent(startX, startY, endX, endY, swipeDuration, swipeSteps, SWIPE_PROFILE));
     }
 
     /**
@@ -782,8 +895,8 @@ public class MonkeySourceApeNative implements MonkeyEventSource {
                 generateClearEvent(action.getBoundingBox());
 
             if (action.isRawInput()) {
-                if (!AndroidDevice.sendText(inputText))
-                    attemptToSendTextByKeyEvents(inputText);
+                // after the clear events, by the ADB keyboard or else as keys and ENTER
+                addEvent(new MonkeyTextEvent(inputText, true));
                 return;
             }
 
@@ -791,8 +904,8 @@ public class MonkeySourceApeNative implements MonkeyEventSource {
                 Logger.println("MonkeyIMEEvent added " + inputText);
                 addEvent(new MonkeyIMEEvent(inputText));
             } else {
-                Logger.println("MonkeyCommandEvent added " + inputText);
-                addEvent(new MonkeyCommandEvent("input text " + inputText));
+                Logger.println("MonkeyTextEvent added " + inputText);
+                addEvent(new MonkeyTextEvent(inputText, false));
             }
 
         } else {
@@ -830,6 +943,14 @@ public class MonkeySourceApeNative implements MonkeyEventSource {
      */
     public boolean dealWithSystemUI(AccessibilityNodeInfo info)
     {
+        if (isSystemUI(info)) {
+            generateSystemUIEvents();
+            return true;
+        }
+        return false;
+    }
+
+    private boolean isSystemUI(AccessibilityNodeInfo info) {
         if(info == null || info.getPackageName() == null)
         {
             Logger.println("get null accessibility node");
@@ -837,38 +958,69 @@ public class MonkeySourceApeNative implements MonkeyEventSource {
         }
         String packageName = info.getPackageName().toString();
         if(packageName.equals("com.android.systemui")) {
-
             Logger.println("get notification window or other system windows");
-            Rect bounds = AndroidDevice.getDisplayBounds();
-            // press home
-            generateKeyEvent(KeyEvent.KEYCODE_HOME);
-            //scroll up
-            generateScrollEventAt(bounds, SCROLL_BOTTOM_UP);
-            // launch app
-            generateActivityEvents(randomlyPickMainApp(), false, false);
-            generateThrottleEvent(1000);
             return true;
         }
         return false;
     }
 
+    private void generateSystemUIEvents() {
+        Rect bounds = AndroidDevice.getDisplayBounds();
+        // press home
+        generateKeyEvent(KeyEvent.KEYCODE_HOME);
+        //scroll up
+        generateScrollEventAt(bounds, SCROLL_BOTTOM_UP);
+        // launch app
+        generateActivityEvents(randomlyPickMainApp(), false, false);
+        generateThrottleEvent(1000);
+    }
 
     /**
-     * generate a random event based on mFactor
+     * The top activity and gui tree of one step, and the operate native decided on them.
      */
-    protected void generateEvents() {
-        long start = System.currentTimeMillis();
-        if (hasEvent()) {
-            return;
-        }
+    private static class Observation {
+        ComponentName topActivityName;
+        boolean systemUI;
+        int guiTreeLength;
+        String stringOfGuiTree = "";
+        /**
+         * structural hash of the tree and activity, 0 if the tree cache is not used
+         */
+        long treeHash;
+        /**
+         * mirrored root of the tree, to dump it as xml if native cannot read the buffer
+         */
+        MirrorTree.Node root;
+        /**
+         * the tree was passed to native recently, only its hash is sent; the mirrored root is kept
+         * to write the buffer if native has dropped it since
+         */
+        MirrorTree.Node cachedTree;
+        Operate operate;
+        /**
+         * black widget rects native resolved for this page, null if native cannot export them
+         */
+        BlackRectIndex blackRects;
+        long rpcCost;
+    }
 
-        resetRotation();
+    /**
+     * Capture the top activity and the gui tree of the active window, as soon as it is settled.
+     * Runs on the pipeline worker when pipelineObservation is on, so it must not queue events
+     * nor call native.
+     *
+     * @param timeout ms to wait at most for the ui to settle
+     */
+    private Observation observe(long timeout) {
+        Observation observation = new Observation();
         ComponentName topActivityName = null;
-        String stringOfGuiTree = "";
-        Action fuzzingAction = null;
         AccessibilityNodeInfo info = null;
         int repeat = refectchInfoCount;
 
+        if (mSettleDetector != null) {
+            mSettleDetector.waitForSettle(currentActivity, timeout);
+        }
+
         // try to get AccessibilityNodeInfo quickly for several times.
         while (repeat-- > 0) {
             topActivityName = this.getTopActivityComponentName();
@@ -880,8 +1032,6 @@ public class MonkeySourceApeNative implements MonkeyEventSource {
             }
 
             Logger.println("// Event id: " + mEventId);
-            if(dealWithSystemUI(info))
-                return;
             break;
         }
 
@@ -891,40 +1041,279 @@ public class MonkeySourceApeNative implements MonkeyEventSource {
             info = getRootInActiveWindowSlow();
             if (info != null) {
                 Logger.println("// Event id: " + mEventId);
-                if(dealWithSystemUI(info))
-                    return;
             }
         }
+        observation.topActivityName = topActivityName;
+        if (info != null && isSystemUI(info)) {
+            observation.systemUI = true;
+            info.recycle();
+            return observation;
+        }
 
         // If node is not null, build tree and recycle this resource.
+        boolean useBuffer = useGuiTreeBuffer && AiClient.isGuiTreeBufferSupported();
         if (info!=null){
-            stringOfGuiTree = TreeBuilder.dumpDocumentStrWithOutTree(info);
-            if (mVerbose > 3) Logger.println("//" + stringOfGuiTree);
+            MirrorTree.Node root = mMirrorTree.update(info);
+            observation.root = root;
+            if (useBuffer && treeCacheSize > 0 && AiClient.isTreeCacheSupported()
+                    && topActivityName != null && !mMirrorTree.isTruncated()) {
+                observation.treeHash = treeHash(root, topActivityName.getClassName());
+                if (isRecentTree(observation.treeHash)) {
+                    observation.cachedTree = root;
+                }
+            }
+            if (useBuffer && observation.cachedTree == null) {
+                observation.guiTreeLength = mGuiTreeBuffer.build(root, mMirrorTree.isTruncated());
+            }
+            if (!useBuffer || saveGUITreeToXmlEveryStep || mVerbose > 3) {
+                observation.stringOfGuiTree = mTreeBuilder.dump(root);
+                if (mVerbose > 3) Logger.println("//" + observation.stringOfGuiTree);
+            }
             info.recycle();
         }
+        return observation;
+    }
+
+    private boolean hasGuiTree(Observation observation) {
+        return observation.topActivityName != null && (observation.guiTreeLength > 0
+                || observation.cachedTree != null || !"".equals(observation.stringOfGuiTree));
+    }
+
+    private static long treeHash(MirrorTree.Node root, String activity) {
+        long hash = MirrorTree.hash(MirrorTree.hash(root), activity);
+        // 0 means no hash to native
+        return hash == 0 ? 1 : hash;
+    }
+
+    private boolean isRecentTree(long treeHash) {
+        for (int i = 0; i < mRecentTreeCount; i++) {
+            if (mRecentTrees[i] == treeHash) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remember a tree native now keeps in its cache, the oldest one is forgotten as native evicts it.
+     */
+    private void addRecentTree(long treeHash) {
+        if (isRecentTree(treeHash)) {
+            return;
+        }
+        mRecentTrees[mRecentTreeNext] = treeHash;
+        mRecentTreeNext = (mRecentTreeNext + 1) % mRecentTrees.length;
+        mRecentTreeCount = Math.min(mRecentTreeCount + 1, mRecentTrees.length);
+    }
+
+    /**
+     * Ask native for the operate on the observed gui tree, leaves operate null if that failed.
+     */
+    private void decide(Observation observation) {
+        if (!hasGuiTree(observation)) {
+            return;
+        }
+        try {
+            long rpc_start = System.currentTimeMillis();
+            String activity = observation.topActivityName.getClassName();
+            Operate operate = null;
+            if (observation.cachedTree != null) {
+                operate = AiClient.getActionByTreeHash(activity, observation.treeHash, planSteps,
+                        mExecutedPlanSteps);
+                if (operate == null) {
+                    // evicted on the native side, send the whole tree again
+                    observation.guiTreeLength = mGuiTreeBuffer.build(observation.cachedTree, false);
+                }
+                observation.cachedTree = null;
+            }
+            if (operate != null) {
+                mCachedTreeHits++;
+            } else if (observation.guiTreeLength > 0) {
+                operate = AiClient.getAction(activity, mGuiTreeBuffer.getBuffer(), observation.guiTreeLength,
+                        observation.treeHash, planSteps, mExecutedPlanSteps);
+                if (operate == null) {
+                    operate = decideOnXml(observation);
+                } else if (observation.treeHash != 0) {
+                    addRecentTree(observation.treeHash);
+                }
+            } else {
+                operate = AiClient.getAction(activity, observation.stringOfGuiTree);
+            }
+            // native has queued again what was not run of the last plan
+            mExecutedPlanSteps = 0;
+            if (operate == null) {
+                Logger.errorPrintln("native has no operate for the gui tree of " + activity);
+                return;
+            }
+            operate.throttle += (int) this.mThrottle;
+            if (operate.plan != null) {
+                for (Operate plannedOperate : operate.plan) {
+                    plannedOperate.throttle += (int) this.mThrottle;
+                }
+            }
+            int[] blackRects = AiClient.getBlackWidgetRects(activity);
+            if (blackRects != null) {
+                observation.blackRects = new BlackRectIndex(activity, blackRects, AndroidDevice.getDisplayBounds());
+            }
+            observation.rpcCost = System.currentTimeMillis() - rpc_start;
+            observation.operate = operate;
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Ask native again with the xml of a tree whose buffer it did not read, an older library or
+     * a tree it failed to verify. If the xml works the buffer is turned off for the rest of the run,
+     * it would fail the same way every step.
+     */
+    private Operate decideOnXml(Observation observation) {
+        if ("".equals(observation.stringOfGuiTree)) {
+            observation.stringOfGuiTree = mTreeBuilder.dump(observation.root);
+        }
+        Operate operate = AiClient.getAction(observation.topActivityName.getClassName(),
+                observation.stringOfGuiTree);
+        if (operate != null && AiClient.isGuiTreeBufferSupported()) {
+            Logger.warningPrintln("native did not read the gui tree buffer, send xml from now on");
+            AiClient.disableGuiTreeBuffer();
+        }
+        return operate;
+    }
+
+    /**
+     * Run the next operate of the plan native made on the last observed page, without observing
+     * and asking again, if the activity is still the same and the target is still on screen.
+     *
+     * @return false if the plan was dropped, the caller observes as usual then
+     */
+    private boolean runPlannedOperate() {
+        Operate operate = mPlan.poll();
+        if (mSettleDetector != null) {
+            mSettleDetector.waitForSettle(currentActivity, settleTimeout);
+        }
+        ComponentName topActivityName = getTopActivityComponentName();
+        boolean holds = mPlanActivity.equals(topActivityName);
+        if (holds && operate.widgetKey != 0) {
+            AccessibilityNodeInfo info = getRootInActiveWindow();
+            if (info != null) {
+                MirrorTree.Node root = mMirrorTree.update(info);
+                holds = MirrorTree.findWidget(root, operate.widgetKey) != null;
+                info.recycle();
+            } else {
+                holds = false;
+            }
+        }
+        if (!holds) {
+            Logger.println("// the target of the planned operate is gone, observe again");
+            mPlanFailures++;
+            mPlan.clear();
+            return false;
+        }
+        Logger.println("// Event id: " + mEventId);
+        Logger.println("planned action type: " + operate.act);
+        ActionType type = operate.act;
+        Rect rect = operate.getBounds();
+        if (type.requireTarget() && rect == null) {
+            type = ActionType.NOP;
+        }
+        timeStep++;
+        mExecutedPlanSteps++;
+        generateEventsForAction(toModelAction(type, topActivityName,
+                rect == null ? new Rect(0, 0, 0, 0) : rect, operate));
+        return true;
+    }
+
+    private ModelAction toModelAction(ActionType type, ComponentName topActivityName, Rect rect, Operate operate) {
+        List<PointF> pointFloats = new ArrayList<>();
+        ModelAction modelAction = new ModelAction(type, topActivityName, pointFloats, rect);
+        modelAction.setThrottle(operate.throttle);
+
+        // Complete the info for specific action type
+        switch (type) {
+            case CLICK:
+                modelAction.setInputText(operate.text);
+                modelAction.setClearText(operate.clear);
+                modelAction.setEditText(operate.editable);
+                modelAction.setRawInput(operate.rawinput);
+                modelAction.setUseAdbInput(operate.adbinput);
+                break;
+            case LONG_CLICK:
+                modelAction.setWaitTime(operate.waitTime);
+                break;
+            case SHELL_EVENT:
+                modelAction.setShellCommand(operate.text);
+                modelAction.setWaitTime(operate.waitTime);
+                break;
+            default:
+                break;
+        }
+        return modelAction;
+    }
+
+    /**
+     * Observe ahead of time on the pipeline worker, once the ui is idle or the throttle window is
+     * over. Native is asked on the monkey thread only, once checkAppActivity has kept the
+     * observation: a decision native made on a dropped observation could not be taken back.
+     */
+    private Observation prefetchObservation() {
+        if (mSettleDetector == null) {
+            try {
+                mUiAutomation.waitForIdle(pipelineIdleTimeout, mPipelineWindow);
+            } catch (TimeoutException e) {
+                // the throttle is over, capture what is there as the serial loop would
+            }
+        }
+        return observe(mPipelineWindow);
+    }
+
+    /**
+     * generate a random event based on mFactor
+     */
+    protected void generateEvents() {
+        long start = System.currentTimeMillis();
+        if (hasEvent()) {
+            return;
+        }
+
+        if (!mPlan.isEmpty() && runPlannedOperate()) {
+            return;
+        }
+
+        resetRotation();
+        Observation observation = mPipeline != null ? mPipeline.await() : null;
+        if (observation == null) {
+            observation = observe(settleTimeout);
+        }
+        if (!observation.systemUI) {
+            decide(observation);
+        }
+        if (observation.systemUI) {
+            generateSystemUIEvents();
+            return;
+        }
+        ComponentName topActivityName = observation.topActivityName;
+        String stringOfGuiTree = observation.stringOfGuiTree;
+        Action fuzzingAction = null;
 
         // For user specified actions, during executing, fuzzing is not allowed.
         boolean allowFuzzing = true;
 
-        if (topActivityName != null && !"".equals(stringOfGuiTree)) {
+        if (hasGuiTree(observation) && observation.operate != null) {
+            mBlackRects = observation.blackRects;
             try {
-                long rpc_start = System.currentTimeMillis();
-
-                Operate operate = AiClient.getAction(topActivityName.getClassName(), stringOfGuiTree);
-                operate.throttle += (int) this.mThrottle;
+                Operate operate = observation.operate;
                 // For user specified actions, during executing, fuzzing is not allowed.
                 allowFuzzing = operate.allowFuzzing;
                 ActionType type = operate.act;
                 Logger.println("action type: " + type.toString());
-                Logger.println("rpc cost time: " + (System.currentTimeMillis() - rpc_start));
+                Logger.println("rpc cost time: " + observation.rpcCost);
 
                 Rect rect = new Rect(0, 0, 0, 0);
-                List<PointF> pointFloats = new ArrayList<>();
 
                 if (type.requireTarget()) {
-                    List<Short> points = operate.pos;
-                    if (points != null && points.size() >= 4) {
-                        rect = new Rect((Short) points.get(0), (Short) points.get(1), (Short) points.get(2), (Short) points.get(3));
+                    Rect bounds = operate.getBounds();
+                    if (bounds != null) {
+                        rect = bounds;
                     } else {
                         type = ActionType.NOP;
                     }
@@ -941,16 +1330,7 @@ public class MonkeySourceApeNative implements MonkeyEventSource {
                             "step-%d-%s-%s-%s.xml", timeStep, sid, aid, timeMillis));
                     Logger.infoFormat("Saving GUI tree to %s at step %d %s %s",
                             xmlFile, timeStep, sid, aid);
-
-                    BufferedWriter out;
-                    try {
-                        out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(xmlFile, false)));
-                        out.write(stringOfGuiTree);
-                        out.flush();
-                        out.close();
-                    } catch (java.io.FileNotFoundException e) {
-                    } catch (java.io.IOException e) {
-                    }
+                    saveGuiTree(xmlFile, stringOfGuiTree);
                 }
 
                 if (takeScreenshotForEveryStep) {
@@ -962,31 +1342,13 @@ public class MonkeySourceApeNative implements MonkeyEventSource {
                     takeScreenshot(screenshotFile);
                 }
 
-                ModelAction modelAction = new ModelAction(type, topActivityName, pointFloats, rect);
-                modelAction.setThrottle(operate.throttle);
-
-                // Complete the info for specific action type
-                switch (type) {
-                    case CLICK:
-                        modelAction.setInputText(operate.text);
-                        modelAction.setClearText(operate.clear);
-                        modelAction.setEditText(operate.editable);
-                        modelAction.setRawInput(operate.rawinput);
-                        modelAction.setUseAdbInput(operate.adbinput);
-                        break;
-                    case LONG_CLICK:
-                        modelAction.setWaitTime(operate.waitTime);
-                        break;
-                    case SHELL_EVENT:
-                        modelAction.setShellCommand(operate.text);
-                        modelAction.setWaitTime(operate.waitTime);
-                        break;
-                    default:
-                        break;
+                generateEventsForAction(toModelAction(type, topActivityName, rect, operate));
+                if (operate.plan != null) {
+                    mPlan.addAll(operate.plan);
+                    mPlanActivity = topActivityName;
+                    mPlannedSteps += operate.plan.size();
                 }
 
-                generateEventsForAction(modelAction);
-
                 // check if could select next fuzz action from full fuzz-able action options.
                 switch (type) {
                     case RESTART:
@@ -1009,7 +1371,7 @@ public class MonkeySourceApeNative implements MonkeyEventSource {
         } else {
             Logger.println(
                     "// top activity is null or the corresponding tree is null, " +
-                    "accessibility maybe error, fuzz needed."
+                    "accessibility maybe error, or native has no operate, fuzz needed."
             );
             fuzzingAction = generateFuzzingAction(fullFuzzing);
             generateEventsForAction(fuzzingAction);
@@ -1041,6 +1403,23 @@ public class MonkeySourceApeNative implements MonkeyEventSource {
         nextImageWriter().add(map, screenshotFile);
     }
 
+    private void saveGuiTree(final File xmlFile, final String guiTree) {
+        nextImageWriter().add(new Runnable() {
+            @Override
+            public void run() {
+                BufferedWriter out;
+                try {
+                    out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(xmlFile, false)));
+                    out.write(guiTree);
+                    out.flush();
+                    out.close();
+                } catch (java.io.FileNotFoundException e) {
+                } catch (java.io.IOException e) {
+                }
+            }
+        });
+    }
+
     /**
      * According to the action type of the action argument, generate its corresponding
      * event, and set throttle if necessary.
@@ -1143,7 +1522,7 @@ public class MonkeySourceApeNative implements MonkeyEventSource {
         for (CustomEvent event : events) {
             if (event instanceof ClickEvent) {
                 PointF point = ((ClickEvent) event).getPoint();
-                point = shieldBlackRect(point);
+                point = shieldBlackRect(point, null);
                 ((ClickEvent) event).setPoint(point);
             }
             List<MonkeyEvent> monkeyEvents = event.generateMonkeyEvents();
@@ -1157,25 +1536,48 @@ public class MonkeySourceApeNative implements MonkeyEventSource {
         }
     }
 
+    private static String[] getRequestedPermissions(String packageName) {
+        PackageCache cache = PackageCache.get(AndroidDevice.packageManager, packageName);
+        String[] permissions = cache == null ? null : cache.getPermissions();
+        if (permissions == null) {
+            permissions = AndroidDevice.getGrantedPermissions(packageName);
+            if (cache != null && permissions != null) {
+                cache.setPermissions(permissions);
+            }
+        }
+        return permissions;
+    }
+
     private void getTotalActivities() {
         try {
             for (String p : MonkeyUtils.getPackageFilter().getmValidPackages()) {
-                PackageInfo packageInfo = AndroidDevice.packageManager.getPackageInfo(p, PackageManager.GET_ACTIVITIES);
-                if (packageInfo != null) {
-                    if (packageInfo.packageName.equals("com.android.packageinstaller"))
+                if (p.equals("com.android.packageinstaller"))
+                    continue;
+                PackageCache cache = PackageCache.get(AndroidDevice.packageManager, p);
+                String[] activities = cache == null ? null : cache.getActivities();
+                if (activities == null) {
+                    PackageInfo packageInfo = AndroidDevice.packageManager.getPackageInfo(p, PackageManager.GET_ACTIVITIES);
+                    if (packageInfo == null)
                         continue;
-                    if(packageInfo.activities != null){
-                        for (ActivityInfo activityInfo : packageInfo.activities) {
-                            mTotalActivities.add(activityInfo.name);
-                        }
+                    activities = new String[packageInfo.activities == null ? 0 : packageInfo.activities.length];
+                    for (int i = 0; i < activities.length; i++) {
+                        activities[i] = packageInfo.activities[i].name;
+                    }
+                    if (cache != null) {
+                        cache.setActivities(activities);
                     }
                 }
+                mTotalActivities.addAll(Arrays.asList(activities));
             }
         } catch (Exception e) {
         }
     }
 
     private String getAppVersionCode() {
+        PackageCache cache = PackageCache.get(AndroidDevice.packageManager, this.packageName);
+        if (cache != null) {
+            return cache.getVersionName();
+        }
         try {
             for (String p : MonkeyUtils.getPackageFilter().getmValidPackages()) {
                 PackageInfo packageInfo = AndroidDevice.packageManager.getPackageInfo(p, PackageManager.GET_ACTIVITIES);
@@ -0,0 +1,114 @@
+/*
+ * This code is licensed under the Fastbot license. You may obtain a copy of this license in the LICENSE.txt file in the root directory of this source tree.
+ */
+
+package com.android.commands.monkey.source;
+
+import com.android.commands.monkey.utils.Logger;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Runs one observation at a time on a worker thread, so that the next gui tree is captured
+ * while the monkey thread sleeps through the throttle of the last action.
+ *
+ * At most one request is in flight. The monkey thread must {@link #await()} it before touching
+ * anything the observation task uses.
+ */
+class ObservationPipeline<T> implements Runnable {
+
+    private final Callable<T> mTask;
+    private final Thread mThread;
+
+    private boolean mRequested = false;
+    private T mResult = null;
+
+    private int mRequests = 0;
+    private int mReady = 0;
+    private long mWaitTime = 0;
+
+    ObservationPipeline(Callable<T> task) {
+        mTask = task;
+        mThread = new Thread(this, "ObservationPipeline");
+        mThread.setDaemon(true);
+    }
+
+    public void start() {
+        mThread.start();
+    }
+
+    public void tearDown() {
+        await();
+        mThread.interrupt();
+        Logger.infoFormat("observation pipeline: %d requests, %d ready when needed, %d ms waited",
+                mRequests, mReady, mWaitTime);
+    }
+
+    /**
+     * Start the next observation, the result of a previous one that was not taken is dropped.
+     */
+    public synchronized void request() {
+        mRequested = true;
+        mResult = null;
+        mRequests++;
+        notifyAll();
+    }
+
+    /**
+     * Wait for the observation in flight.
+     *
+     * @return the observation, null if none was requested or it failed
+     */
+    public synchronized T await() {
+        if (!mRequested && mResult == null) {
+            return null;
+        }
+        if (mRequested) {
+            long start = System.currentTimeMillis();
+            boolean interrupted = false;
+            // the caller goes on to use what the task uses, so never return while it runs
+            while (mRequested) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            mWaitTime += System.currentTimeMillis() - start;
+        } else {
+            mReady++;
+        }
+        T result = mResult;
+        mResult = null;
+        return result;
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            synchronized (this) {
+                try {
+                    while (!mRequested) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            T result = null;
+            try {
+                result = mTask.call();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            synchronized (this) {
+                mResult = result;
+                mRequested = false;
+                notifyAll();
+            }
+        }
+    }
+}
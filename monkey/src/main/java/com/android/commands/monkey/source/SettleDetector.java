@@ -0,0 +1,166 @@
+/*
+ * This code is licensed under the Fastbot license. You may obtain a copy of this license in the LICENSE.txt file in the root directory of this source tree.
+ */
+
+package com.android.commands.monkey.source;
+
+import android.os.SystemClock;
+import android.view.accessibility.AccessibilityEvent;
+
+import com.android.commands.monkey.utils.Logger;
+
+import java.util.HashMap;
+
+/**
+ * Tells when the screen has stopped changing, from the accessibility event stream.
+ *
+ * The screen is settled once no content, scroll or window (frame) change came in for the quiet
+ * period of the current activity. The quiet period is learned per activity: it grows when the ui
+ * changes again after being declared settled, before the next action, and it shrinks towards
+ * the largest gap seen inside the bursts of changes of that activity.
+ */
+public class SettleDetector {
+
+    private static final int SETTLE_EVENT_TYPES = AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED
+            | AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED
+            | AccessibilityEvent.TYPE_VIEW_SCROLLED
+            | AccessibilityEvent.TYPE_VIEW_TEXT_CHANGED
+            | AccessibilityEvent.TYPE_WINDOWS_CHANGED;
+
+    private final long mMinQuiet;
+    private final long mMaxQuiet;
+    private final long mDefaultQuiet;
+
+    private final Object mLock = new Object();
+    private final HashMap<String, Long> mQuietPeriods = new HashMap<>();
+
+    /**
+     * uptime of the last ui change, and the largest gap between two changes since the last action
+     */
+    private long mLastChangeTime = 0;
+    private long mBurstGap = 0;
+    private boolean mInBurst = false;
+
+    /**
+     * activity declared settled and not acted on yet, a change now means it settled too early
+     */
+    private String mSettledActivity = null;
+    private long mSettledChangeTime = 0;
+
+    private int mSettles = 0;
+    private int mTimeouts = 0;
+    private int mEarlySettles = 0;
+    private long mWaitTime = 0;
+
+    /**
+     * @param minQuiet lower bound of the learned quiet period in ms
+     * @param maxQuiet upper bound of the learned quiet period in ms
+     * @param defaultQuiet quiet period of an activity seen for the first time
+     */
+    public SettleDetector(long minQuiet, long maxQuiet, long defaultQuiet) {
+        mMinQuiet = minQuiet;
+        mMaxQuiet = maxQuiet;
+        mDefaultQuiet = Math.max(minQuiet, Math.min(maxQuiet, defaultQuiet));
+    }
+
+    /**
+     * Called on the UiAutomation thread for every accessibility event.
+     */
+    public void onAccessibilityEvent(AccessibilityEvent event) {
+        if ((event.getEventType() & SETTLE_EVENT_TYPES) == 0) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        synchronized (mLock) {
+            // the gap before the first change after an action is the latency of the app, not of the burst
+            long gap = now - mLastChangeTime;
+            if (mInBurst && gap < mMaxQuiet && gap > mBurstGap) {
+                mBurstGap = gap;
+            }
+            mInBurst = true;
+            if (mSettledActivity != null) {
+                long late = now - mSettledChangeTime;
+                if (late < mMaxQuiet) {
+                    long quiet = getQuietPeriod(mSettledActivity);
+                    mQuietPeriods.put(mSettledActivity, Math.min(mMaxQuiet, Math.max(quiet, late * 5 / 4)));
+                    mEarlySettles++;
+                }
+                mSettledActivity = null;
+            }
+            mLastChangeTime = now;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Called before the events of the next action are injected, changes from now on are its effect.
+     */
+    public void onAction() {
+        synchronized (mLock) {
+            mSettledActivity = null;
+            mBurstGap = 0;
+            mInBurst = false;
+        }
+    }
+
+    /**
+     * Block until the ui has been quiet for the quiet period of activity.
+     *
+     * @param timeout ms to wait at most
+     * @return false if the ui was still changing when the timeout ran out
+     */
+    public boolean waitForSettle(String activity, long timeout) {
+        long start = SystemClock.uptimeMillis();
+        long deadline = start + timeout;
+        synchronized (mLock) {
+            long quiet = getQuietPeriod(activity);
+            boolean settled;
+            while (true) {
+                long now = SystemClock.uptimeMillis();
+                long idle = now - mLastChangeTime;
+                if (idle >= quiet) {
+                    settled = true;
+                    break;
+                }
+                if (now >= deadline) {
+                    settled = false;
+                    break;
+                }
+                try {
+                    mLock.wait(Math.min(quiet - idle, deadline - now));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            mWaitTime += SystemClock.uptimeMillis() - start;
+            if (settled) {
+                mSettles++;
+                // no late change proved it too short yet, so creep towards what the bursts need
+                long learned = Math.max(mBurstGap * 3 / 2, quiet * 9 / 10);
+                mQuietPeriods.put(activity, Math.max(mMinQuiet, Math.min(mMaxQuiet, learned)));
+                mSettledActivity = activity;
+                mSettledChangeTime = mLastChangeTime;
+            } else {
+                mTimeouts++;
+                mSettledActivity = null;
+            }
+            return settled;
+        }
+    }
+
+    private long getQuietPeriod(String activity) {
+        Long quiet = mQuietPeriods.get(activity);
+        return quiet == null ? mDefaultQuiet : quiet;
+    }
+
+    public void printStatistics() {
+        synchronized (mLock) {
+            Logger.infoFormat("settle detector: %d settled, %d timeouts, %d settled too early, %d ms waited",
+                    mSettles, mTimeouts, mEarlySettles, mWaitTime);
+            for (String activity : mQuietPeriods.keySet()) {
+                Logger.infoFormat("settle detector: quiet period of %s is %d ms", activity, mQuietPeriods.get(activity));
+            }
+        }
+    }
+}
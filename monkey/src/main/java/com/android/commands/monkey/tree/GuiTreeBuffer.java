@@ -0,0 +1,201 @@
+/*
+ * This code is licensed under the Fastbot license. You may obtain a copy of this license in the LICENSE.txt file in the root directory of this source tree.
+ */
+
+package com.android.commands.monkey.tree;
+
+import android.graphics.Rect;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * guitree builder utils
+ * mirrored tree -> GuiTree flatbuffer in a reusable direct ByteBuffer,
+ * which native reads in place, see native/storage/GuiTree.fbs.
+ *
+ * The flatbuffer is written by hand so that no flatbuffers runtime is needed on the device
+ * classpath. Every GuiNode table has all fields present and shares one vtable, and nodes are
+ * laid out front to back in pre-order, so every offset points forward as the format requires.
+ */
+public class GuiTreeBuffer {
+
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+
+    /**
+     * file_identifier "FBGT"
+     */
+    private static final int FILE_IDENTIFIER = 'F' | ('B' << 8) | ('G' << 16) | ('T' << 24);
+
+    /**
+     * table GuiTree { root:GuiNode; truncated:bool; }
+     */
+    private static final int TREE_VTABLE = 8;
+    private static final int TREE_TABLE = 16;
+    private static final int TREE_ROOT = 4;
+    private static final int TREE_TRUNCATED = 8;
+
+    /**
+     * table GuiNode, field offsets inside the table, keep in sync with GuiTree.fbs
+     */
+    private static final int NODE_VTABLE = 28;
+    private static final int NODE_VTABLE_SIZE = 22;
+    private static final int NODE_INDEX = 4;
+    private static final int NODE_FLAGS = 8;
+    private static final int NODE_BOUNDS = 12;
+    private static final int NODE_TEXT = 28;
+    private static final int NODE_RESOURCE_ID = 32;
+    private static final int NODE_CLASS_NAME = 36;
+    private static final int NODE_PACKAGE_NAME = 40;
+    private static final int NODE_CONTENT_DESC = 44;
+    private static final int NODE_CHILDREN = 48;
+    private static final int NODE_TABLE_SIZE = 52;
+    private static final int HEADER_SIZE = 52;
+
+    private ByteBuffer mBuffer;
+    private int mPosition;
+
+    public GuiTreeBuffer() {
+        mBuffer = ByteBuffer.allocateDirect(INITIAL_CAPACITY).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * The direct buffer holding the last tree, only valid until the next call of build.
+     */
+    public ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * Size in bytes of the last tree written into {@link #getBuffer()}.
+     */
+    public int getLength() {
+        return mPosition;
+    }
+
+    /**
+     * Write the mirrored tree into the buffer.
+     * @param truncated the fetch stopped before the whole window was walked
+     * @return size in bytes of the tree
+     */
+    public int build(MirrorTree.Node root, boolean truncated) {
+        mPosition = HEADER_SIZE;
+        ByteBuffer buffer = mBuffer;
+        buffer.putInt(0, TREE_TABLE);
+        buffer.putInt(4, FILE_IDENTIFIER);
+
+        buffer.putShort(TREE_VTABLE, (short) 8);
+        buffer.putShort(TREE_VTABLE + 2, (short) 12);
+        buffer.putShort(TREE_VTABLE + 4, (short) TREE_ROOT);
+        buffer.putShort(TREE_VTABLE + 6, (short) TREE_TRUNCATED);
+        buffer.putInt(TREE_TABLE, TREE_TABLE - TREE_VTABLE);
+        buffer.putInt(TREE_TABLE + TREE_TRUNCATED, truncated ? 1 : 0);
+
+        buffer.putShort(NODE_VTABLE, (short) NODE_VTABLE_SIZE);
+        buffer.putShort(NODE_VTABLE + 2, (short) NODE_TABLE_SIZE);
+        buffer.putShort(NODE_VTABLE + 4, (short) NODE_INDEX);
+        buffer.putShort(NODE_VTABLE + 6, (short) NODE_TEXT);
+        buffer.putShort(NODE_VTABLE + 8, (short) NODE_RESOURCE_ID);
+        buffer.putShort(NODE_VTABLE + 10, (short) NODE_CLASS_NAME);
+        buffer.putShort(NODE_VTABLE + 12, (short) NODE_PACKAGE_NAME);
+        buffer.putShort(NODE_VTABLE + 14, (short) NODE_CONTENT_DESC);
+        buffer.putShort(NODE_VTABLE + 16, (short) NODE_FLAGS);
+        buffer.putShort(NODE_VTABLE + 18, (short) NODE_BOUNDS);
+        buffer.putShort(NODE_VTABLE + 20, (short) NODE_CHILDREN);
+        buffer.putShort(NODE_VTABLE + 22, (short) 0);
+
+        int rootTable = writeNode(root);
+        mBuffer.putInt(TREE_TABLE + TREE_ROOT, rootTable - (TREE_TABLE + TREE_ROOT));
+        return mPosition;
+    }
+
+    private int writeNode(MirrorTree.Node node) {
+        int table = reserve(NODE_TABLE_SIZE);
+        Rect bounds = node.bounds;
+        ByteBuffer buffer = mBuffer;
+        buffer.putInt(table, table - NODE_VTABLE);
+        buffer.putInt(table + NODE_INDEX, node.index);
+        buffer.putInt(table + NODE_FLAGS, node.flags);
+        buffer.putInt(table + NODE_BOUNDS, bounds.left);
+        buffer.putInt(table + NODE_BOUNDS + 4, bounds.top);
+        buffer.putInt(table + NODE_BOUNDS + 8, bounds.right);
+        buffer.putInt(table + NODE_BOUNDS + 12, bounds.bottom);
+
+        writeString(table + NODE_TEXT, node.text);
+        writeString(table + NODE_RESOURCE_ID, node.resourceId);
+        writeString(table + NODE_CLASS_NAME, node.className);
+        writeString(table + NODE_PACKAGE_NAME, node.packageName);
+        writeString(table + NODE_CONTENT_DESC, node.contentDesc);
+
+        int count = node.children.size();
+        int vector = reserve(4 + 4 * count);
+        mBuffer.putInt(table + NODE_CHILDREN, vector - (table + NODE_CHILDREN));
+        mBuffer.putInt(vector, count);
+        for (int i = 0; i < count; i++) {
+            int childTable = writeNode(node.children.get(i));
+            int slot = vector + 4 + 4 * i;
+            mBuffer.putInt(slot, childTable - slot);
+        }
+        return table;
+    }
+
+    /**
+     * Append cs as a flatbuffers string (length, utf-8 bytes, 0) and point field to it.
+     */
+    private void writeString(int field, CharSequence cs) {
+        int length = cs == null ? 0 : cs.length();
+        int start = reserve(4 + 3 * length + 1);
+        ByteBuffer buffer = mBuffer;
+        int p = start + 4;
+        for (int i = 0; i < length; i++) {
+            char ch = cs.charAt(i);
+            if (ch < 0x80) {
+                buffer.put(p++, (byte) ch);
+            } else if (ch < 0x800) {
+                buffer.put(p++, (byte) (0xC0 | (ch >>> 6)));
+                buffer.put(p++, (byte) (0x80 | (ch & 0x3F)));
+            } else if (Character.isHighSurrogate(ch) && i + 1 < length
+                    && Character.isLowSurrogate(cs.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(ch, cs.charAt(++i));
+                buffer.put(p++, (byte) (0xF0 | (codePoint >>> 18)));
+                buffer.put(p++, (byte) (0x80 | ((codePoint >>> 12) & 0x3F)));
+                buffer.put(p++, (byte) (0x80 | ((codePoint >>> 6) & 0x3F)));
+                buffer.put(p++, (byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(ch)) {
+                // unpaired surrogate, not representable in utf-8
+                buffer.put(p++, (byte) '.');
+            } else {
+                buffer.put(p++, (byte) (0xE0 | (ch >>> 12)));
+                buffer.put(p++, (byte) (0x80 | ((ch >>> 6) & 0x3F)));
+                buffer.put(p++, (byte) (0x80 | (ch & 0x3F)));
+            }
+        }
+        buffer.put(p++, (byte) 0);
+        buffer.putInt(start, p - start - 5);
+        // give back what the worst case estimate did not use
+        mPosition = align(p);
+        buffer.putInt(field, start - field);
+    }
+
+    private int reserve(int size) {
+        int start = mPosition;
+        int end = align(start + size);
+        if (end > mBuffer.capacity()) {
+            int capacity = mBuffer.capacity();
+            while (capacity < end) {
+                capacity <<= 1;
+            }
+            ByteBuffer grown = ByteBuffer.allocateDirect(capacity).order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer old = mBuffer.duplicate();
+            old.position(0).limit(start);
+            grown.put(old);
+            mBuffer = grown;
+        }
+        mPosition = end;
+        return start;
+    }
+
+    private static int align(int position) {
+        return (position + 3) & ~3;
+    }
+}
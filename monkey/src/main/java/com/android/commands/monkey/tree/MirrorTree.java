@@ -0,0 +1,608 @@
+/*
+ * This code is licensed under the Fastbot license. You may obtain a copy of this license in the LICENSE.txt file in the root directory of this source tree.
+ */
+
+package com.android.commands.monkey.tree;
+
+import android.graphics.Rect;
+import android.os.SystemClock;
+import android.util.LongSparseArray;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import com.android.commands.monkey.framework.APIAdapter;
+import com.android.commands.monkey.utils.Logger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Java side mirror of the accessibility tree of the active window, the input of
+ * {@link TreeBuilder} and {@link GuiTreeBuffer}.
+ *
+ * In incremental mode the UiAutomation event stream marks mirrored nodes dirty, and a capture
+ * only re-fetches those nodes (and their subtrees if the event says so) instead of walking the
+ * whole window again. Any event the mirror cannot map falls back to a full fetch.
+ *
+ * Nodes are fetched breadth-first under a depth limit and a node and time budget per update.
+ * When the budget runs out the rest of the window is left out and the mirror is marked
+ * truncated, the next update then fetches the whole window again.
+ */
+public class MirrorTree {
+
+    /**
+     * same bits as enum GuiNodeFlag in native/storage/GuiTree.fbs
+     */
+    public static final int FLAG_CHECKABLE = 1;
+    public static final int FLAG_CHECKED = 1 << 1;
+    public static final int FLAG_CLICKABLE = 1 << 2;
+    public static final int FLAG_ENABLED = 1 << 3;
+    public static final int FLAG_FOCUSABLE = 1 << 4;
+    public static final int FLAG_FOCUSED = 1 << 5;
+    public static final int FLAG_SCROLLABLE = 1 << 6;
+    public static final int FLAG_LONG_CLICKABLE = 1 << 7;
+    public static final int FLAG_PASSWORD = 1 << 8;
+    public static final int FLAG_SELECTED = 1 << 9;
+
+    static final int MAX_DEPTH = 25;
+
+    /**
+     * FLAG_PREFETCH_DESCENDANTS_BREADTH_FIRST | FLAG_PREFETCH_UNINTERRUPTIBLE of API 33, the
+     * order the fetch reads the nodes back from the interaction client cache. Older releases
+     * always prefetch descendants with getChild(int).
+     */
+    private static final int PREFETCH_STRATEGY = 0x10 | 0x20;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static final int DIRTY_NONE = 0;
+    private static final int DIRTY_SELF = 1;
+    private static final int DIRTY_SUBTREE = 2;
+    private static final int DIRTY_WINDOW = 3;
+
+    public static final class Node {
+        long sourceId;
+        int index;
+        int depth;
+        int flags;
+        CharSequence text;
+        CharSequence resourceId;
+        CharSequence className;
+        CharSequence packageName;
+        CharSequence contentDesc;
+        final Rect bounds = new Rect();
+        final ArrayList<Node> children = new ArrayList<>();
+        Node parent;
+        int dirty;
+        /**
+         * hash of the attributes of this node alone, see {@link MirrorTree#hash(Node)}
+         */
+        long hash;
+
+        public boolean hasFlag(int flag) {
+            return (flags & flag) != 0;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public CharSequence getText() {
+            return text;
+        }
+
+        public CharSequence getResourceId() {
+            return resourceId;
+        }
+
+        public CharSequence getClassName() {
+            return className;
+        }
+
+        public CharSequence getPackageName() {
+            return packageName;
+        }
+
+        public CharSequence getContentDesc() {
+            return contentDesc;
+        }
+
+        public Rect getBounds() {
+            return bounds;
+        }
+
+        public ArrayList<Node> getChildren() {
+            return children;
+        }
+    }
+
+    private final boolean mIncremental;
+    private final int mFullFetchInterval;
+    private final int mMaxDepth;
+    private final int mNodeBudget;
+    private final long mTimeBudget;
+
+    private final LongSparseArray<Node> mNodes = new LongSparseArray<>();
+    private final ArrayList<Node> mPool = new ArrayList<>();
+    private final ArrayList<Node> mPath = new ArrayList<>();
+    private Node mRoot;
+    private int mWindowId = -1;
+    private int mUpdates = 0;
+
+    /**
+     * budget state of the running update
+     */
+    private final ArrayDeque<Node> mFetchNodes = new ArrayDeque<>();
+    private final ArrayDeque<AccessibilityNodeInfo> mFetchInfos = new ArrayDeque<>();
+    private int mFetched = 0;
+    private long mDeadline = 0;
+    private boolean mTruncated = false;
+
+    /**
+     * dirty marks reported by the event thread since the last capture
+     */
+    private final Object mLock = new Object();
+    private boolean mInvalid = true;
+    private long[] mDirtyIds = new long[64];
+    private int[] mDirtyTypes = new int[64];
+    private int mDirtyCount = 0;
+
+    /**
+     * taken from the dirty marks under the lock, only touched by the capture thread
+     */
+    private long[] mPendingIds = new long[64];
+    private int[] mPendingTypes = new int[64];
+    private final ArrayList<Node> mPendingNodes = new ArrayList<>();
+
+    private int mFullFetches = 0;
+    private int mPartialFetches = 0;
+    private int mTruncatedFetches = 0;
+
+    /**
+     * @param incremental use the event stream to re-fetch only dirty subtrees
+     * @param fullFetchInterval re-fetch the whole window every n captures anyway, 0 never
+     * @param maxDepth nodes deeper than this are not fetched, the root is at depth 1
+     * @param nodeBudget nodes fetched per update at most, 0 no limit
+     * @param timeBudget ms spent fetching per update at most, 0 no limit
+     */
+    public MirrorTree(boolean incremental, int fullFetchInterval, int maxDepth, int nodeBudget, long timeBudget) {
+        mIncremental = incremental;
+        mFullFetchInterval = fullFetchInterval;
+        mMaxDepth = maxDepth;
+        mNodeBudget = nodeBudget;
+        mTimeBudget = timeBudget;
+    }
+
+    /**
+     * Build a throwaway full mirror of the given root, without budget.
+     */
+    public static Node snapshot(AccessibilityNodeInfo rootInfo) {
+        return new MirrorTree(false, 0, MAX_DEPTH, 0, 0).update(rootInfo);
+    }
+
+    /**
+     * @return true if the last update ran out of budget and left part of the window out
+     */
+    public boolean isTruncated() {
+        return mTruncated;
+    }
+
+    /**
+     * Called on the UiAutomation thread for every accessibility event.
+     */
+    public void onAccessibilityEvent(AccessibilityEvent event) {
+        if (!mIncremental) {
+            return;
+        }
+        switch (event.getEventType()) {
+            case AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED:
+                markDirty(event.getWindowId(), event.getSourceNodeId(), DIRTY_WINDOW);
+                break;
+            case AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED: {
+                int types = event.getContentChangeTypes();
+                boolean subtree = types == AccessibilityEvent.CONTENT_CHANGE_TYPE_UNDEFINED
+                        || (types & AccessibilityEvent.CONTENT_CHANGE_TYPE_SUBTREE) != 0;
+                markDirty(event.getWindowId(), event.getSourceNodeId(), subtree ? DIRTY_SUBTREE : DIRTY_SELF);
+                break;
+            }
+            case AccessibilityEvent.TYPE_VIEW_SCROLLED:
+                markDirty(event.getWindowId(), event.getSourceNodeId(), DIRTY_SUBTREE);
+                break;
+            case AccessibilityEvent.TYPE_VIEW_CLICKED:
+            case AccessibilityEvent.TYPE_VIEW_LONG_CLICKED:
+            case AccessibilityEvent.TYPE_VIEW_SELECTED:
+            case AccessibilityEvent.TYPE_VIEW_FOCUSED:
+            case AccessibilityEvent.TYPE_VIEW_TEXT_CHANGED:
+                markDirty(event.getWindowId(), event.getSourceNodeId(), DIRTY_SELF);
+                break;
+            default:
+                break;
+        }
+    }
+
+    public void invalidate() {
+        synchronized (mLock) {
+            mInvalid = true;
+            mDirtyCount = 0;
+        }
+    }
+
+    private void markDirty(int windowId, long sourceId, int type) {
+        synchronized (mLock) {
+            if (mInvalid) {
+                return;
+            }
+            // other windows are not mirrored, a switch of the active window is seen by update
+            if (windowId != mWindowId) {
+                return;
+            }
+            if (type == DIRTY_WINDOW) {
+                mInvalid = true;
+                mDirtyCount = 0;
+                return;
+            }
+            if (mDirtyCount == mDirtyIds.length) {
+                // a burst this large is cheaper to answer with a full fetch
+                if (mDirtyCount >= 1024) {
+                    mInvalid = true;
+                    mDirtyCount = 0;
+                    return;
+                }
+                mDirtyIds = Arrays.copyOf(mDirtyIds, mDirtyCount * 2);
+                mDirtyTypes = Arrays.copyOf(mDirtyTypes, mDirtyCount * 2);
+            }
+            mDirtyIds[mDirtyCount] = sourceId;
+            mDirtyTypes[mDirtyCount] = type;
+            mDirtyCount++;
+        }
+    }
+
+    /**
+     * Bring the mirror up to date with the active window.
+     *
+     * @param rootInfo root of the active window, still owned by the caller
+     * @return the mirrored root, valid until the next update
+     */
+    public Node update(AccessibilityNodeInfo rootInfo) {
+        boolean full;
+        int pending;
+        synchronized (mLock) {
+            full = mInvalid;
+            pending = mDirtyCount;
+            if (!full) {
+                if (mPendingIds.length < pending) {
+                    mPendingIds = new long[mDirtyIds.length];
+                    mPendingTypes = new int[mDirtyIds.length];
+                }
+                System.arraycopy(mDirtyIds, 0, mPendingIds, 0, pending);
+                System.arraycopy(mDirtyTypes, 0, mPendingTypes, 0, pending);
+            }
+            mInvalid = false;
+            mDirtyCount = 0;
+        }
+        mUpdates++;
+        full = full || mTruncated;
+        mTruncated = false;
+        mFetched = 0;
+        mDeadline = mTimeBudget > 0 ? SystemClock.uptimeMillis() + mTimeBudget : Long.MAX_VALUE;
+        full = full || !mIncremental || mRoot == null
+                || rootInfo.getWindowId() != mWindowId
+                || rootInfo.getSourceNodeId() != mRoot.sourceId
+                || (mFullFetchInterval > 0 && mUpdates % mFullFetchInterval == 0);
+        if (!full) {
+            full = !updateDirtyNodes(rootInfo, pending);
+        }
+        if (full) {
+            synchronized (mLock) {
+                mWindowId = rootInfo.getWindowId();
+            }
+            release(mRoot);
+            // a partial update given up on may have spent part of the node budget already
+            mFetched = 0;
+            mTruncated = false;
+            mRoot = fetch(rootInfo, 0, 1, null);
+            fetchSubtree(mRoot, rootInfo);
+            mFullFetches++;
+        } else {
+            mPartialFetches++;
+        }
+        if (mTruncated) {
+            mTruncatedFetches++;
+        }
+        return mRoot;
+    }
+
+    /**
+     * @return false if the mirror could not follow the changes and needs a full fetch
+     */
+    private boolean updateDirtyNodes(AccessibilityNodeInfo rootInfo, int pending) {
+        // the root came with the query anyway
+        readAttributes(mRoot, rootInfo);
+        mPendingNodes.clear();
+        for (int i = 0; i < pending; i++) {
+            Node node = mNodes.get(mPendingIds[i]);
+            // events of nodes the dump leaves out (invisible, too deep) are dropped
+            if (node == null) {
+                continue;
+            }
+            if (node.dirty == DIRTY_NONE) {
+                mPendingNodes.add(node);
+            }
+            node.dirty = Math.max(node.dirty, mPendingTypes[i]);
+        }
+        boolean followed = true;
+        for (int i = 0; i < mPendingNodes.size() && followed; i++) {
+            Node node = mPendingNodes.get(i);
+            if (node.dirty == DIRTY_NONE || hasDirtySubtreeAncestor(node)) {
+                continue;
+            }
+            followed = refetch(rootInfo, node);
+        }
+        for (int i = 0; i < mPendingNodes.size(); i++) {
+            mPendingNodes.get(i).dirty = DIRTY_NONE;
+        }
+        mPendingNodes.clear();
+        return followed;
+    }
+
+    private static boolean hasDirtySubtreeAncestor(Node node) {
+        for (Node parent = node.parent; parent != null; parent = parent.parent) {
+            if (parent.dirty == DIRTY_SUBTREE) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean refetch(AccessibilityNodeInfo rootInfo, Node node) {
+        if (node == mRoot) {
+            return node.dirty != DIRTY_SUBTREE;
+        }
+        AccessibilityNodeInfo info = locate(rootInfo, node);
+        if (info == null) {
+            return false;
+        }
+        try {
+            if (!info.isVisibleToUser()) {
+                return false;
+            }
+            if (node.dirty == DIRTY_SUBTREE) {
+                for (int i = 0; i < node.children.size(); i++) {
+                    release(node.children.get(i));
+                }
+                node.children.clear();
+                readAttributes(node, info);
+                fetchSubtree(node, info);
+            } else {
+                readAttributes(node, info);
+            }
+        } finally {
+            info.recycle();
+        }
+        return true;
+    }
+
+    /**
+     * Walk from the root down to the live node mirrored by node, one getChild per level.
+     */
+    private AccessibilityNodeInfo locate(AccessibilityNodeInfo rootInfo, Node node) {
+        mPath.clear();
+        for (Node n = node; n != mRoot; n = n.parent) {
+            if (n == null) {
+                return null;
+            }
+            mPath.add(n);
+        }
+        AccessibilityNodeInfo current = rootInfo;
+        for (int i = mPath.size() - 1; i >= 0; i--) {
+            Node step = mPath.get(i);
+            AccessibilityNodeInfo child = current.getChildCount() > step.index ? current.getChild(step.index) : null;
+            if (current != rootInfo) {
+                current.recycle();
+            }
+            if (child == null) {
+                return null;
+            }
+            if (child.getSourceNodeId() != step.sourceId) {
+                child.recycle();
+                return null;
+            }
+            current = child;
+        }
+        return current;
+    }
+
+    /**
+     * Mirror a single node, without its children.
+     */
+    private Node fetch(AccessibilityNodeInfo info, int index, int depth, Node parent) {
+        Node node = obtain();
+        node.parent = parent;
+        node.index = index;
+        node.depth = depth;
+        node.sourceId = info.getSourceNodeId();
+        readAttributes(node, info);
+        mNodes.put(node.sourceId, node);
+        mFetched++;
+        return node;
+    }
+
+    /**
+     * Mirror the descendants of node level by level. The service prefetches the descendants of
+     * every queried node, so walking breadth-first mostly hits the cache instead of doing one
+     * binder call per child.
+     *
+     * @param info live node of node, still owned by the caller
+     */
+    private void fetchSubtree(Node node, AccessibilityNodeInfo info) {
+        ArrayDeque<Node> nodes = mFetchNodes;
+        ArrayDeque<AccessibilityNodeInfo> infos = mFetchInfos;
+        Node current = node;
+        AccessibilityNodeInfo currentInfo = info;
+        while (current != null) {
+            if (current.depth < mMaxDepth) {
+                int count = currentInfo.getChildCount();
+                for (int i = 0; i < count; i++) {
+                    if (isOutOfBudget()) {
+                        mTruncated = true;
+                        break;
+                    }
+                    AccessibilityNodeInfo child = APIAdapter.getChild(currentInfo, i, PREFETCH_STRATEGY);
+                    if (child == null) {
+                        continue;
+                    }
+                    if (child.isVisibleToUser()) {
+                        Node childNode = fetch(child, i, current.depth + 1, current);
+                        current.children.add(childNode);
+                        nodes.add(childNode);
+                        infos.add(child);
+                    } else {
+                        child.recycle();
+                    }
+                }
+            }
+            if (currentInfo != info) {
+                currentInfo.recycle();
+            }
+            if (mTruncated) {
+                break;
+            }
+            current = nodes.poll();
+            currentInfo = infos.poll();
+        }
+        // whatever is still queued stays a leaf in a truncated mirror
+        while (!infos.isEmpty()) {
+            infos.poll().recycle();
+        }
+        nodes.clear();
+    }
+
+    private boolean isOutOfBudget() {
+        return (mNodeBudget > 0 && mFetched >= mNodeBudget) || SystemClock.uptimeMillis() > mDeadline;
+    }
+
+    private static void readAttributes(Node node, AccessibilityNodeInfo info) {
+        int flags = 0;
+        if (info.isCheckable()) flags |= FLAG_CHECKABLE;
+        if (info.isChecked()) flags |= FLAG_CHECKED;
+        if (info.isClickable()) flags |= FLAG_CLICKABLE;
+        if (info.isEnabled()) flags |= FLAG_ENABLED;
+        if (info.isFocusable()) flags |= FLAG_FOCUSABLE;
+        if (info.isFocused()) flags |= FLAG_FOCUSED;
+        if (info.isScrollable()) flags |= FLAG_SCROLLABLE;
+        if (info.isLongClickable()) flags |= FLAG_LONG_CLICKABLE;
+        if (info.isPassword()) flags |= FLAG_PASSWORD;
+        if (info.isSelected()) flags |= FLAG_SELECTED;
+        node.flags = flags;
+        node.text = info.getText();
+        node.resourceId = info.getViewIdResourceName();
+        node.className = info.getClassName();
+        node.packageName = info.getPackageName();
+        node.contentDesc = info.getContentDescription();
+        info.getBoundsInScreen(node.bounds);
+        node.hash = hashAttributes(node);
+    }
+
+    /**
+     * 64 bit structural hash of the subtree. Covers the attributes Element::hash looks at, and also
+     * the index, flags and bounds, since native answers a matching hash with the Element it parsed
+     * for it: equal hashes mean an equal gui tree buffer, barring collisions.
+     */
+    public static long hash(Node node) {
+        long h = node.hash;
+        for (int i = 0; i < node.children.size(); i++) {
+            h = (h ^ hash(node.children.get(i))) * FNV_PRIME;
+        }
+        return (h ^ node.children.size()) * FNV_PRIME;
+    }
+
+    private static long hashAttributes(Node node) {
+        long h = FNV_OFFSET;
+        h = hash(h, node.text);
+        h = hash(h, node.resourceId);
+        h = hash(h, node.className);
+        h = hash(h, node.packageName);
+        h = hash(h, node.contentDesc);
+        h = (h ^ node.index) * FNV_PRIME;
+        h = (h ^ node.flags) * FNV_PRIME;
+        Rect bounds = node.bounds;
+        h = (h ^ bounds.left) * FNV_PRIME;
+        h = (h ^ bounds.top) * FNV_PRIME;
+        h = (h ^ bounds.right) * FNV_PRIME;
+        return (h ^ bounds.bottom) * FNV_PRIME;
+    }
+
+    /**
+     * Key of a node for the preconditions of planned operates, over the index and the bounds.
+     * Must stay equal to Element::widgetKey in native.
+     */
+    public static long widgetKey(Node node) {
+        long h = FNV_OFFSET;
+        h = (h ^ node.index) * FNV_PRIME;
+        Rect bounds = node.bounds;
+        h = (h ^ bounds.left) * FNV_PRIME;
+        h = (h ^ bounds.top) * FNV_PRIME;
+        h = (h ^ bounds.right) * FNV_PRIME;
+        return (h ^ bounds.bottom) * FNV_PRIME;
+    }
+
+    /**
+     * @return the first node under root, depth first, whose {@link #widgetKey} is key, or null
+     */
+    public static Node findWidget(Node root, long key) {
+        if (widgetKey(root) == key) {
+            return root;
+        }
+        for (int i = 0; i < root.children.size(); i++) {
+            Node found = findWidget(root.children.get(i), key);
+            if (found != null) {
+                return found;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * FNV-1a over the chars of cs, a null value hashes apart from an empty one
+     */
+    public static long hash(long h, CharSequence cs) {
+        if (cs == null) {
+            return (h ^ 0x10000) * FNV_PRIME;
+        }
+        int length = cs.length();
+        for (int i = 0; i < length; i++) {
+            h = (h ^ cs.charAt(i)) * FNV_PRIME;
+        }
+        // end of field, chars are below 0x10000
+        return (h ^ 0x10001) * FNV_PRIME;
+    }
+
+    private Node obtain() {
+        int size = mPool.size();
+        return size > 0 ? mPool.remove(size - 1) : new Node();
+    }
+
+    private void release(Node node) {
+        if (node == null) {
+            return;
+        }
+        for (int i = 0; i < node.children.size(); i++) {
+            release(node.children.get(i));
+        }
+        if (mNodes.get(node.sourceId) == node) {
+            mNodes.remove(node.sourceId);
+        }
+        node.children.clear();
+        node.parent = null;
+        node.text = node.resourceId = node.className = node.packageName = node.contentDesc = null;
+        node.dirty = DIRTY_NONE;
+        mPool.add(node);
+    }
+
+    public void printStatistics() {
+        Logger.infoFormat("mirror tree: %d full fetches, %d partial fetches, %d truncated",
+                mFullFetches, mPartialFetches, mTruncatedFetches);
+    }
+}
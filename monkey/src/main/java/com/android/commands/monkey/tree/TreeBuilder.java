@@ -5,16 +5,8 @@
 package com.android.commands.monkey.tree;
 
 import android.graphics.Rect;
-import android.util.Xml;
 import android.view.accessibility.AccessibilityNodeInfo;
 
-import com.android.commands.monkey.utils.Logger;
-
-import org.xmlpull.v1.XmlSerializer;
-
-import java.io.IOException;
-import java.io.StringWriter;
-
 /**
  * @author Jianqiang Guo, Zhao Zhang
  */
@@ -22,107 +14,116 @@ import java.io.StringWriter;
 /**
  * guitree builder utils
  * AccessibilityNodeInfo object -> xml string
+ *
+ * Writes the xml by hand into a char buffer that is reused across dumps: attribute values are
+ * escaped through a lookup table, nothing is indented, and apart from the final string no
+ * object is allocated per node.
  */
 public class TreeBuilder {
 
-    // copy from AccessibilityNodeInfoHelper
-    static Rect getVisibleBoundsInScreen(AccessibilityNodeInfo node) {
-        if (node == null) {
-            return null;
+    private static final String XML_HEADER = "<?xml version='1.0' encoding='UTF-8' standalone='yes' ?>";
+
+    /**
+     * replacement of every char below 0x80, null if the char is written as is
+     */
+    private static final String[] ESCAPES = new String[0x80];
+
+    static {
+        // http://www.w3.org/TR/xml11/#charsets, restricted chars are replaced as AccessibilityNodeInfoDumper does
+        for (int ch = 0x0; ch < 0x20; ch++) {
+            ESCAPES[ch] = ".";
         }
-        // targeted node's bounds
-        Rect nodeRect = new Rect();
-        node.getBoundsInScreen(nodeRect);
+        ESCAPES['\t'] = "&#9;";
+        ESCAPES['\n'] = "&#10;";
+        ESCAPES['\r'] = "&#13;";
+        ESCAPES['&'] = "&amp;";
+        ESCAPES['<'] = "&lt;";
+        ESCAPES['>'] = "&gt;";
+        ESCAPES['"'] = "&quot;";
+        ESCAPES[0x7F] = ".";
+    }
+
+    private final StringBuilder mBuilder;
 
-        return nodeRect;
+    public TreeBuilder() {
+        mBuilder = new StringBuilder(64 * 1024);
     }
 
-    // copy from AccessibilityNodeInfoDumper
-    private static String safeCharSeqToString(CharSequence cs) {
-        if (cs == null)
-            return "";
-        else {
-            return stripInvalidXMLChars(cs);
-        }
+    /**
+     * Write the mirrored tree as xml, the buffer behind it is kept for the next dump
+     */
+    public String dump(MirrorTree.Node root) {
+        StringBuilder builder = mBuilder;
+        builder.setLength(0);
+        builder.append(XML_HEADER);
+        dumpNodeRec(root, builder);
+        return builder.toString();
     }
 
     // copy from AccessibilityNodeInfoDumper
-    private static String stripInvalidXMLChars(CharSequence cs) {
-        StringBuffer ret = new StringBuffer();
-        char ch;
-        /* http://www.w3.org/TR/xml11/#charsets
-        [#x1-#x8], [#xB-#xC], [#xE-#x1F], [#x7F-#x84], [#x86-#x9F], [#xFDD0-#xFDDF],
-        [#x1FFFE-#x1FFFF], [#x2FFFE-#x2FFFF], [#x3FFFE-#x3FFFF],
-        [#x4FFFE-#x4FFFF], [#x5FFFE-#x5FFFF], [#x6FFFE-#x6FFFF],
-        [#x7FFFE-#x7FFFF], [#x8FFFE-#x8FFFF], [#x9FFFE-#x9FFFF],
-        [#xAFFFE-#xAFFFF], [#xBFFFE-#xBFFFF], [#xCFFFE-#xCFFFF],
-        [#xDFFFE-#xDFFFF], [#xEFFFE-#xEFFFF], [#xFFFFE-#xFFFFF],
-        [#x10FFFE-#x10FFFF].
-         */
-        try {
-            for (int i = 0; i < cs.length(); i++) {
-                ch = cs.charAt(i);
-
-                if ((ch >= 0x1 && ch <= 0x8) || (ch >= 0xB && ch <= 0xC) || (ch >= 0xE && ch <= 0x1F) ||
-                        (ch >= 0x7F && ch <= 0x84) || (ch >= 0x86 && ch <= 0x9f) ||
-                        (ch >= 0xFDD0 && ch <= 0xFDDF) || (ch >= 0x1FFFE && ch <= 0x1FFFF) ||
-                        (ch >= 0x2FFFE && ch <= 0x2FFFF) || (ch >= 0x3FFFE && ch <= 0x3FFFF) ||
-                        (ch >= 0x4FFFE && ch <= 0x4FFFF) || (ch >= 0x5FFFE && ch <= 0x5FFFF) ||
-                        (ch >= 0x6FFFE && ch <= 0x6FFFF) || (ch >= 0x7FFFE && ch <= 0x7FFFF) ||
-                        (ch >= 0x8FFFE && ch <= 0x8FFFF) || (ch >= 0x9FFFE && ch <= 0x9FFFF) ||
-                        (ch >= 0xAFFFE && ch <= 0xAFFFF) || (ch >= 0xBFFFE && ch <= 0xBFFFF) ||
-                        (ch >= 0xCFFFE && ch <= 0xCFFFF) || (ch >= 0xDFFFE && ch <= 0xDFFFF) ||
-                        (ch >= 0xEFFFE && ch <= 0xEFFFF) || (ch >= 0xFFFFE && ch <= 0xFFFFF) ||
-                        (ch >= 0x10FFFE && ch <= 0x10FFFF))
-                    ret.append(".");
-                else
-                    ret.append(ch);
-            }
-        } catch (Exception ex) {
-            Logger.println("strip invalid xml failed!, repace all &# " + ex.toString());
-            return cs.toString().replaceAll("\"", "").replaceAll("&#", "");
+    private static void dumpNodeRec(MirrorTree.Node node, StringBuilder builder) {
+        builder.append("<node");
+        // do not need naf check for document xml
+        builder.append(" index=\"").append(node.getIndex()).append('"');
+        appendAttribute(builder, " text=\"", node.getText());
+        appendAttribute(builder, " resource-id=\"", node.getResourceId());
+        appendAttribute(builder, " class=\"", node.getClassName());
+        appendAttribute(builder, " package=\"", node.getPackageName());
+        appendAttribute(builder, " content-desc=\"", node.getContentDesc());
+        appendAttribute(builder, " checkable=\"", node.hasFlag(MirrorTree.FLAG_CHECKABLE));
+        appendAttribute(builder, " checked=\"", node.hasFlag(MirrorTree.FLAG_CHECKED));
+        appendAttribute(builder, " clickable=\"", node.hasFlag(MirrorTree.FLAG_CLICKABLE));
+        appendAttribute(builder, " enabled=\"", node.hasFlag(MirrorTree.FLAG_ENABLED));
+        appendAttribute(builder, " focusable=\"", node.hasFlag(MirrorTree.FLAG_FOCUSABLE));
+        appendAttribute(builder, " focused=\"", node.hasFlag(MirrorTree.FLAG_FOCUSED));
+        appendAttribute(builder, " scrollable=\"", node.hasFlag(MirrorTree.FLAG_SCROLLABLE));
+        appendAttribute(builder, " long-clickable=\"", node.hasFlag(MirrorTree.FLAG_LONG_CLICKABLE));
+        appendAttribute(builder, " password=\"", node.hasFlag(MirrorTree.FLAG_PASSWORD));
+        appendAttribute(builder, " selected=\"", node.hasFlag(MirrorTree.FLAG_SELECTED));
+        // same as Rect.toShortString
+        Rect bounds = node.getBounds();
+        builder.append(" bounds=\"[").append(bounds.left).append(',').append(bounds.top)
+                .append("][").append(bounds.right).append(',').append(bounds.bottom).append("]\"");
+
+        // children below the depth limit or past the fetch budget are not mirrored
+        int count = node.getChildren().size();
+        if (count == 0) {
+            builder.append(" />");
+            return;
         }
+        builder.append('>');
+        for (int i = 0; i < count; i++) {
+            dumpNodeRec(node.getChildren().get(i), builder);
+        }
+        builder.append("</node>");
+    }
 
-        return ret.toString();
+    private static void appendAttribute(StringBuilder builder, String name, boolean value) {
+        builder.append(name).append(value ? "true\"" : "false\"");
     }
 
-    // copy from AccessibilityNodeInfoDumper
-    private static void dumpNodeRec(AccessibilityNodeInfo node, XmlSerializer serializer, int index,
-                                    int depth)  throws IOException {
-        serializer.startTag("", "node");
-        // do not need naf check for document xml
-        //if (!nafExcludedClass(node) && !nafCheck(node))
-        //serializer.attribute("", "NAF", Boolean.toString(true));
-        serializer.attribute("", "index", Integer.toString(index));
-        serializer.attribute("", "text", safeCharSeqToString(node.getText()));
-        serializer.attribute("", "resource-id", safeCharSeqToString(node.getViewIdResourceName()));
-        serializer.attribute("", "class", safeCharSeqToString(node.getClassName()));
-        serializer.attribute("", "package", safeCharSeqToString(node.getPackageName()));
-        serializer.attribute("", "content-desc", safeCharSeqToString(node.getContentDescription()));
-        serializer.attribute("", "checkable", Boolean.toString(node.isCheckable()));
-        serializer.attribute("", "checked", Boolean.toString(node.isChecked()));
-        serializer.attribute("", "clickable", Boolean.toString(node.isClickable()));
-        serializer.attribute("", "enabled", Boolean.toString(node.isEnabled()));
-        serializer.attribute("", "focusable", Boolean.toString(node.isFocusable()));
-        serializer.attribute("", "focused", Boolean.toString(node.isFocused()));
-        serializer.attribute("", "scrollable", Boolean.toString(node.isScrollable()));
-        serializer.attribute("", "long-clickable", Boolean.toString(node.isLongClickable()));
-        serializer.attribute("", "password", Boolean.toString(node.isPassword()));
-        serializer.attribute("", "selected", Boolean.toString(node.isSelected()));
-        serializer.attribute("", "bounds", getVisibleBoundsInScreen(node).toShortString());
-
-        depth += 1;
-        if(depth <= 25) {
-            int count = node.getChildCount();
-            for (int i = 0; i < count; i++) {
-                AccessibilityNodeInfo child = node.getChild(i);
-                if (child != null && child.isVisibleToUser()) {
-                    dumpNodeRec(child, serializer, i, depth);
-                    child.recycle();
+    private static void appendAttribute(StringBuilder builder, String name, CharSequence cs) {
+        builder.append(name);
+        if (cs != null) {
+            int length = cs.length();
+            for (int i = 0; i < length; i++) {
+                char ch = cs.charAt(i);
+                if (ch < 0x80) {
+                    String escape = ESCAPES[ch];
+                    if (escape == null) {
+                        builder.append(ch);
+                    } else {
+                        builder.append(escape);
+                    }
+                } else if ((ch >= 0x80 && ch <= 0x84) || (ch >= 0x86 && ch <= 0x9F)
+                        || (ch >= 0xFDD0 && ch <= 0xFDDF) || ch == 0xFFFE || ch == 0xFFFF) {
+                    builder.append('.');
+                } else {
+                    builder.append(ch);
                 }
             }
-            serializer.endTag("", "node");
         }
+        builder.append('"');
     }
 
     /**
@@ -130,22 +131,14 @@ public class TreeBuilder {
      * and generates an xml dump to the location specified by <code>dumpFile</code>
      */
     public static String dumpDocumentStrWithOutTree(AccessibilityNodeInfo rootInfo) {
-        String dumpstrRet = "";
-        try {
-            StringWriter textWriter = new StringWriter();
-            XmlSerializer serializer = Xml.newSerializer();
-            serializer.setOutput(textWriter);
-            serializer.startDocument("UTF-8", true);
-            serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
-
-            int depth = 1;
-            dumpNodeRec(rootInfo, serializer, 0, depth);
-            serializer.endDocument();
-            dumpstrRet = textWriter.toString();
-        } catch (IllegalArgumentException | IOException | IllegalStateException e) {
-            Logger.println("failed to dump window to file: " + e.toString());
-        }
-        return dumpstrRet;
+        return dumpDocumentStrWithOutTree(MirrorTree.snapshot(rootInfo));
+    }
+
+    /**
+     * Same as above, from the mirrored tree
+     */
+    public static String dumpDocumentStrWithOutTree(MirrorTree.Node root) {
+        return new TreeBuilder().dump(root);
     }
 
 }
@@ -80,11 +80,89 @@ public class Config {
      * the time interval between each swipe atomic event
      */
     public static final long swipeDuration = Config.getLong("max.swipeDuration", 200);
+    /**
+     * speed of a scroll over swipeDuration: linear, ease_out (stops without a fling) or fling
+     * (lifts at full speed), in swipeSteps moves
+     */
+    public static final String swipeProfile = Config.get("max.swipeProfile", "linear");
+    public static final int swipeSteps = Config.getInteger("max.swipeSteps", 10);
+    /**
+     * write the injection latency histograms to max.injection.latency.log every this many
+     * injected events, they are always written at the end, 0 only at the end
+     */
+    public static final int injectionLatencyDumpInterval = Config.getInteger("max.injectionLatencyDumpInterval", 1000);
     /**
      * get retry settings for guitree
      */
     public static final long refectchInfoWaitingInterval = Config.getLong("max.refectchInfoWaitingInterval", 50);
     public static final int refectchInfoCount = Config.getInteger("max.refectchInfoCount", 4);
+    /**
+     * hand the guitree to native as a flatbuffer in a direct buffer instead of an xml string,
+     * xml is still dumped when saveGUITreeToXmlEveryStep is on
+     */
+    public static final boolean useGuiTreeBuffer = Config.getBoolean("max.useGuiTreeBuffer", true);
+    /**
+     * keep a mirror of the guitree updated from accessibility events and re-fetch only the
+     * changed subtrees, disabled by default; the whole window is still re-fetched every n steps
+     */
+    public static final boolean useMirrorTree = Config.getBoolean("max.useMirrorTree", false);
+    public static final int mirrorTreeFullFetchInterval = Config.getInteger("max.mirrorTreeFullFetchInterval", 20);
+    /**
+     * budget of one guitree fetch, the tree is walked breadth-first and cut off (marked truncated)
+     * once treeNodeBudget nodes are fetched or treeFetchTimeBudget ms are spent, 0 no limit;
+     * treeMaxDepth is at most 128, native does not read deeper trees (GUI_TREE_MAX_DEPTH)
+     */
+    public static final int treeMaxDepth = Math.min(Config.getInteger("max.treeMaxDepth", 25), 128);
+    public static final int treeNodeBudget = Config.getInteger("max.treeNodeBudget", 3000);
+    public static final long treeFetchTimeBudget = Config.getLong("max.treeFetchTimeBudget", 1500);
+    /**
+     * native keeps the last 8 gui tree buffers parsed, a tree with the structural hash of one of
+     * the last treeCacheSize trees is passed by hash only, 0 always passes the whole tree
+     */
+    public static final int treeCacheSize = Config.getInteger("max.treeCacheSize", 8);
+    /**
+     * native may answer a step of a user specified action chain (max.xpath.actions) with up to
+     * planSteps following steps whose targets are on the same page, run without observing again
+     * while the activity and the target stay, 0 asks for one step at a time
+     */
+    public static final int planSteps = Config.getInteger("max.planSteps", 8);
+    /**
+     * capture the next guitree on a worker thread while the throttle of the last action sleeps,
+     * as soon as the ui settles; without the settle detector that is after pipelineIdleTimeout ms
+     * of idle. Native is asked for the next action on the monkey thread as usual
+     */
+    public static final boolean pipelineObservation = Config.getBoolean("max.pipelineObservation", false);
+    public static final long pipelineIdleTimeout = Config.getLong("max.pipelineIdleTimeout", 100);
+    /**
+     * start the guitree capture once the accessibility events have been quiet for a period learned
+     * per activity (between settleQuietMin and settleQuietMax ms), or after settleTimeout ms,
+     * instead of waiting for a fixed idle time
+     */
+    public static final boolean useSettleDetector = Config.getBoolean("max.useSettleDetector", true);
+    public static final long settleTimeout = Config.getLong("max.settleTimeout", 1000);
+    public static final long settleQuietMin = Config.getLong("max.settleQuietMin", 50);
+    public static final long settleQuietMax = Config.getLong("max.settleQuietMax", 1000);
+    public static final long settleQuietDefault = Config.getLong("max.settleQuietDefault", 200);
+    /**
+     * ms the top activity pushed by the activity controller and window events is trusted before
+     * reading the top task again, 0 reads the top task every time
+     */
+    public static final long topActivityCacheTimeout = Config.getLong("max.topActivityCacheTimeout", 1000);
+    /**
+     * host:port of a fastbot_server shared by many devices, usually 127.0.0.1:9987 through adb
+     * reverse, empty runs the model in this process
+     */
+    public static final String fastbotServer = Config.get("max.fastbotServer", "");
+    /**
+     * the id this device explores with on the fastbot_server, empty uses the serial number
+     */
+    public static final String fastbotDeviceId = Config.get("max.fastbotDeviceId", "");
+    /**
+     * keep the activities, permissions and launcher activities of the tested packages in
+     * /data/local/tmp/fastbot_cache until the package is updated, instead of asking the package
+     * manager at every start
+     */
+    public static final boolean packageCache = Config.getBoolean("max.packageCache", true);
     /**
      * generator fuzzing event
      */
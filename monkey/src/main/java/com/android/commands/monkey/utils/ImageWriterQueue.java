@@ -41,11 +41,23 @@ public class ImageWriterQueue implements Runnable {
                 continue;
             }
             if (req != null) {
-                writePNG(req);
+                write(req);
             }
         }
     }
 
+    private void write(Req req) {
+        if (req.work == null) {
+            writePNG(req);
+            return;
+        }
+        try {
+            req.work.run();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
     private void writePNG(Req req) {
         Bitmap map = req.map;
         File dst = req.dst;
@@ -72,10 +84,18 @@ public class ImageWriterQueue implements Runnable {
         notifyAll();
     }
 
+    /**
+     * Queue other output to be written on this thread, such as gui trees.
+     */
+    public synchronized void add(Runnable work) {
+        requestQueue.add(new Req(work));
+        notifyAll();
+    }
+
     public synchronized void flush() {
         while (!requestQueue.isEmpty()) {
             Req req = requestQueue.removeFirst();
-            writePNG(req);
+            write(req);
         }
     }
 
@@ -94,10 +114,18 @@ public class ImageWriterQueue implements Runnable {
     static class Req {
         final Bitmap map;
         final File dst;
+        final Runnable work;
 
         public Req(Bitmap map, File dst) {
             this.map = map;
             this.dst = dst;
+            this.work = null;
+        }
+
+        public Req(Runnable work) {
+            this.map = null;
+            this.dst = null;
+            this.work = work;
         }
     }
 }
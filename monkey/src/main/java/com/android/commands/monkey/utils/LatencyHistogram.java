@@ -0,0 +1,110 @@
+/*
+ * This code is licensed under the Fastbot license. You may obtain a copy of this license in the LICENSE.txt file in the root directory of this source tree.
+ */
+
+package com.android.commands.monkey.utils;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Counts of latencies in microseconds in fixed log-linear buckets: values below 8 have a bucket
+ * each, every power of two above is split into 8 linear buckets, so a bucket is at most 1/8 of
+ * its values wide. Recording is a few shifts and an increment, nothing is allocated.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /**
+     * up to 2^40 us, about 12 days, larger values land in the last bucket
+     */
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final long[] mCounts = new long[BUCKETS];
+    private long mCount;
+    private long mSum;
+    private long mMax;
+
+    public void record(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        mCounts[bucketOf(micros)]++;
+        mCount++;
+        mSum += micros;
+        if (micros > mMax) {
+            mMax = micros;
+        }
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    private static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the smallest value of a bucket
+     */
+    private static long lowerBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /**
+     * @return the lower bound of the bucket holding the value at quantile
+     */
+    private long valueAt(double quantile) {
+        long rank = (long) Math.ceil(quantile * mCount);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += mCounts[bucket];
+            if (seen >= rank && seen > 0) {
+                return lowerBoundOf(bucket);
+            }
+        }
+        return mMax;
+    }
+
+    /**
+     * @return count, mean, max and percentiles in us, and the non empty buckets as
+     * [lower bound us, count]
+     */
+    public JSONObject toJSONObject() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("count", mCount);
+        json.put("mean_us", mCount == 0 ? 0 : mSum / mCount);
+        json.put("max_us", mMax);
+        json.put("p50_us", valueAt(0.5));
+        json.put("p90_us", valueAt(0.9));
+        json.put("p99_us", valueAt(0.99));
+        JSONArray buckets = new JSONArray();
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            if (mCounts[bucket] > 0) {
+                JSONArray entry = new JSONArray();
+                entry.put(lowerBoundOf(bucket));
+                entry.put(mCounts[bucket]);
+                buckets.put(entry);
+            }
+        }
+        json.put("buckets", buckets);
+        return json;
+    }
+}
@@ -82,6 +82,10 @@ public abstract class MonkeyUtils {
             return mValidPackages.size() > 0;
         }
 
+        public boolean hasInvalidPackages() {
+            return mInvalidPackages.size() > 0;
+        }
+
         public boolean isPackageValid(String pkg) {
             return mValidPackages.contains(pkg);
         }
@@ -9,8 +9,13 @@ import android.os.Build;
 import android.os.SystemClock;
 
 import com.android.commands.monkey.fastbot.client.Operate;
+import com.android.commands.monkey.utils.Config;
 import com.android.commands.monkey.utils.Logger;
+import com.android.commands.monkey.utils.UUIDHelper;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
@@ -24,6 +29,14 @@ public class AiClient {
     private static final AiClient singleton;
 
     static {
+        if (!"".equals(Config.fastbotServer)) {
+            singleton = new AiClient(connectToServer());
+        } else {
+            singleton = new AiClient(loadNativeLib());
+        }
+    }
+
+    private static boolean loadNativeLib() {
         boolean success;
         long begin = SystemClock.elapsedRealtimeNanos();
         success = tryToLoadNativeLib(false);
@@ -32,7 +45,24 @@ public class AiClient {
         }
         long end = SystemClock.elapsedRealtimeNanos();
         Logger.infoFormat("load fastbot_native takes %d ms.", TimeUnit.NANOSECONDS.toMillis(end - begin));
-        singleton = new AiClient(success);
+        return success;
+    }
+
+    private static AiServerClient connectToServer() {
+        String deviceId = Config.fastbotDeviceId;
+        if ("".equals(deviceId)) {
+            deviceId = UUIDHelper.getSerial();
+        }
+        if (deviceId == null || "".equals(deviceId) || "unknown".equals(deviceId)) {
+            deviceId = UUIDHelper.read();
+        }
+        AiServerClient server = new AiServerClient(Config.fastbotServer, deviceId);
+        if (!server.connect()) {
+            Logger.println("// Error: Could not connect to fastbot server " + Config.fastbotServer);
+            Logger.println("Check that fastbot_server runs and adb reverse is set up");
+            System.exit(1);
+        }
+        return server;
     }
 
     public enum AlgorithmType {
@@ -54,13 +84,47 @@ public class AiClient {
     }
 
     public static void InitAgent(AlgorithmType agentType, String packagename) {
+        if (singleton.server != null) {
+            singleton.server.initAgent(agentType.value(), packagename);
+            return;
+        }
+        // native starts its table of sids and aids over with the agent
+        singleton.operateStrings.clear();
         singleton.fgdsaf5d(agentType.value(), packagename, 0);
     }
 
     private boolean loaded = false;
+    private boolean guiTreeBufferSupported = true;
+    private boolean treeCacheSupported = true;
+    private boolean binaryOperateSupported = true;
+    private boolean blackRectsSupported = true;
+
+    /**
+     * not null if the model runs in a fastbot_server instead of the native library
+     */
+    private final AiServerClient server;
+
+    /**
+     * native writes the operate here, the text of an operate is at most 1000 bytes
+     */
+    private final ByteBuffer operateBuffer = ByteBuffer.allocateDirect(4096).order(ByteOrder.nativeOrder());
+    /**
+     * sids and aids interned by native, by id. Their number is passed at the start of
+     * operateBuffer, native forgets and sends again the ones from there on, so the table is
+     * cleared when an operate cannot be read.
+     */
+    private final List<String> operateStrings = new ArrayList<>();
 
     protected AiClient(boolean success) {
         loaded = success;
+        server = null;
+    }
+
+    protected AiClient(AiServerClient server) {
+        this.server = server;
+        loaded = true;
+        // the server answers json only
+        binaryOperateSupported = false;
     }
 
     private static boolean tryToLoadNativeLib(boolean fromAPK){
@@ -129,6 +193,10 @@ public class AiClient {
             Logger.println("Please report this bug issue to github");
             System.exit(1);
         }
+        if (singleton.server != null) {
+            singleton.server.loadResMapping(resmapping);
+            return;
+        }
         singleton.jdasdbil(resmapping);
     }
 
@@ -136,26 +204,135 @@ public class AiClient {
         return singleton.b1bhkadf(acvitty, pageDesc);
     }
 
+    /**
+     * Get action with the gui tree written by GuiTreeBuffer, native reads the direct buffer in place.
+     * Returns null if the loaded native library has no such entry or could not read the buffer,
+     * callers should go back to xml.
+     */
+    public static Operate getAction(String activity, ByteBuffer guiTree, int length) {
+        return singleton.b3bhkadf(activity, guiTree, length, 0, 0, 0);
+    }
+
+    /**
+     * Same as above, native also keeps the parsed tree under treeHash for {@link #getActionByTreeHash}.
+     *
+     * @param maxPlanSteps at most this many operates may follow the returned one in {@link Operate#plan}
+     * @param executedPlanSteps how many operates of the last plan were run, native queues the others again
+     */
+    public static Operate getAction(String activity, ByteBuffer guiTree, int length, long treeHash,
+                                    int maxPlanSteps, int executedPlanSteps) {
+        return singleton.b3bhkadf(activity, guiTree, length, treeHash, maxPlanSteps, executedPlanSteps);
+    }
+
+    /**
+     * Get action on a gui tree passed before with the same tree hash, plans as above.
+     * Returns null if native no longer has it cached, callers should pass the whole tree again.
+     */
+    public static Operate getActionByTreeHash(String activity, long treeHash, int maxPlanSteps,
+                                              int executedPlanSteps) {
+        return singleton.b5bhkadf(activity, treeHash, maxPlanSteps, executedPlanSteps);
+    }
+
+    public static boolean isTreeCacheSupported() {
+        return singleton.treeCacheSupported;
+    }
+
+    public static boolean isGuiTreeBufferSupported() {
+        return singleton.guiTreeBufferSupported;
+    }
+
+    /**
+     * Pass gui trees as xml from now on, native failed to read a buffer it was given.
+     */
+    public static void disableGuiTreeBuffer() {
+        singleton.guiTreeBufferSupported = false;
+    }
+
     private native void jdasdbil(String b9);
 
     private native String b0bhkadf(String a0, String a1);
+    private native String b2bhkadf(String a0, ByteBuffer a1, int a2, long a3);
+    private native String b4bhkadf(String a0, long a1);
+    private native int b6bhkadf(String a0, ByteBuffer a1, int a2, long a3, int a4, int a5, ByteBuffer a6);
+    private native int b8bhkadf(String a0, long a1, int a2, int a3, ByteBuffer a4);
     private native void fgdsaf5d(int b7, String b2, int t);
     private native boolean nkksdhdk(String a0, float p1, float p2);
+    private native int[] b10bhkadf(String a0);
 
     public static native String getNativeVersion();
 
     public static boolean checkPointIsShield(String activity, PointF point)
     {
+        if (singleton.server != null) {
+            return singleton.server.checkPoint(activity, point);
+        }
         return singleton.nkksdhdk(activity, point.x, point.y);
     }
 
+    /**
+     * Black widget rects native resolved on the last page of the activity, as left, top, right,
+     * bottom of each rect. Empty if there are none, null if the loaded native library cannot tell,
+     * callers should then go on with {@link #checkPointIsShield}.
+     */
+    public static int[] getBlackWidgetRects(String activity) {
+        if (!singleton.blackRectsSupported) {
+            return null;
+        }
+        if (singleton.server != null) {
+            return singleton.server.getBlackWidgetRects(activity);
+        }
+        try {
+            return singleton.b10bhkadf(activity);
+        } catch (UnsatisfiedLinkError e) {
+            Logger.warningPrintln("native library does not export black widget rects");
+            singleton.blackRectsSupported = false;
+            return null;
+        }
+    }
+
     public Operate b1bhkadf(String activity, String pageDesc) {
         if (!loaded) {
             Logger.println("// Error: Could not load native library!");
             Logger.println("Please report this bug issue to github");
             System.exit(1);
         }
-        String operateStr = b0bhkadf(activity, pageDesc);
+        String operateStr = server != null ? server.getOperate(activity, pageDesc)
+                : b0bhkadf(activity, pageDesc);
+
+        if (operateStr.length() < 1) {
+            Logger.errorPrintln("native get operate failed " + operateStr);
+            return null;
+        }
+        return Operate.fromJson(operateStr);
+    }
+
+    public Operate b3bhkadf(String activity, ByteBuffer guiTree, int length, long treeHash,
+                            int maxPlanSteps, int executedPlanSteps) {
+        if (!loaded) {
+            Logger.println("// Error: Could not load native library!");
+            Logger.println("Please report this bug issue to github");
+            System.exit(1);
+        }
+        if (binaryOperateSupported) {
+            try {
+                operateBuffer.putInt(0, operateStrings.size());
+                int operateLength = b6bhkadf(activity, guiTree, length, treeHash, maxPlanSteps,
+                        executedPlanSteps, operateBuffer);
+                return decodeOperate(operateLength);
+            } catch (UnsatisfiedLinkError e) {
+                Logger.warningPrintln("native library does not support binary operate, fall back to json");
+                binaryOperateSupported = false;
+            }
+        }
+        String operateStr;
+        try {
+            operateStr = server != null ? server.getOperate(activity, guiTree, length, treeHash)
+                    : b2bhkadf(activity, guiTree, length, treeHash);
+        } catch (UnsatisfiedLinkError e) {
+            Logger.warningPrintln("native library does not support gui tree buffer, fall back to xml");
+            guiTreeBufferSupported = false;
+            return null;
+        }
 
         if (operateStr.length() < 1) {
             Logger.errorPrintln("native get operate failed " + operateStr);
@@ -164,4 +341,55 @@ public class AiClient {
         return Operate.fromJson(operateStr);
     }
 
+    public Operate b5bhkadf(String activity, long treeHash, int maxPlanSteps, int executedPlanSteps) {
+        if (!loaded) {
+            Logger.println("// Error: Could not load native library!");
+            Logger.println("Please report this bug issue to github");
+            System.exit(1);
+        }
+        if (binaryOperateSupported) {
+            try {
+                operateBuffer.putInt(0, operateStrings.size());
+                int operateLength = b8bhkadf(activity, treeHash, maxPlanSteps, executedPlanSteps,
+                        operateBuffer);
+                return operateLength > 0 ? decodeOperate(operateLength) : null;
+            } catch (UnsatisfiedLinkError e) {
+                Logger.warningPrintln("native library does not support binary operate, fall back to json");
+                binaryOperateSupported = false;
+            }
+        }
+        String operateStr;
+        try {
+            operateStr = server != null ? server.getOperateByTreeHash(activity, treeHash)
+                    : b4bhkadf(activity, treeHash);
+        } catch (UnsatisfiedLinkError e) {
+            Logger.warningPrintln("native library does not support the tree cache");
+            treeCacheSupported = false;
+            return null;
+        }
+
+        if (operateStr.length() < 1) {
+            return null;
+        }
+        return Operate.fromJson(operateStr);
+    }
+
+    private Operate decodeOperate(int length) {
+        if (length < 1) {
+            Logger.errorPrintln("native get operate failed");
+            return null;
+        }
+        Operate operate;
+        try {
+            operate = Operate.fromBuffer(operateBuffer, length, operateStrings);
+        } catch (RuntimeException e) {
+            operate = null;
+        }
+        if (operate == null) {
+            Logger.errorPrintln("native sent a broken operate of " + length + " bytes");
+            operateStrings.clear();
+        }
+        return operate;
+    }
+
 }
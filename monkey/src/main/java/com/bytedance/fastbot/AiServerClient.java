@@ -0,0 +1,324 @@
+/*
+ * This code is licensed under the Fastbot license. You may obtain a copy of this license in the LICENSE.txt file in the root directory of this source tree.
+ */
+
+package com.bytedance.fastbot;
+
+import android.graphics.PointF;
+
+import com.android.commands.monkey.utils.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Talks to a fastbot_server on the host instead of libfastbot_native.so, see
+ * native/project/server/fastbot_server.h for the protocol. The server keeps one agent per device
+ * id on a model shared by all devices, so only the device id is sent once per connection.
+ * The preference files of the device are sent first on every connection, the host has no
+ * /sdcard to read them from.
+ *
+ * The server answers operates as json, plans of user specified action chains are not sent.
+ */
+class AiServerClient {
+
+    private static final byte INIT_AGENT = 1;
+    private static final byte LOAD_RES_MAPPING = 2;
+    private static final byte GET_OPERATE = 3;
+    private static final byte GET_OPERATE_BY_BUFFER = 4;
+    private static final byte GET_OPERATE_BY_TREE_HASH = 5;
+    private static final byte CHECK_POINT = 6;
+    private static final byte GET_BLACK_WIDGET_RECTS = 7;
+    private static final byte LOAD_PREFERENCE = 8;
+
+    /**
+     * the files native reads from /sdcard, missing ones are left out
+     */
+    private static final String[] PREFERENCE_FILES = {
+            "max.config", "max.strings", "max.xpath.actions", "awl.strings", "abl.strings",
+            "max.widget.black", "max.tree.pruning", "max.valid.strings", "max.fuzzing.strings",
+            "max.mapping"};
+
+    private static final int CONNECT_TIMEOUT = 5000;
+
+    private final String mHost;
+    private final int mPort;
+    private final String mDeviceId;
+
+    private Socket mSocket;
+    private DataInputStream mInput;
+    private DataOutputStream mOutput;
+
+    /**
+     * read once, the server keeps the preference of a device that connects again
+     */
+    private byte[] mPreferenceRequest;
+    /**
+     * sent again when connecting again, the server keeps the agent of the device
+     */
+    private byte[] mInitAgentRequest;
+
+    private final ByteArrayOutputStream mRequestBytes = new ByteArrayOutputStream(64 * 1024);
+    private final DataOutputStream mRequest = new DataOutputStream(mRequestBytes);
+    private byte[] mGuiTreeBytes = new byte[0];
+
+    /**
+     * @param server host:port, the port is 9987 if not given
+     */
+    AiServerClient(String server, String deviceId) {
+        int colon = server.lastIndexOf(':');
+        mHost = colon < 0 ? server : server.substring(0, colon);
+        mPort = colon < 0 ? 9987 : Integer.parseInt(server.substring(colon + 1));
+        mDeviceId = deviceId;
+    }
+
+    synchronized boolean connect() {
+        close();
+        try {
+            Socket socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(mHost, mPort), CONNECT_TIMEOUT);
+            mSocket = socket;
+            mInput = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            mOutput = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            Logger.infoFormat("connected to fastbot server %s:%d as %s", mHost, mPort, mDeviceId);
+            if (mPreferenceRequest == null) {
+                mPreferenceRequest = preferenceRequest();
+            }
+            // before anything else, res mapping and the agent are loaded into this preference
+            send(mPreferenceRequest, mPreferenceRequest.length);
+            if (mInitAgentRequest != null) {
+                send(mInitAgentRequest, mInitAgentRequest.length);
+            }
+            return true;
+        } catch (IOException e) {
+            Logger.errorPrintln("Error: Could not connect to fastbot server " + mHost + ":" + mPort);
+            e.printStackTrace();
+            close();
+            return false;
+        }
+    }
+
+    /**
+     * Built aside of {@link #begin}, connect may be called while a request is begun.
+     */
+    private byte[] preferenceRequest() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(LOAD_PREFERENCE);
+        writeString(out, mDeviceId);
+        int count = 0;
+        ByteArrayOutputStream files = new ByteArrayOutputStream();
+        DataOutputStream filesOut = new DataOutputStream(files);
+        for (String name : PREFERENCE_FILES) {
+            File file = new File("/sdcard", name);
+            if (!file.isFile()) {
+                continue;
+            }
+            byte[] content = new byte[(int) file.length()];
+            try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+                in.readFully(content);
+            } catch (IOException e) {
+                Logger.warningPrintln("Could not read preference file " + file + ": " + e);
+                continue;
+            }
+            writeString(filesOut, name);
+            filesOut.writeInt(content.length);
+            filesOut.write(content);
+            count++;
+        }
+        out.writeInt(count);
+        files.writeTo(out);
+        Logger.infoFormat("sending %d preference files to fastbot server", count);
+        return bytes.toByteArray();
+    }
+
+    private void close() {
+        if (mSocket != null) {
+            try {
+                mSocket.close();
+            } catch (IOException e) {
+            }
+        }
+        mSocket = null;
+        mInput = null;
+        mOutput = null;
+    }
+
+    private DataOutputStream begin(byte command) throws IOException {
+        mRequestBytes.reset();
+        mRequest.writeByte(command);
+        return mRequest;
+    }
+
+    private DataInputStream send(byte[] request, int length) throws IOException {
+        mOutput.writeInt(length);
+        mOutput.write(request, 0, length);
+        mOutput.flush();
+        int replyLength = mInput.readInt();
+        byte[] reply = new byte[replyLength];
+        mInput.readFully(reply);
+        return new DataInputStream(new ByteArrayInputStream(reply));
+    }
+
+    /**
+     * Send the request begun by {@link #begin}, connecting again once if the connection is lost.
+     *
+     * @return the reply, null if the server can not be reached
+     */
+    private DataInputStream call() {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            if (mSocket == null && !connect()) {
+                return null;
+            }
+            try {
+                return send(mRequestBytes.toByteArray(), mRequestBytes.size());
+            } catch (IOException e) {
+                Logger.warningPrintln("fastbot server connection lost: " + e);
+                close();
+            }
+        }
+        return null;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    synchronized void initAgent(int agentType, String packageName) {
+        try {
+            DataOutputStream out = begin(INIT_AGENT);
+            writeString(out, mDeviceId);
+            out.writeInt(agentType);
+            writeString(out, packageName);
+            out.writeInt(0);
+            mInitAgentRequest = mRequestBytes.toByteArray();
+            call();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    synchronized void loadResMapping(String path) {
+        File file = new File(path);
+        byte[] content = new byte[(int) file.length()];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readFully(content);
+            DataOutputStream out = begin(LOAD_RES_MAPPING);
+            out.writeInt(content.length);
+            out.write(content);
+            call();
+        } catch (IOException e) {
+            Logger.errorPrintln("Error: Could not send res mapping " + path);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return the operate json, empty if the server can not be reached
+     */
+    synchronized String getOperate(String activity, String guiTree) {
+        try {
+            DataOutputStream out = begin(GET_OPERATE);
+            writeString(out, activity);
+            writeString(out, guiTree);
+            DataInputStream in = call();
+            return in == null ? "" : readString(in);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return "";
+        }
+    }
+
+    synchronized String getOperate(String activity, ByteBuffer guiTree, int length, long treeHash) {
+        try {
+            if (mGuiTreeBytes.length < length) {
+                mGuiTreeBytes = new byte[length];
+            }
+            ByteBuffer tree = guiTree.duplicate();
+            tree.clear();
+            tree.get(mGuiTreeBytes, 0, length);
+            DataOutputStream out = begin(GET_OPERATE_BY_BUFFER);
+            writeString(out, activity);
+            out.writeInt(length);
+            out.write(mGuiTreeBytes, 0, length);
+            out.writeLong(treeHash);
+            DataInputStream in = call();
+            return in == null ? "" : readString(in);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return "";
+        }
+    }
+
+    /**
+     * @return the operate json, empty if the server no longer has the tree cached
+     */
+    synchronized String getOperateByTreeHash(String activity, long treeHash) {
+        try {
+            DataOutputStream out = begin(GET_OPERATE_BY_TREE_HASH);
+            writeString(out, activity);
+            out.writeLong(treeHash);
+            DataInputStream in = call();
+            return in == null ? "" : readString(in);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return "";
+        }
+    }
+
+    synchronized boolean checkPoint(String activity, PointF point) {
+        try {
+            DataOutputStream out = begin(CHECK_POINT);
+            writeString(out, activity);
+            out.writeFloat(point.x);
+            out.writeFloat(point.y);
+            DataInputStream in = call();
+            return in != null && in.readByte() != 0;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * @return left, top, right, bottom of each rect, null if the server can not be reached
+     */
+    synchronized int[] getBlackWidgetRects(String activity) {
+        try {
+            DataOutputStream out = begin(GET_BLACK_WIDGET_RECTS);
+            writeString(out, activity);
+            DataInputStream in = call();
+            if (in == null) {
+                return null;
+            }
+            int[] rects = new int[4 * in.readInt()];
+            for (int i = 0; i < rects.length; i++) {
+                rects[i] = in.readInt();
+            }
+            return rects;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+}
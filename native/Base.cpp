@@ -10,6 +10,9 @@
 #include "Base.h"
 #include "utils.hpp"
 #include <algorithm>
+#include <deque>
+#include <mutex>
+#include <unordered_map>
 
 namespace fastbotx {
 
@@ -171,5 +174,50 @@ namespace fastbotx {
         return *this;
     }
 
+    InternedString::InternedString() : _entry(emptyEntry()) {}
+
+    InternedString::InternedString(const std::string &value) : _entry(intern(value)) {}
+
+    InternedString::InternedString(const char *value) : _entry(intern(std::string(value))) {}
+
+    const InternedString::Entry *InternedString::emptyEntry() {
+        static const Entry *empty = intern("");
+        return empty;
+    }
+
+    struct InternedString::Table {
+        std::mutex lock;
+        // by id, a deque never moves what it holds
+        std::deque<Entry> entries;
+        std::unordered_multimap<uintptr_t, const Entry *> entriesByHash;
+    };
+
+    InternedString::Table &InternedString::table() {
+        static Table internTable;
+        return internTable;
+    }
+
+    const InternedString::Entry *InternedString::intern(const std::string &value) {
+        uintptr_t hash = std::hash<std::string>{}(value);
+        Table &internTable = table();
+        std::lock_guard<std::mutex> internGuard(internTable.lock);
+        auto range = internTable.entriesByHash.equal_range(hash);
+        for (auto entry = range.first; entry != range.second; ++entry) {
+            if (*(entry->second->value) == value)
+                return entry->second;
+        }
+        internTable.entries.push_back({std::make_shared<std::string>(value), hash,
+                                       static_cast<uint32_t>(internTable.entries.size())});
+        const Entry *entry = &internTable.entries.back();
+        internTable.entriesByHash.emplace(hash, entry);
+        return entry;
+    }
+
+    InternedString InternedString::fromId(uint32_t id) {
+        Table &internTable = table();
+        std::lock_guard<std::mutex> internGuard(internTable.lock);
+        return InternedString(&internTable.entries.at(id));
+    }
+
 }
 #endif //BASE_CPP_
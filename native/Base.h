@@ -102,6 +102,56 @@ namespace fastbotx {
     typedef std::shared_ptr<std::string> stringPtr;
     typedef std::set<stringPtr, Comparator<std::string>> stringPtrSet;
 
+    /// A string kept once for the whole process, compared by pointer and hashed once.
+    /// Class names, resource ids and activity names repeat on every page, their number is bounded
+    /// by the app rather than by the steps, so they are never freed.
+    class InternedString {
+    public:
+        /// the empty string
+        InternedString();
+
+        explicit InternedString(const std::string &value);
+
+        explicit InternedString(const char *value);
+
+        const std::string &str() const { return *(this->_entry->value); }
+
+        /// the same pointer for the same value, as States and the visited activities keep it
+        const stringPtr &shared() const { return this->_entry->value; }
+
+        /// std::hash of the value, so the hashes of widgets and actions in saved models stay valid
+        uintptr_t hash() const { return this->_entry->hash; }
+
+        uint32_t id() const { return this->_entry->id; }
+
+        bool empty() const { return this->_entry->value->empty(); }
+
+        bool operator==(const InternedString &other) const { return this->_entry == other._entry; }
+
+        bool operator!=(const InternedString &other) const { return this->_entry != other._entry; }
+
+        static InternedString fromId(uint32_t id);
+
+    private:
+        struct Entry {
+            stringPtr value;
+            uintptr_t hash;
+            uint32_t id;
+        };
+
+        struct Table;
+
+        explicit InternedString(const Entry *entry) : _entry(entry) {}
+
+        static Table &table();
+
+        static const Entry *intern(const std::string &value);
+
+        static const Entry *emptyEntry();
+
+        const Entry *_entry;
+    };
+
     /// Compute the hash code according to the given vector, and embed order index as well when possible.
     /// \tparam T The class type for hashing
     /// \param vector The vector of shared pointer of class T
@@ -329,7 +379,8 @@ namespace fastbotx {
         time_t now = time(nullptr);
         struct tm timeStruct{};
         char buf[80];
-        timeStruct = *localtime(&now);
+        // the agent logs from its learning thread too
+        localtime_r(&now, &timeStruct);
         // Visit http://en.cppreference.com/w/cpp/chrono/c/strftime
         // for more information about date/time format
         strftime(buf, sizeof(buf), "%Y-%m-%d %T", &timeStruct);
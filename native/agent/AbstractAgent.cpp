@@ -66,6 +66,14 @@ namespace fastbotx {
         _newAction = nullptr;
     }
 
+    void AbstractAgent::learn(const ActionPtr &action, const StatePtr &state, time_t timestamp) {
+        this->updateStrategy();
+        if (nullptr != action && action->isModelAct() && state) {
+            action->visit(timestamp);
+            this->moveForward(state);
+        }
+    }
+
     void AbstractAgent::adjustActions() {
         double totalPriority = 0; // accumulate all the priorities from actions of this state
         for (const ActivityStateActionPtr &action: _newState->getActions()) {
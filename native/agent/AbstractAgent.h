@@ -34,6 +34,16 @@ namespace fastbotx {
 
         virtual void moveForward(StatePtr nextState);
 
+        /// updateStrategy for the resolved action, then visit it and moveForward to the state if it is
+        /// a model action. Agents may run this on a worker thread, see waitForLearning.
+        /// \param action the action returned by resolveNewAction
+        /// \param state the state the action was resolved on
+        /// \param timestamp the graph timestamp the action is visited at
+        virtual void learn(const ActionPtr &action, const StatePtr &state, time_t timestamp);
+
+        /// Block until the last learn has finished, before the graph or the agent is touched again.
+        virtual void waitForLearning() {}
+
         // override
         void onAddNode(StatePtr node) override;
 
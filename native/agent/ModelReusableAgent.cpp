@@ -17,20 +17,212 @@
 #include <limits>
 #include <mutex>
 #include <utility>
+#include <algorithm>
+#include <cstdio>
+#include <cstring>
+#include <fcntl.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
 
 
 namespace fastbotx {
 
+    /// A journal is this header, then records of uint64 action hash, int32 count increment,
+    /// uint32 activity length and the activity, in the byte order of the device.
+    static const char ReuseJournalMagic[4] = {'F', 'B', 'R', 'J'};
+    static const size_t ReuseJournalHeaderSize = sizeof(ReuseJournalMagic) + sizeof(uint64_t);
+
+    static void appendJournalRecord(std::string &journal, uint64_t actionHash,
+                                    const std::string &activity, int32_t count) {
+        auto length = static_cast<uint32_t>(activity.size());
+        journal.append(reinterpret_cast<const char *>(&actionHash), sizeof(actionHash));
+        journal.append(reinterpret_cast<const char *>(&count), sizeof(count));
+        journal.append(reinterpret_cast<const char *>(&length), sizeof(length));
+        journal.append(activity);
+    }
+
+    /// the entry of the action in the mapped model file, null if there is none or it has no targets
+    static const ReuseEntry *findLoadedEntry(const ReuseModel *snapshot, uint64_t actionHash) {
+        if (nullptr == snapshot || nullptr == snapshot->model())
+            return nullptr;
+        const ReuseEntry *entry = snapshot->model()->LookupByKey(actionHash);
+        if (nullptr == entry || nullptr == entry->targets() || 0 == entry->targets()->size())
+            return nullptr;
+        return entry;
+    }
+
+    ReuseModelData::~ReuseModelData() {
+        if (nullptr != this->mappedFile)
+            munmap(this->mappedFile, this->mappedSize);
+    }
+
+    bool ReuseModelData::contains(uint64_t actionHash) const {
+        std::lock_guard<std::mutex> reuseGuard(this->lock);
+        return this->containsLocked(actionHash);
+    }
+
+    bool ReuseModelData::containsLocked(uint64_t actionHash) const {
+        return nullptr != this->model.find(actionHash)
+               || nullptr != findLoadedEntry(this->snapshot, actionHash);
+    }
+
+    bool ReuseModelData::countTargets(uint64_t actionHash, const stringPtrSet &visitedActivities,
+                                      int &total, int &unvisited) const {
+        std::lock_guard<std::mutex> reuseGuard(this->lock);
+        const ReuseTargets *changed = this->model.find(actionHash);
+        if (nullptr != changed) {
+            for (const ActivityCount &target: changed->counts) {
+                total += target.count;
+                if (visitedActivities.find(InternedString::fromId(target.activity).shared()) ==
+                    visitedActivities.end())
+                    unvisited += target.count;
+            }
+            return true;
+        }
+        const ReuseEntry *loaded = findLoadedEntry(this->snapshot, actionHash);
+        if (nullptr == loaded)
+            return false;
+        auto activity = std::make_shared<std::string>();
+        for (const ActivityTimes *target: *(loaded->targets())) {
+            if (nullptr == target->activity())
+                continue;
+            total += target->times();
+            activity->assign(target->activity()->c_str(), target->activity()->size());
+            if (visitedActivities.find(activity) == visitedActivities.end())
+                unvisited += target->times();
+        }
+        return true;
+    }
+
+    ReuseTargets &ReuseModelData::mutableEntry(uint64_t actionHash) {
+        ReuseTargets *changed = this->model.find(actionHash);
+        if (nullptr != changed)
+            return *changed;
+        ReuseTargets &targets = this->model[actionHash];
+        const ReuseEntry *loaded = findLoadedEntry(this->snapshot, actionHash);
+        if (nullptr != loaded) {
+            targets.counts.reserve(loaded->targets()->size());
+            for (const ActivityTimes *target: *(loaded->targets())) {
+                if (nullptr != target->activity())
+                    targets.counts.push_back({InternedString(target->activity()->str()).id(),
+                                              target->times()});
+            }
+            this->targetCount += targets.counts.size();
+        }
+        return targets;
+    }
+
+    void ReuseModelData::addTargetCount(uint64_t actionHash, const std::string &activity, int count) {
+        ReuseTargets &targets = this->mutableEntry(actionHash);
+        targets.lastUse = ++this->useTick;
+        uint32_t activityId = InternedString(activity).id();
+        auto target = std::find_if(targets.counts.begin(), targets.counts.end(),
+                                   [activityId](const ActivityCount &target) {
+                                       return target.activity == activityId;
+                                   });
+        if (target != targets.counts.end()) {
+            target->count += count;
+        } else {
+            targets.counts.push_back({activityId, count});
+            this->targetCount++;
+        }
+        this->trimToMemoryLimit();
+    }
+
+    void ReuseModelData::setQValue(uint64_t actionHash, double qValue) {
+        this->qValues[actionHash] = qValue;
+    }
+
+    size_t ReuseModelData::memoryUsage() const {
+        return this->model.memoryUsage() + this->qValues.memoryUsage()
+               + this->targetCount * sizeof(ActivityCount);
+    }
+
+    void ReuseModelData::trimToMemoryLimit() {
+        // nothing can be evicted before the compacted snapshot is mapped
+        if (0 == this->memoryLimit || this->compactRequested || this->memoryUsage() <= this->memoryLimit)
+            return;
+        while (this->memoryUsage() > this->memoryLimit) {
+            if (0 == this->evictColdEntries()) {
+                BLOG("reuse model takes %zu bytes, compact it to evict more", this->memoryUsage());
+                this->compactRequested = true;
+                return;
+            }
+        }
+    }
+
+    size_t ReuseModelData::evictColdEntries() {
+        // what changed after the snapshot was written, also what was replayed from the journal,
+        // is only here
+        std::vector<uint32_t> lastUses;
+        lastUses.reserve(this->model.size());
+        uint32_t savedTick = this->snapshotTick;
+        this->model.forEach([&lastUses, savedTick](uint64_t, const ReuseTargets &targets) {
+            if (targets.lastUse <= savedTick)
+                lastUses.push_back(targets.lastUse);
+        });
+        if (lastUses.empty())
+            return 0;
+        size_t evictCount = std::min(lastUses.size(), std::max<size_t>(1, this->model.size() / 4));
+        auto coldest = lastUses.begin() + static_cast<long>(evictCount - 1);
+        std::nth_element(lastUses.begin(), coldest, lastUses.end());
+        uint32_t threshold = *coldest;
+        std::vector<uint64_t> evicted;
+        this->model.forEach([&evicted, threshold](uint64_t actionHash, const ReuseTargets &targets) {
+            if (targets.lastUse <= threshold)
+                evicted.push_back(actionHash);
+        });
+        for (uint64_t actionHash: evicted) {
+            this->targetCount -= this->model.find(actionHash)->counts.size();
+            this->model.erase(actionHash);
+            this->qValues.erase(actionHash);
+        }
+        this->model.rehash(this->model.size());
+        this->qValues.rehash(this->qValues.size());
+        BLOG("evicted %zu cold actions of the reuse model, %zu left in %zu bytes", evicted.size(),
+             this->model.size(), this->memoryUsage());
+        return evicted.size();
+    }
+
+    bool ReuseModelData::mapSnapshot(const std::string &modelFilePath) {
+        int file = open(modelFilePath.c_str(), O_RDONLY);
+        if (file < 0)
+            return false;
+        struct stat fileStat{};
+        if (0 != fstat(file, &fileStat)
+            || fileStat.st_size < static_cast<off_t>(sizeof(flatbuffers::uoffset_t))) {
+            close(file);
+            return false;
+        }
+        auto size = static_cast<size_t>(fileStat.st_size);
+        // the mapping outlives the file, a compacted model is renamed over it
+        void *mapped = mmap(nullptr, size, PROT_READ, MAP_PRIVATE, file, 0);
+        close(file);
+        if (MAP_FAILED == mapped)
+            return false;
+        if (nullptr != this->mappedFile)
+            munmap(this->mappedFile, this->mappedSize);
+        this->mappedFile = mapped;
+        this->mappedSize = size;
+        this->snapshot = GetReuseModel(mapped);
+        return true;
+    }
+
     ModelReusableAgent::ModelReusableAgent(const ModelPtr &model)
             : AbstractAgent(model), _alpha(SarsaRLDefaultAlpha), _epsilon(SarsaRLDefaultEpsilon),
+              _reuse(std::make_shared<ReuseModelData>()),
               _modelSavePath(DefaultModelSavePath), _defaultModelSavePath(DefaultModelSavePath) {
         this->_algorithmType = AlgorithmType::Reuse;
+        this->_reuse->memoryLimit =
+                static_cast<size_t>(Preference::inst()->getReuseModelMemoryLimit()) * 1024 * 1024;
     }
 
     ModelReusableAgent::~ModelReusableAgent() {
+        this->stopLearning();
         BLOG("save model in destruct");
         this->saveReuseModel(this->_modelSavePath);
-        this->_reuseModel.clear();
+        this->_reuse.reset();
     }
 
     void ModelReusableAgent::computeAlphaValue() {
@@ -109,17 +301,8 @@ namespace fastbotx {
         int unvisited = 0;
         // find this action in this model according to its int hash
         // according to the given action, get the activities that this action could reach in reuse model.
-        auto actionMapIterator = this->_reuseModel.find(action->hash());
-        if (actionMapIterator != this->_reuseModel.end()) {
-            // Iterate the map containing entry of activity name and visited count
-            // to ascertain the unvisited activity count according to the pre-saved reuse model
-            for (const auto &activityCountMapIterator: (*actionMapIterator).second) {
-                total += activityCountMapIterator.second;
-                stringPtr activity = activityCountMapIterator.first;
-                if (visitedActivities.find(activity) == visitedActivities.end()) {
-                    unvisited += activityCountMapIterator.second;
-                }
-            }
+        // to ascertain the unvisited activity count according to the pre-saved reuse model
+        if (this->_reuse->countTargets(action->hash(), visitedActivities, total, unvisited)) {
             if (total > 0 && unvisited > 0) {
                 value = static_cast<double>(unvisited) / total;
             }
@@ -140,7 +323,7 @@ namespace fastbotx {
             uintptr_t actionHash = action->hash();
             // if this action is new, increment the value by 1, else by 0.5
             // If this action has not been visited yet.
-            if (this->_reuseModel.find(actionHash) == this->_reuseModel.end()) {
+            if (!this->_reuse->contains(actionHash)) {
                 value += 1.0;
             }
                 // If this action is been performed in current testing.
@@ -211,18 +394,13 @@ namespace fastbotx {
         if (activity == nullptr)
             return;
         {
-            std::lock_guard<std::mutex> reuseGuard(this->_reuseModelLock);
-            auto iter = this->_reuseModel.find(hash);
-            if (iter == this->_reuseModel.end()) {
+            std::lock_guard<std::mutex> reuseGuard(this->_reuse->lock);
+            if (!this->_reuse->containsLocked(hash)) {
                 BDLOG("can not find action %s in reuse map", modelAction->getId().c_str());
-                ReuseEntryM entryMap;
-                entryMap.emplace(std::make_pair(activity, 1));
-                this->_reuseModel[hash] = entryMap;
-            } else {
-                ((*iter).second)[activity] += 1;
             }
-            auto qValueReuseEntryIter = this->_reuseQValue.find(hash);
-            this->_reuseQValue[hash] = modelAction->getQValue();
+            this->_reuse->addTargetCount(hash, *activity, 1);
+            appendJournalRecord(this->_reuse->journalPending, hash, *activity, 1);
+            this->_reuse->setQValue(hash, modelAction->getQValue());
         }
     }
 
@@ -300,8 +478,7 @@ namespace fastbotx {
         std::vector<ActionPtr> actionsNotInModel;
         for (const auto &action: this->_newState->getActions()) {
             bool matched = action->isModelAct() // should be one of aforementioned actions.
-                           && (this->_reuseModel.find(action->hash()) ==
-                               this->_reuseModel.end()) // this action should not be in reuse model
+                           && !this->_reuse->contains(action->hash()) // this action should not be in reuse model
                            && action->getVisitedCount() <=
                               0; // find the action that not been explored before
             if (matched) {
@@ -335,8 +512,7 @@ namespace fastbotx {
         for (const auto &action: this->_newState->targetActions())  // except BACK/FEED/EVENT_SHELL actions. Only actions from  ActionType::CLICK to ActionType::SCROLL_BOTTOM_UP_N are allowed
         {
             uintptr_t actionHash = action->hash();
-            if (this->_reuseModel.find(actionHash) !=
-                this->_reuseModel.end()) // found this action in reuse model
+            if (this->_reuse->contains(actionHash)) // found this action in reuse model
             {
                 if (action->getVisitedCount() >
                     0) // In this state, this action has just been performed in this round.
@@ -392,8 +568,7 @@ namespace fastbotx {
             // it won't happen, since if there is am unvisited action in state, it will be
             // visited before this method is called.
             if (action->getVisitedCount() <= 0) {
-                auto iterator = this->_reuseModel.find(actionHash);
-                if (iterator != this->_reuseModel.end()) {
+                if (this->_reuse->contains(actionHash)) {
                     qv += this->probabilityOfVisitingNewActivities(action, visitedActivities);
                 } else {
                     BDLOG("qvalue pick return a action: %s", action->toString().c_str());
@@ -422,11 +597,108 @@ namespace fastbotx {
         AbstractAgent::adjustActions();
     }
 
+    void ModelReusableAgent::learn(const ActionPtr &action, const StatePtr &state,
+                                   time_t timestamp) {
+        if (!DEFER_STRATEGY_UPDATE) {
+            AbstractAgent::learn(action, state, timestamp);
+            return;
+        }
+        std::unique_lock<std::mutex> reuseLock(this->_reuse->lock);
+        // the transitions are learned in order, the model waits before resolving the next action anyway
+        this->_learningCondition.wait(reuseLock, [this] {
+            return !this->_learningPending && !this->_learning;
+        });
+        if (!this->_learningThread.joinable()) {
+            this->_learningThread = std::thread(&ModelReusableAgent::learningLoop, this);
+        }
+        this->_learningAction = action;
+        this->_learningState = state;
+        this->_learningTimestamp = timestamp;
+        this->_learningPending = true;
+        this->_learningCondition.notify_all();
+    }
+
+    void ModelReusableAgent::waitForLearning() {
+        if (std::this_thread::get_id() == this->_learningThread.get_id())
+            return;
+        std::unique_lock<std::mutex> reuseLock(this->_reuse->lock);
+        this->_learningCondition.wait(reuseLock, [this] {
+            return !this->_learningPending && !this->_learning;
+        });
+    }
+
+    void ModelReusableAgent::learningLoop() {
+        std::unique_lock<std::mutex> reuseLock(this->_reuse->lock);
+        while (true) {
+            this->_learningCondition.wait(reuseLock, [this] {
+                return this->_stopLearning || this->_learningPending;
+            });
+            // a pending transition is still learned when stopping, so that it is saved
+            if (!this->_learningPending)
+                break;
+            ActionPtr action = std::move(this->_learningAction);
+            StatePtr state = std::move(this->_learningState);
+            time_t timestamp = this->_learningTimestamp;
+            this->_learningPending = false;
+            this->_learning = true;
+            // updateReuseModel and saveReuseModel take the lock while learning
+            reuseLock.unlock();
+            {
+                // the transition is dropped if the model is going away
+                ModelPtr model = this->_model.lock();
+                if (model) {
+                    double startTimestamp = currentStamp();
+                    AbstractAgent::learn(action, state, timestamp);
+                    BDLOG("learn cost %.3fs", currentStamp() - startTimestamp);
+                }
+                action.reset();
+                state.reset();
+                reuseLock.lock();
+                this->_learning = false;
+                this->_learningCondition.notify_all();
+                reuseLock.unlock();
+                std::weak_ptr<Model> weakModel = model;
+                model.reset();
+                // this agent goes away with the model, it may be destroyed by this very thread
+                if (weakModel.expired())
+                    return;
+            }
+            reuseLock.lock();
+        }
+    }
+
+    void ModelReusableAgent::stopLearning() {
+        {
+            std::lock_guard<std::mutex> reuseGuard(this->_reuse->lock);
+            this->_stopLearning = true;
+        }
+        this->_learningCondition.notify_all();
+        if (!this->_learningThread.joinable())
+            return;
+        // the last reference to the agent may be dropped by the learning thread itself
+        if (std::this_thread::get_id() == this->_learningThread.get_id())
+            this->_learningThread.detach();
+        else
+            this->_learningThread.join();
+    }
+
+    /// Append what was learned to the journal every ReuseJournalFlushInterval ms, the whole model is
+    /// written again only when the journal has grown past ReuseJournalCompactSize.
     void ModelReusableAgent::threadModelStorage(const std::weak_ptr<ModelReusableAgent> &agent) {
-        int saveInterval = 1000 * 60 * 10; // save model per 10 min
-        while (!agent.expired()) {
-            agent.lock()->saveReuseModel(agent.lock()->_modelSavePath);
-            std::this_thread::sleep_for(std::chrono::milliseconds(saveInterval));
+        while (true) {
+            std::this_thread::sleep_for(std::chrono::milliseconds(ReuseJournalFlushInterval));
+            ReuseAgentPtr reuseAgent = agent.lock();
+            if (!reuseAgent)
+                break;
+            bool compactRequested;
+            {
+                std::lock_guard<std::mutex> reuseGuard(reuseAgent->_reuse->lock);
+                compactRequested = reuseAgent->_reuse->compactRequested;
+            }
+            if (reuseAgent->flushReuseJournal() > ReuseJournalCompactSize || compactRequested) {
+                BLOG("%s", "compact reuse model journal");
+                reuseAgent->saveReuseModel(reuseAgent->_modelSavePath);
+            }
         }
     }
 
@@ -447,79 +719,196 @@ namespace fastbotx {
         if (!this->_modelSavePath.empty()) {
             this->_defaultModelSavePath = STORAGE_PREFIX + packageName + ".tmp.fbm";
         }
+        {
+            // another device testing the same package in this process has loaded it already
+            std::lock_guard<std::mutex> loadedGuard(LoadedReuseModelsLock);
+            std::shared_ptr<ReuseModelData> loaded = LoadedReuseModels[modelFilePath].lock();
+            if (loaded) {
+                BLOG("share loaded model: %s", modelFilePath.c_str());
+                this->_reuse = loaded;
+                return;
+            }
+            LoadedReuseModels[modelFilePath] = this->_reuse;
+        }
         BLOG("begin load model: %s", this->_modelSavePath.c_str());
+        std::lock_guard<std::mutex> saveGuard(this->_reuse->saveLock);
+        this->_reuse->journalReplayed = true;
 
-        std::ifstream modelFile(modelFilePath, std::ios::binary | std::ios::in);
-        if (modelFile.fail()) {
-            BLOG("read model file %s failed, check if file exists!", modelFilePath.c_str());
-            return;
+        {
+            // entries are read from the mapped file when they are looked up, the model file is
+            // written from a map ordered by action, so they can be searched by key
+            std::lock_guard<std::mutex> reuseGuard(this->_reuse->lock);
+            this->_reuse->model.clear();
+            this->_reuse->qValues.clear();
+            this->_reuse->targetCount = 0;
+            this->_reuse->snapshotTick = this->_reuse->useTick;
+            if (!this->_reuse->mapSnapshot(modelFilePath)) {
+                BLOG("read model file %s failed, check if file exists!", modelFilePath.c_str());
+            } else {
+                this->_reuse->journalGeneration = this->_reuse->snapshot->journal();
+                auto loadedEntries = this->_reuse->snapshot->model();
+                BLOG("loaded model contains actions: %u",
+                     nullptr == loadedEntries ? 0 : loadedEntries->size());
+            }
         }
+        // also the journal of a model that was never compacted
+        this->replayReuseJournal(getJournalPath(modelFilePath));
+    }
 
-        // load  model file to struct
-        std::filebuf *fileBuffer = modelFile.rdbuf();
-        // returns the new position of the altered control stream, which is the end of the file
-        std::size_t filesize = fileBuffer->pubseekoff(0, modelFile.end, modelFile.in);
-        // reset the position of the controlled stream
-        fileBuffer->pubseekpos(0, modelFile.in);
-        char *modelFileData = new char[filesize];
-        //Reads count characters from the input sequence and stores them into a character array.
-        fileBuffer->sgetn(modelFileData, static_cast<int>(filesize));
-        auto reuseFBModel = GetReuseModel(modelFileData);
+    std::string ModelReusableAgent::getJournalPath(const std::string &modelFilepath) {
+        return modelFilepath + ".journal";
+    }
 
-        // to std::map
-        {
-            std::lock_guard<std::mutex> reuseGuard(this->_reuseModelLock);
-            this->_reuseModel.clear();
-            this->_reuseQValue.clear();
+    void ModelReusableAgent::replayReuseJournal(const std::string &journalPath) {
+        this->_reuse->journalSize = 0;
+        std::ifstream journalFile(journalPath, std::ios::binary | std::ios::in);
+        if (journalFile.fail())
+            return;
+        std::string journal((std::istreambuf_iterator<char>(journalFile)),
+                            std::istreambuf_iterator<char>());
+        journalFile.close();
+        uint64_t generation = 0;
+        if (journal.size() < ReuseJournalHeaderSize
+            || 0 != memcmp(journal.data(), ReuseJournalMagic, sizeof(ReuseJournalMagic))) {
+            BLOGE("broken reuse model journal %s", journalPath.c_str());
+            return;
         }
-        auto reusedModelDataPtr = reuseFBModel->model();
-        if (!reusedModelDataPtr) {
-            BLOG("%s", "model data is null");
+        memcpy(&generation, journal.data() + sizeof(ReuseJournalMagic), sizeof(generation));
+        if (generation != this->_reuse->journalGeneration) {
+            // the model was compacted after the last records were appended, they are in the snapshot
+            BLOG("skip stale reuse model journal %s", journalPath.c_str());
             return;
         }
-        for (int entryIndex = 0; entryIndex < reusedModelDataPtr->size(); entryIndex++) {
-            auto reuseEntryInReuseModel = reusedModelDataPtr->Get(entryIndex);
-            uint64_t actionHash = reuseEntryInReuseModel->action();
-            auto activityEntry = reuseEntryInReuseModel->targets();
-            ReuseEntryM entryPtr;
-            for (int targetIndex = 0; targetIndex < activityEntry->size(); targetIndex++) {
-                auto targetEntry = activityEntry->Get(targetIndex);
-                BDLOG("load model hash: %llu %s %d", actionHash,
-                      targetEntry->activity()->str().c_str(), (int) targetEntry->times());
-                entryPtr.insert(std::make_pair(
-                        std::make_shared<std::string>(targetEntry->activity()->str()),
-                        (int) targetEntry->times()));
-            }
-            if (!entryPtr.empty()) {
-                std::lock_guard<std::mutex> reuseGuard(this->_reuseModelLock);
-//            this->_reuseQValue.insert(std::make_pair(actionHash, reuseEntryInReuseModel->quality()));
-                this->_reuseModel.insert(std::make_pair(actionHash, entryPtr));
-            }
+        size_t offset = ReuseJournalHeaderSize;
+        int records = 0;
+        std::lock_guard<std::mutex> reuseGuard(this->_reuse->lock);
+        while (journal.size() - offset >= sizeof(uint64_t) + 2 * sizeof(uint32_t)) {
+            uint64_t actionHash;
+            int32_t count;
+            uint32_t length;
+            const char *record = journal.data() + offset;
+            memcpy(&actionHash, record, sizeof(actionHash));
+            memcpy(&count, record + sizeof(actionHash), sizeof(count));
+            memcpy(&length, record + sizeof(actionHash) + sizeof(count), sizeof(length));
+            size_t recordSize = sizeof(actionHash) + sizeof(count) + sizeof(length) + length;
+            // a record cut short by a crash ends the journal
+            if (journal.size() - offset < recordSize)
+                break;
+            std::string activity(record + recordSize - length, length);
+            this->_reuse->addTargetCount(actionHash, activity, count);
+            offset += recordSize;
+            records++;
+        }
+        if (offset < journal.size() && 0 != truncate(journalPath.c_str(), static_cast<off_t>(offset))) {
+            // appending after a cut record would garble the records following it
+            BLOGE("truncate reuse model journal %s failed", journalPath.c_str());
+            return;
+        }
+        this->_reuse->journalSize = offset;
+        BLOG("replayed %d records of reuse model journal %s", records, journalPath.c_str());
+    }
+
+    size_t ModelReusableAgent::flushReuseJournal() {
+        std::lock_guard<std::mutex> saveGuard(this->_reuse->saveLock);
+        std::string pending;
+        {
+            std::lock_guard<std::mutex> reuseGuard(this->_reuse->lock);
+            pending.swap(this->_reuse->journalPending);
+        }
+        // appending before the journal is replayed would write over it
+        if (!this->_reuse->journalReplayed || pending.empty())
+            return this->_reuse->journalSize;
+        std::string journalPath = getJournalPath(this->_modelSavePath);
+        bool restart = 0 == this->_reuse->journalSize;
+        FILE *journalFile = fopen(journalPath.c_str(), restart ? "wb" : "ab");
+        if (nullptr == journalFile) {
+            // the deltas are still in the model, they are saved with the next snapshot
+            BLOGE("open reuse model journal %s failed", journalPath.c_str());
+            return this->_reuse->journalSize;
         }
-        BLOG("loaded model contains actions: %zu", this->_reuseModel.size());
-        delete[] modelFileData;
+        if (restart) {
+            uint64_t generation = this->_reuse->journalGeneration;
+            fwrite(ReuseJournalMagic, 1, sizeof(ReuseJournalMagic), journalFile);
+            fwrite(&generation, 1, sizeof(generation), journalFile);
+            this->_reuse->journalSize = ReuseJournalHeaderSize;
+        }
+        size_t written = fwrite(pending.data(), 1, pending.size(), journalFile);
+        fclose(journalFile);
+        this->_reuse->journalSize += written;
+        BDLOG("append %zu bytes to reuse model journal", written);
+        return this->_reuse->journalSize;
     }
 
     std::string ModelReusableAgent::DefaultModelSavePath = "/sdcard/fastbot.model.fbm";
+    std::map<std::string, std::weak_ptr<ReuseModelData>> ModelReusableAgent::LoadedReuseModels;
+    std::mutex ModelReusableAgent::LoadedReuseModelsLock;
 
     /// With the FlatBuffer library, serialize the ReuseModel according to ReuseModel.fbs,
     /// and save the data to modelFilePath.
     /// \param modelFilepath the path to save this serialized model.
     void ModelReusableAgent::saveReuseModel(const std::string &modelFilepath) {
+        std::string outputFilePath = modelFilepath;
+        if (outputFilePath.empty()) // if the passed argument modelFilepath is "", use the tmpSavePath
+            outputFilePath = this->_defaultModelSavePath;
+        // only the snapshot at _modelSavePath is followed by the journal
+        bool compact = outputFilePath == this->_modelSavePath && this->_reuse->journalReplayed;
         flatbuffers::FlatBufferBuilder builder;
         std::vector<flatbuffers::Offset<fastbotx::ReuseEntry>> actionActivityVector;
+        std::lock_guard<std::mutex> saveGuard(this->_reuse->saveLock);
+        std::string snapshotPending;
+        uint32_t snapshotTick = 0;
         // loaded, but not visited
         {
-            std::lock_guard<std::mutex> reuseGuard(this->_reuseModelLock);
-            for (const auto &actionIterator: this->_reuseModel) {
-                uint64_t actionHash = actionIterator.first;
-                ReuseEntryM activityCountEntryMap = actionIterator.second;
+            std::lock_guard<std::mutex> reuseGuard(this->_reuse->lock);
+            if (compact) {
+                snapshotPending.swap(this->_reuse->journalPending);
+                snapshotTick = this->_reuse->useTick;
+                this->_reuse->compactRequested = false;
+            }
+            // merge the changed entries into the loaded ones, both are ordered by action
+            auto loadedEntries = nullptr == this->_reuse->snapshot ? nullptr
+                                                                   : this->_reuse->snapshot->model();
+            flatbuffers::uoffset_t loadedIndex = 0;
+            flatbuffers::uoffset_t loadedCount = nullptr == loadedEntries ? 0 : loadedEntries->size();
+            std::vector<uint64_t> changedActions;
+            changedActions.reserve(this->_reuse->model.size());
+            this->_reuse->model.forEach([&changedActions](uint64_t actionHash, const ReuseTargets &) {
+                changedActions.push_back(actionHash);
+            });
+            std::sort(changedActions.begin(), changedActions.end());
+            auto changed = changedActions.begin();
+            while (loadedIndex < loadedCount || changed != changedActions.end()) {
+                const ReuseEntry *loaded = loadedIndex < loadedCount ? loadedEntries->Get(loadedIndex)
+                                                                     : nullptr;
+                uint64_t actionHash;
                 std::vector<flatbuffers::Offset<fastbotx::ActivityTimes>> activityCountEntryVector; // flat buffer needs vector rather than map
-                for (const auto &activityCountEntry: activityCountEntryMap) {
-                    auto sentryActT = CreateActivityTimes(builder, builder.CreateString(
-                            *(activityCountEntry.first)), activityCountEntry.second);
-                    activityCountEntryVector.push_back(sentryActT);
+                if (changed != changedActions.end()
+                    && (nullptr == loaded || *changed <= loaded->action())) {
+                    if (nullptr != loaded && *changed == loaded->action())
+                        loadedIndex++;
+                    actionHash = *changed;
+                    for (const ActivityCount &target: this->_reuse->model.find(actionHash)->counts) {
+                        auto sentryActT = CreateActivityTimes(builder, builder.CreateSharedString(
+                                InternedString::fromId(target.activity).str()), target.count);
+                        activityCountEntryVector.push_back(sentryActT);
+                    }
+                    ++changed;
+                } else {
+                    loadedIndex++;
+                    if (nullptr == loaded->targets())
+                        continue;
+                    actionHash = loaded->action();
+                    for (const ActivityTimes *target: *(loaded->targets())) {
+                        if (nullptr == target->activity())
+                            continue;
+                        activityCountEntryVector.push_back(CreateActivityTimes(
+                                builder, builder.CreateSharedString(target->activity()->c_str(),
+                                                                    target->activity()->size()),
+                                target->times()));
+                    }
                 }
+                if (activityCountEntryVector.empty())
+                    continue;
                 auto savedActivityCountEntries = CreateReuseEntry(builder, actionHash,
                                                                   builder.CreateVector(
                                                                           activityCountEntryVector.data(),
@@ -527,18 +916,36 @@ namespace fastbotx {
                 actionActivityVector.push_back(savedActivityCountEntries);
             }
         }
+        // the records of the current journal are in this snapshot, a new journal follows it
+        uint64_t generation = this->_reuse->journalGeneration + (compact ? 1 : 0);
         auto savedActionActivityEntries = CreateReuseModel(builder, builder.CreateVector(
-                actionActivityVector.data(), actionActivityVector.size()));
+                actionActivityVector.data(), actionActivityVector.size()), generation);
         builder.Finish(savedActionActivityEntries);
 
-        //save to local file
-        std::string outputFilePath = modelFilepath;
-        if (outputFilePath.empty()) // if the passed argument modelFilepath is "", use the tmpSavePath
-            outputFilePath = this->_defaultModelSavePath;
+        //save to local file, the old snapshot stays until the new one is complete
         BLOG("save model to path: %s", outputFilePath.c_str());
-        std::ofstream outputFile(outputFilePath);
+        std::string partFilePath = outputFilePath + ".part";
+        std::ofstream outputFile(partFilePath, std::ios::binary | std::ios::out | std::ios::trunc);
         outputFile.write((char *) builder.GetBufferPointer(), static_cast<int>(builder.GetSize()));
         outputFile.close();
+        if (outputFile.fail() || 0 != rename(partFilePath.c_str(), outputFilePath.c_str())) {
+            BLOGE("save model to path %s failed", outputFilePath.c_str());
+            // the journal goes on with the deltas this snapshot should have taken
+            std::lock_guard<std::mutex> reuseGuard(this->_reuse->lock);
+            this->_reuse->journalPending.insert(0, snapshotPending);
+            return;
+        }
+        if (compact) {
+            // the old journal is skipped on loading from now on, the next flush starts a new one
+            this->_reuse->journalGeneration = generation;
+            this->_reuse->journalSize = 0;
+            // the entries that did not change while writing read the same from the new snapshot
+            std::lock_guard<std::mutex> reuseGuard(this->_reuse->lock);
+            if (this->_reuse->mapSnapshot(outputFilePath)) {
+                this->_reuse->snapshotTick = snapshotTick;
+                this->_reuse->trimToMemoryLimit();
+            }
+        }
     }
 
 }
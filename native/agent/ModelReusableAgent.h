@@ -10,8 +10,12 @@
 #include "AbstractAgent.h"
 #include "State.h"
 #include "Action.h"
+#include "ReuseHashMap.h"
 #include <vector>
 #include <map>
+#include <unordered_map>
+#include <thread>
+#include <condition_variable>
 
 namespace fastbotx {
 
@@ -19,9 +23,111 @@ namespace fastbotx {
 #define SarsaRLDefaultEpsilon 0.05
 #define SarsaRLDefaultGamma   0.8
 
-    typedef std::map<stringPtr, int> ReuseEntryM;
-    typedef std::map<uint64_t, ReuseEntryM> ReuseEntryIntMap;
-    typedef std::map<uint64_t, double> ReuseEntryQValueMap;
+/// ms between appending the deltas of the reuse model to its journal
+#define ReuseJournalFlushInterval 10000
+/// the journal is compacted into a new snapshot of the reuse model once it is larger than this
+#define ReuseJournalCompactSize (4 * 1024 * 1024)
+
+    /// visits of an activity after an action, activity is the id of its InternedString
+    struct ActivityCount {
+        uint32_t activity;
+        int32_t count;
+    };
+
+    struct ReuseTargets {
+        std::vector<ActivityCount> counts;
+        // ReuseModelData::useTick when it last changed
+        uint32_t lastUse{0};
+    };
+
+    typedef ReuseHashMap<ReuseTargets> ReuseEntryIntMap;
+    typedef ReuseHashMap<double> ReuseEntryQValueMap;
+
+    struct ReuseModel; // storage/ReuseModel_generated.h
+
+    /// The reuse model of a package, shared by the agents of all the devices testing it in one
+    /// process, see fastbot_server.
+    ///
+    /// The loaded model file is mapped read only and its entries are looked up in place, an entry
+    /// is copied into model only when it changes.
+    ///
+    /// Once model and qValues take more than memoryLimit, up to a quarter of the entries, those that
+    /// changed least recently, is dropped. Only entries that have not changed since snapshot was
+    /// written are dropped, they read the same from the file. If there are too few of them, the
+    /// storage thread is asked to compact the journal, the new snapshot is mapped and then the
+    /// entries it holds can be dropped.
+    ///
+    /// Eviction runs on whichever thread learns or compacts and rehashes model and qValues, so
+    /// every read of them holds lock too.
+    struct ReuseModelData {
+        // A map containing entry of hash code of Action and map, which containing entry of name of activity that this
+        // action goes to and the count of this very activity being visited.
+        // Entries here hide the entries of the same action in snapshot.
+        // model and qValues are guarded by lock
+        ReuseEntryIntMap model;
+        ReuseEntryQValueMap qValues;
+        size_t targetCount{0};
+        uint32_t useTick{0};
+        // bytes, max.reuseModelMemoryLimit, 0 for no limit
+        size_t memoryLimit{0};
+        // the loaded model file, entries are sorted by action
+        const ReuseModel *snapshot{nullptr};
+        // useTick when snapshot was written, entries with a later lastUse are not in it
+        uint32_t snapshotTick{0};
+        // the model is over memoryLimit with nothing to evict until it is compacted, guarded by lock
+        bool compactRequested{false};
+        void *mappedFile{nullptr};
+        size_t mappedSize{0};
+        // also taken by the lookups, a compaction on the storage thread remaps snapshot
+        mutable std::mutex lock;
+        // the agents sharing the model save it to the same file
+        std::mutex saveLock;
+
+        // deltas of model not appended to the journal yet, guarded by lock
+        std::string journalPending;
+        // the journal follows the snapshot with the same generation, guarded by saveLock
+        uint64_t journalGeneration{0};
+        size_t journalSize{0};
+        bool journalReplayed{false};
+
+        ~ReuseModelData();
+
+        /// Takes lock, the lookups below are made from the agent threads while the storage thread
+        /// may remap snapshot.
+        bool contains(uint64_t actionHash) const;
+
+        /// contains, call with lock held
+        bool containsLocked(uint64_t actionHash) const;
+
+        /// Sum up the visits of the target activities of the action, and those not in visitedActivities.
+        /// Takes lock.
+        /// \return false if the action is not in the model
+        bool countTargets(uint64_t actionHash, const stringPtrSet &visitedActivities, int &total,
+                          int &unvisited) const;
+
+        /// Add count visits of activity to the targets of the action, which are copied from snapshot
+        /// the first time, and evict cold entries if it takes too much memory. Call with lock held.
+        void addTargetCount(uint64_t actionHash, const std::string &activity, int count);
+
+        void setQValue(uint64_t actionHash, double qValue);
+
+        /// call with lock held
+        size_t memoryUsage() const;
+
+        /// Map the model file as snapshot, call with lock held.
+        /// \return false if the file can not be read
+        bool mapSnapshot(const std::string &modelFilePath);
+
+        /// Evict cold entries if model takes more than memoryLimit, call with lock held.
+        void trimToMemoryLimit();
+
+    private:
+
+        ReuseTargets &mutableEntry(uint64_t actionHash);
+
+        /// \return the number of entries evicted, 0 if none is in snapshot
+        size_t evictColdEntries();
+    };
 
     class ModelReusableAgent : public AbstractAgent {
 
@@ -32,10 +138,20 @@ namespace fastbotx {
         virtual void loadReuseModel(const std::string &packageName);
 
         // @param model filepath is "" then save to _defaultModelSavePath
+        // the whole model is written as a new snapshot and the journal starts over
         void saveReuseModel(const std::string &modelFilepath);
 
+        /// Append the deltas learned since the last call to the journal of the model.
+        /// \return the size of the journal
+        size_t flushReuseJournal();
+
         static void threadModelStorage(const std::weak_ptr<ModelReusableAgent> &agent);
 
+        /// Hand the learning over to the learning thread and return, when DEFER_STRATEGY_UPDATE is on.
+        void learn(const ActionPtr &action, const StatePtr &state, time_t timestamp) override;
+
+        void waitForLearning() override;
+
         ~ModelReusableAgent() override;
 
     protected:
@@ -78,17 +194,36 @@ namespace fastbotx {
         std::vector<ActionPtr> _previousActions;
 
     private:
-        // A map containing entry of hash code of Action and map, which containing entry of name of activity that this
-        // action goes to and the count of this very activity being visited.
-        ReuseEntryIntMap _reuseModel;
-        ReuseEntryQValueMap _reuseQValue;
+        std::shared_ptr<ReuseModelData> _reuse;
         std::string _modelSavePath;
         std::string _defaultModelSavePath;
         static std::string DefaultModelSavePath; // if the saved path is not specified, use this as the default.
-        std::mutex _reuseModelLock;
+
+        /// reuse models loaded in this process, by model file path
+        static std::map<std::string, std::weak_ptr<ReuseModelData>> LoadedReuseModels;
+        static std::mutex LoadedReuseModelsLock;
+
+        /// the transition handed over by learn, guarded by _reuse->lock
+        std::thread _learningThread;
+        std::condition_variable _learningCondition;
+        bool _learningPending{false};
+        bool _learning{false};
+        bool _stopLearning{false};
+        ActionPtr _learningAction;
+        StatePtr _learningState;
+        time_t _learningTimestamp{0};
+
+        void learningLoop();
+
+        void stopLearning();
 
         void computeAlphaValue();
 
+        /// apply the deltas of the journal following the loaded snapshot, under _reuse->saveLock
+        void replayReuseJournal(const std::string &journalPath);
+
+        static std::string getJournalPath(const std::string &modelFilepath);
+
         double getQValue(const ActionPtr &action);
 
         void setQValue(const ActionPtr &action, double qValue);
@@ -0,0 +1,145 @@
+/*
+ * This code is licensed under the Fastbot license. You may obtain a copy of this license in the LICENSE.txt file in the root directory of this source tree.
+ */
+#ifndef ReuseHashMap_H_
+#define ReuseHashMap_H_
+
+#include <cstdint>
+#include <cstddef>
+#include <utility>
+#include <vector>
+
+namespace fastbotx {
+
+    /// A map from action hashes to V, open addressing with linear probing in a single array, so an
+    /// entry costs no allocation of its own and a lookup stays within a cache line or two.
+    /// Erasing moves the following entries of the run back instead of leaving tombstones.
+    template<typename V>
+    class ReuseHashMap {
+    public:
+        struct Slot {
+            uint64_t key{0};
+            V value{};
+            bool used{false};
+        };
+
+        size_t size() const { return this->_size; }
+
+        bool empty() const { return 0 == this->_size; }
+
+        /// bytes of the slots, not counting what the values allocate
+        size_t memoryUsage() const { return this->_slots.capacity() * sizeof(Slot); }
+
+        const V *find(uint64_t key) const {
+            if (this->_slots.empty())
+                return nullptr;
+            for (size_t i = this->indexOf(key);; i = this->next(i)) {
+                const Slot &slot = this->_slots[i];
+                if (!slot.used)
+                    return nullptr;
+                if (slot.key == key)
+                    return &slot.value;
+            }
+        }
+
+        V *find(uint64_t key) {
+            return const_cast<V *>(static_cast<const ReuseHashMap *>(this)->find(key));
+        }
+
+        /// \return the value of key, a default one is added if key is not in the map
+        V &operator[](uint64_t key) {
+            if (needsGrow(this->_size + 1))
+                this->rehash(this->_size + 1);
+            size_t i = this->indexOf(key);
+            for (; this->_slots[i].used; i = this->next(i)) {
+                if (this->_slots[i].key == key)
+                    return this->_slots[i].value;
+            }
+            Slot &slot = this->_slots[i];
+            slot.key = key;
+            slot.used = true;
+            this->_size++;
+            return slot.value;
+        }
+
+        bool erase(uint64_t key) {
+            if (this->_slots.empty())
+                return false;
+            size_t hole = this->indexOf(key);
+            for (; this->_slots[hole].key != key; hole = this->next(hole)) {
+                if (!this->_slots[hole].used)
+                    return false;
+            }
+            if (!this->_slots[hole].used)
+                return false;
+            for (size_t i = this->next(hole); this->_slots[i].used; i = this->next(i)) {
+                size_t home = this->indexOf(this->_slots[i].key);
+                // the entry at i stays if its home is cyclically within (hole, i]
+                bool stays = hole <= i ? (hole < home && home <= i) : (hole < home || home <= i);
+                if (!stays) {
+                    this->_slots[hole] = std::move(this->_slots[i]);
+                    hole = i;
+                }
+            }
+            this->_slots[hole] = Slot();
+            this->_size--;
+            return true;
+        }
+
+        void clear() {
+            std::vector<Slot>().swap(this->_slots);
+            this->_size = 0;
+        }
+
+        /// Resize to the smallest table holding count entries, never below the current size.
+        void rehash(size_t count) {
+            size_t capacity = MinCapacity;
+            while (needsGrow(std::max(count, this->_size), capacity))
+                capacity <<= 1;
+            if (capacity == this->_slots.size())
+                return;
+            std::vector<Slot> slots(capacity);
+            this->_slots.swap(slots);
+            for (Slot &slot: slots) {
+                if (!slot.used)
+                    continue;
+                size_t i = this->indexOf(slot.key);
+                while (this->_slots[i].used)
+                    i = this->next(i);
+                this->_slots[i] = std::move(slot);
+            }
+        }
+
+        template<typename F>
+        void forEach(F function) const {
+            for (const Slot &slot: this->_slots) {
+                if (slot.used)
+                    function(slot.key, slot.value);
+            }
+        }
+
+    private:
+        static const size_t MinCapacity = 16;
+
+        /// at most 3/4 of the slots are used
+        bool needsGrow(size_t count) const { return needsGrow(count, this->_slots.size()); }
+
+        static bool needsGrow(size_t count, size_t capacity) { return count * 4 > capacity * 3; }
+
+        size_t indexOf(uint64_t key) const {
+            // the action hashes are combined from smaller hashes, mix the high bits in
+            key ^= key >> 33;
+            key *= 0xff51afd7ed558ccdULL;
+            key ^= key >> 33;
+            return static_cast<size_t>(key) & (this->_slots.size() - 1);
+        }
+
+        size_t next(size_t i) const { return (i + 1) & (this->_slots.size() - 1); }
+
+        std::vector<Slot> _slots;
+        size_t _size{0};
+    };
+
+}
+
+#endif /* ReuseHashMap_H_ */
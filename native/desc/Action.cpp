@@ -79,7 +79,8 @@ namespace fastbotx {
         OperatePtr opt = std::make_shared<DeviceOperateWrapper>();
         opt->act = this->_actionType;
         opt->aid = this->getId();
-        if (this->_visitedCount <= 1) {
+        // the action is visited after its operate is made, see Model::getOperateOpt
+        if (this->_visitedCount <= 0) {
             opt->throttle = static_cast<float>(randomInt(10, Action::_throttle));
         }
         return opt;
@@ -8,6 +8,10 @@
 #include "utils.hpp"
 #include "../Base.h"
 #include "json.hpp"
+#include <algorithm>
+#include <cstring>
+#include <unordered_map>
+#include <vector>
 
 namespace fastbotx {
 
@@ -136,6 +140,83 @@ namespace fastbotx {
     }
 
 
+    /// ids of the sids and aids already sent to the java side, which keeps the same table
+    static std::unordered_map<std::string, int32_t> operateStringIds;
+    /// the same strings by id, to forget the ones the java side lost
+    static std::vector<std::string> operateStrings;
+
+    static int32_t internOperateString(const std::string &value, bool &isNew) {
+        auto iter = operateStringIds.find(value);
+        isNew = iter == operateStringIds.end();
+        if (!isNew)
+            return iter->second;
+        auto id = static_cast<int32_t>(operateStrings.size());
+        operateStringIds.emplace(value, id);
+        operateStrings.push_back(value);
+        return id;
+    }
+
+    void DeviceOperateWrapper::keepOperateStrings(size_t known) {
+        if (known < operateStrings.size())
+            BLOG("java knows %d of %d operate strings, send the others again",
+                 (int) known, (int) operateStrings.size());
+        while (operateStrings.size() > known) {
+            operateStringIds.erase(operateStrings.back());
+            operateStrings.pop_back();
+        }
+    }
+
+    static size_t writeOperateString(uint8_t *buffer, const std::string &value, size_t length) {
+        auto length32 = static_cast<int32_t>(length);
+        memcpy(buffer, &length32, sizeof(int32_t));
+        memcpy(buffer + sizeof(int32_t), value.data(), length);
+        return sizeof(int32_t) + length;
+    }
+
+    size_t DeviceOperateWrapper::writeTo(uint8_t *buffer, size_t capacity) const {
+        size_t sidSize = sizeof(int32_t) + this->sid.size();
+        size_t aidSize = sizeof(int32_t) + this->aid.size();
+        // the ids must not be interned unless their text fits, or java would never learn it
+        if (capacity < FixedSize + sidSize + aidSize + sizeof(int32_t))
+            return 0;
+        bool newSid = false, newAid = false;
+        int32_t sidId = internOperateString(this->sid, newSid);
+        int32_t aidId = internOperateString(this->aid, newAid);
+        int32_t flags = (this->allowFuzzing ? FlagAllowFuzzing : 0)
+                        | (this->clear ? FlagClear : 0)
+                        | (this->adbInput ? FlagAdbInput : 0)
+                        | (this->rawInput ? FlagRawInput : 0)
+                        | (this->editable ? FlagEditable : 0)
+                        | (newSid ? FlagNewSid : 0)
+                        | (newAid ? FlagNewAid : 0);
+        auto act32 = static_cast<int32_t>(this->act);
+        int16_t bounds[4] = {static_cast<int16_t>(this->pos.left), static_cast<int16_t>(this->pos.top),
+                             static_cast<int16_t>(this->pos.right), static_cast<int16_t>(this->pos.bottom)};
+        auto throttle32 = static_cast<int32_t>(this->throttle);
+        auto waitTime32 = static_cast<int32_t>(this->waitTime);
+        memcpy(buffer + OffsetAct, &act32, sizeof(int32_t));
+        memcpy(buffer + OffsetPos, bounds, sizeof(bounds));
+        memcpy(buffer + OffsetFlags, &flags, sizeof(int32_t));
+        memcpy(buffer + OffsetThrottle, &throttle32, sizeof(int32_t));
+        memcpy(buffer + OffsetWaitTime, &waitTime32, sizeof(int32_t));
+        memcpy(buffer + OffsetSid, &sidId, sizeof(int32_t));
+        memcpy(buffer + OffsetAid, &aidId, sizeof(int32_t));
+        size_t offset = FixedSize;
+        if (newSid)
+            offset += writeOperateString(buffer + offset, this->sid, this->sid.size());
+        if (newAid)
+            offset += writeOperateString(buffer + offset, this->aid, this->aid.size());
+        size_t textLength = std::min(this->_text.size(), capacity - offset - sizeof(int32_t));
+        if (textLength < this->_text.size()) {
+            BLOGE("operate text of %d bytes cut to %d", (int) this->_text.size(), (int) textLength);
+            // do not leave half of a utf-8 sequence behind
+            while (textLength > 0 && (static_cast<uint8_t>(this->_text[textLength]) & 0xC0) == 0x80)
+                textLength--;
+        }
+        offset += writeOperateString(buffer + offset, this->_text, textLength);
+        return offset;
+    }
+
     std::shared_ptr<DeviceOperateWrapper> DeviceOperateWrapper::OperateNop = std::make_shared<DeviceOperateWrapper>();
 
 }
@@ -8,6 +8,7 @@
 #define Operate_H_
 
 #include <string>
+#include <cstdint>
 #include "../Base.h"
 
 namespace fastbotx {
@@ -26,6 +27,7 @@ namespace fastbotx {
         bool clear{};
         bool adbInput{};
         std::string name;
+        uint64_t widgetKey{}; // target of a planned operation, see Element::widgetKey, 0 if none
 
         DeviceOperateWrapper();
 
@@ -41,6 +43,38 @@ namespace fastbotx {
 
         std::string toString() const;
 
+        /// Write this operation in the fixed binary layout read by Operate.fromBuffer on the java side.
+        /// sid and aid are interned, their text is only written the first time they are seen.
+        /// \param buffer where to write, in native byte order
+        /// \param capacity size of buffer in bytes, the text is cut if it does not fit
+        /// \return bytes written, 0 if buffer cannot hold even the fixed part and both ids
+        size_t writeTo(uint8_t *buffer, size_t capacity) const;
+
+        /// Forget the interned sids and aids from id known on, the java side lost them when an
+        /// operate could not be read or its reply was dropped, so they are written again.
+        /// \param known how many interned strings the java side holds, 0 starts over
+        static void keepOperateStrings(size_t known);
+
+        /// Fixed part of the binary layout, all fields are int32 but the four int16 bounds
+        static const size_t OffsetAct = 0;
+        static const size_t OffsetPos = 4;       // left, top, right, bottom
+        static const size_t OffsetFlags = 12;
+        static const size_t OffsetThrottle = 16;
+        static const size_t OffsetWaitTime = 20;
+        static const size_t OffsetSid = 24;
+        static const size_t OffsetAid = 28;
+        /// then the text of a new sid, of a new aid and the text of the operation,
+        /// each as an int32 byte length followed by the utf-8 bytes
+        static const size_t FixedSize = 32;
+
+        static const int32_t FlagAllowFuzzing = 1;
+        static const int32_t FlagClear = 1 << 1;
+        static const int32_t FlagAdbInput = 1 << 2;
+        static const int32_t FlagRawInput = 1 << 3;
+        static const int32_t FlagEditable = 1 << 4;
+        static const int32_t FlagNewSid = 1 << 5;
+        static const int32_t FlagNewAid = 1 << 6;
+
         virtual ~DeviceOperateWrapper() = default;
 
         static std::shared_ptr<DeviceOperateWrapper> OperateNop;
@@ -7,14 +7,40 @@
 #ifndef Element_CPP_
 #define Element_CPP_
 
+#include <unordered_set>
 #include "../utils.hpp"
 #include "Element.h"
 #include "../thirdpart/tinyxml2/tinyxml2.h"
 #include "../thirdpart/json/json.hpp"
+#include "../storage/GuiTree_generated.h"
 
 
 namespace fastbotx {
 
+    // the classes are compared as interned ids instead of string by string
+    static const InternedString EditTextClass("android.widget.EditText");
+    static const InternedString WebViewClass("android.webkit.WebView");
+
+    static std::unordered_set<uint32_t> internedIds(std::initializer_list<const char *> classnames) {
+        std::unordered_set<uint32_t> ids;
+        for (const char *classname: classnames)
+            ids.insert(InternedString(classname).id());
+        return ids;
+    }
+
+    static const std::unordered_set<uint32_t> VerticalScrollClasses = internedIds(
+            {"android.widget.ScrollView",
+             "android.widget.ListView",
+             "android.widget.ExpandableListView",
+             "android.support.v17.leanback.widget.VerticalGridView",
+             "android.support.v7.widget.RecyclerView",
+             "androidx.recyclerview.widget.RecyclerView"});
+
+    static const std::unordered_set<uint32_t> HorizontalScrollClasses = internedIds(
+            {"android.widget.HorizontalScrollView",
+             "android.support.v17.leanback.widget.HorizontalGridView",
+             "android.support.v4.view.ViewPager"});
+
     Element::Element()
             : _enabled(false), _checked(false), _checkable(false), _clickable(false),
               _focusable(false), _scrollable(false), _longClickable(false), _childCount(0),
@@ -261,17 +287,17 @@ namespace fastbotx {
         const char *resource_id = "attribute resource_id get failed";  // need copy
         err = xmlNode->QueryStringAttribute("resource-id", &resource_id);
         if (err == tinyxml2::XML_SUCCESS) {
-            this->_resourceID = std::string(resource_id); // copy
+            this->_resourceID = InternedString(resource_id);
         }
         const char *tclassname = "attribute class name get failed";  // need copy
         err = xmlNode->QueryStringAttribute("class", &tclassname);
         if (err == tinyxml2::XML_SUCCESS) {
-            this->_classname = std::string(tclassname); // copy
+            this->_classname = InternedString(tclassname);
         }
         const char *pkgname = "attribute package name get failed";  // need copy
         err = xmlNode->QueryStringAttribute("package", &pkgname);
         if (err == tinyxml2::XML_SUCCESS) {
-            this->_packageName = std::string(pkgname); // copy
+            this->_packageName = InternedString(pkgname);
         }
         const char *content_desc = "attribute content description get failed";  // need copy
         err = xmlNode->QueryStringAttribute("content-desc", &content_desc);
@@ -331,7 +357,27 @@ namespace fastbotx {
             this->_selected = selected;
         }
 
-        this->_isEditable = "android.widget.EditText" == this->_classname;
+        this->completeProperties(parentOfNode);
+
+        int childrenCountOfCurrentNode = 0;
+        if (!xmlNode->NoChildren()) {
+            for (const tinyxml2::XMLElement *childNode = xmlNode->FirstChildElement();
+                 nullptr != childNode; childNode = childNode->NextSiblingElement()) {
+                const tinyxml2::XMLElement *nextXMLElement = childNode;
+                ElementPtr childElement = std::make_shared<Element>();
+                this->_children.emplace_back(childElement);
+                childrenCountOfCurrentNode++;
+                // generate XML for deeper children, pass the current xmlNode as their parent
+                childElement->fromXMLNode(nextXMLElement, childElement);
+                // update the parent of this current child
+                childElement->_parent = parentOfNode;
+            }
+        }
+        this->_childCount = childrenCountOfCurrentNode;
+    }
+
+    void Element::completeProperties(const ElementPtr &parentOfNode) {
+        this->_isEditable = EditTextClass == this->_classname;
         if (FORCE_EDITTEXT_CLICK_TRUE && this->_isEditable) {
             this->_longClickable = this->_clickable = this->_enabled = true;
         }
@@ -345,18 +391,93 @@ namespace fastbotx {
         if (this->_clickable || this->_longClickable) {
             this->_enabled = true;
         }
+    }
+
+    ElementPtr Element::createFromBuffer(const void *buffer, size_t length) {
+        if (nullptr == buffer || 0 == length) {
+            BLOGE("%s", "gui tree buffer is empty");
+            return nullptr;
+        }
+        // a table for the GuiTree and one for the node of each level
+        flatbuffers::Verifier verifier(static_cast<const uint8_t *>(buffer), length,
+                                       GUI_TREE_MAX_DEPTH + 1);
+        if (!VerifyGuiTreeBuffer(verifier)) {
+            BLOGE("verify gui tree buffer of %d bytes failed", (int) length);
+            return nullptr;
+        }
+        const GuiTree *guiTree = GetGuiTree(buffer);
+        if (nullptr == guiTree->root()) {
+            BLOGE("%s", "gui tree buffer has no root node");
+            return nullptr;
+        }
+        if (guiTree->truncated()) {
+            BDLOG("%s", "gui tree buffer is truncated, the fetch budget ran out");
+        }
+
+        ElementPtr elementPtr = std::make_shared<Element>();
+
+        _allClickableFalse = true;
+        elementPtr->fromGuiNode(guiTree->root(), elementPtr);
+        if (_allClickableFalse) {
+            elementPtr->recursiveDoElements([](const ElementPtr &elm) {
+                elm->_clickable = true;
+            });
+        }
+        // force set root element scrollable = true
+        elementPtr->_scrollable = true;
+        return elementPtr;
+    }
+
+/// Same as fromXMLNode, but reads the attributes from a GuiNode table in place
+/// \param guiNode node of the GuiTree flatbuffer
+/// \param parentOfNode the parent of the element being filled
+    void Element::fromGuiNode(const GuiNode *guiNode, const ElementPtr &parentOfNode) {
+        if (nullptr == guiNode)
+            return;
+        this->_index = guiNode->index();
+        const GuiBounds *bounds = guiNode->bounds();
+        if (bounds) {
+            this->_bounds = std::make_shared<Rect>(bounds->left(), bounds->top(),
+                                                   bounds->right(), bounds->bottom());
+            if (this->_bounds->isEmpty())
+                this->_bounds = Rect::RectZero;
+        }
+        if (guiNode->text())
+            this->_text = guiNode->text()->str();
+        if (guiNode->resource_id())
+            this->_resourceID = InternedString(guiNode->resource_id()->str());
+        if (guiNode->class_name())
+            this->_classname = InternedString(guiNode->class_name()->str());
+        if (guiNode->package_name())
+            this->_packageName = InternedString(guiNode->package_name()->str());
+        if (guiNode->content_desc())
+            this->_contentDesc = guiNode->content_desc()->str();
+
+        uint16_t flags = guiNode->flags();
+        this->_checkable = (flags & GuiNodeFlag_Checkable) != 0;
+        this->_checked = (flags & GuiNodeFlag_Checked) != 0;
+        this->_clickable = (flags & GuiNodeFlag_Clickable) != 0;
+        this->_enabled = (flags & GuiNodeFlag_Enabled) != 0;
+        this->_focusable = (flags & GuiNodeFlag_Focusable) != 0;
+        this->_focused = (flags & GuiNodeFlag_Focused) != 0;
+        this->_scrollable = (flags & GuiNodeFlag_Scrollable) != 0;
+        this->_longClickable = (flags & GuiNodeFlag_LongClickable) != 0;
+        this->_password = (flags & GuiNodeFlag_Password) != 0;
+        this->_selected = (flags & GuiNodeFlag_Selected) != 0;
+        if (this->_clickable)
+            _allClickableFalse = false;
+
+        this->completeProperties(parentOfNode);
 
         int childrenCountOfCurrentNode = 0;
-        if (!xmlNode->NoChildren()) {
-            for (const tinyxml2::XMLElement *childNode = xmlNode->FirstChildElement();
-                 nullptr != childNode; childNode = childNode->NextSiblingElement()) {
-                const tinyxml2::XMLElement *nextXMLElement = childNode;
+        auto children = guiNode->children();
+        if (children) {
+            this->_children.reserve(children->size());
+            for (const GuiNode *childNode: *children) {
                 ElementPtr childElement = std::make_shared<Element>();
                 this->_children.emplace_back(childElement);
                 childrenCountOfCurrentNode++;
-                // generate XML for deeper children, pass the current xmlNode as their parent
-                childElement->fromXMLNode(nextXMLElement, childElement);
-                // update the parent of this current child
+                childElement->fromGuiNode(childNode, childElement);
                 childElement->_parent = parentOfNode;
             }
         }
@@ -364,7 +485,7 @@ namespace fastbotx {
     }
 
     bool Element::isWebView() const {
-        return "android.webkit.WebView" == this->_classname;
+        return WebViewClass == this->_classname;
     }
 
     bool Element::isEditText() const {
@@ -375,19 +496,12 @@ namespace fastbotx {
         if (!this->_scrollable) {
             return ScrollType::NONE;
         }
-        if ("android.widget.ScrollView" == this->_classname
-            || "android.widget.ListView" == _classname
-            || "android.widget.ExpandableListView" == _classname
-            || "android.support.v17.leanback.widget.VerticalGridView" == _classname
-            || "android.support.v7.widget.RecyclerView" == _classname
-            || "androidx.recyclerview.widget.RecyclerView" == _classname) {
+        if (VerticalScrollClasses.count(this->_classname.id())) {
             return ScrollType::Vertical;
-        } else if ("android.widget.HorizontalScrollView" == _classname
-                   || "android.support.v17.leanback.widget.HorizontalGridView" == _classname
-                   || "android.support.v4.view.ViewPager" == _classname) {
+        } else if (HorizontalScrollClasses.count(this->_classname.id())) {
             return ScrollType::Horizontal;
         }
-        if (this->_classname.find("ScrollView") != std::string::npos) {
+        if (this->_classname.str().find("ScrollView") != std::string::npos) {
             return ScrollType::ALL;
         }
 
@@ -401,11 +515,25 @@ namespace fastbotx {
         this->_parent.reset();
     }
 
+    uint64_t Element::widgetKey() const {
+        const uint64_t prime = 0x100000001b3ULL;
+        uint64_t key = 0xcbf29ce484222325ULL;
+        // ints are sign extended, as in java
+        key = (key ^ static_cast<uint64_t>(static_cast<int64_t>(this->_index))) * prime;
+        if (this->_bounds) {
+            key = (key ^ static_cast<uint64_t>(static_cast<int64_t>(this->_bounds->left))) * prime;
+            key = (key ^ static_cast<uint64_t>(static_cast<int64_t>(this->_bounds->top))) * prime;
+            key = (key ^ static_cast<uint64_t>(static_cast<int64_t>(this->_bounds->right))) * prime;
+            key = (key ^ static_cast<uint64_t>(static_cast<int64_t>(this->_bounds->bottom))) * prime;
+        }
+        return key;
+    }
+
     long Element::hash(bool recursive) {
         uintptr_t hashcode = 0x1;
-        uintptr_t hashcode1 = 127U * std::hash<std::string>{}(this->_resourceID) << 1;
-        uintptr_t hashcode2 = std::hash<std::string>{}(this->_classname) << 2;
-        uintptr_t hashcode3 = std::hash<std::string>{}(this->_packageName) << 3;
+        uintptr_t hashcode1 = 127U * this->_resourceID.hash() << 1;
+        uintptr_t hashcode2 = this->_classname.hash() << 2;
+        uintptr_t hashcode3 = this->_packageName.hash() << 3;
         uintptr_t hashcode4 = 256U * std::hash<std::string>{}(this->_text) << 4;
         uintptr_t hashcode5 = std::hash<std::string>{}(this->_contentDesc) << 5;
         uintptr_t hashcode6 = std::hash<std::string>{}(this->_activity) << 2;
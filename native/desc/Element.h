@@ -23,6 +23,8 @@ namespace tinyxml2 {
 
 namespace fastbotx {
 
+    struct GuiNode;
+
     class Xpath {
     public:
         Xpath();
@@ -73,15 +75,19 @@ namespace fastbotx {
 
         std::weak_ptr<Element> getParent() const { return this->_parent; }
 
-        const std::string &getClassname() const { return this->_classname; }
+        const std::string &getClassname() const { return this->_classname.str(); }
+
+        const std::string &getResourceID() const { return this->_resourceID.str(); }
+
+        const InternedString &getInternedClassname() const { return this->_classname; }
 
-        const std::string &getResourceID() const { return this->_resourceID; }
+        const InternedString &getInternedResourceID() const { return this->_resourceID; }
 
         const std::string &getText() const { return this->_text; }
 
         const std::string &getContentDesc() const { return this->_contentDesc; }
 
-        const std::string &getPackageName() const { return this->_packageName; }
+        const std::string &getPackageName() const { return this->_packageName.str(); }
 
         RectPtr getBounds() const { return this->_bounds; };
 
@@ -100,7 +106,9 @@ namespace fastbotx {
         ScrollType getScrollType() const;
 
         // reset properties, in Preference
-        void reSetResourceID(const std::string &resourceID) { this->_resourceID = resourceID; }
+        void reSetResourceID(const std::string &resourceID) {
+            this->_resourceID = InternedString(resourceID);
+        }
 
         void reSetContentDesc(const std::string &content) { this->_contentDesc = content; }
 
@@ -108,7 +116,9 @@ namespace fastbotx {
 
         void reSetIndex(const int &index) { this->_index = index; }
 
-        void reSetClassname(const std::string &className) { this->_classname = className; }
+        void reSetClassname(const std::string &className) {
+            this->_classname = InternedString(className);
+        }
 
         void reSetClickable(bool clickable) { this->_clickable = clickable; }
 
@@ -136,8 +146,19 @@ namespace fastbotx {
 
         static std::shared_ptr<Element> createFromXml(const tinyxml2::XMLDocument &doc);
 
+        /// Build the element tree from a GuiTree flatbuffer (storage/GuiTree.fbs), read in place
+        /// \param buffer start of the flatbuffer
+        /// \param length size of the flatbuffer in bytes
+        /// \return the root element, or nullptr if the buffer does not verify
+        static std::shared_ptr<Element> createFromBuffer(const void *buffer, size_t length);
+
         long hash(bool recursive = true);
 
+        /// Key of this element for the preconditions of planned operations, FNV-1a over the index
+        /// and the bounds, which the preference never rewrites. The monkey computes the same key
+        /// for the nodes of its mirrored tree.
+        uint64_t widgetKey() const;
+
         std::string validText;
 
         virtual ~Element();
@@ -149,11 +170,16 @@ namespace fastbotx {
         void fromXml(const tinyxml2::XMLDocument &nodeOfDoc,
                      const std::shared_ptr<Element> &parentOfNode);
 
+        void fromGuiNode(const GuiNode *guiNode, const std::shared_ptr<Element> &parentOfNode);
+
+        void completeProperties(const std::shared_ptr<Element> &parentOfNode);
+
         void recursiveToXML(tinyxml2::XMLElement *xml, const Element *elm) const;
 
-        std::string _resourceID;
-        std::string _classname;
-        std::string _packageName;
+        // repeated on every page, kept once, see InternedString
+        InternedString _resourceID;
+        InternedString _classname;
+        InternedString _packageName;
         std::string _text;
         std::string _contentDesc;
         std::string _inputText;
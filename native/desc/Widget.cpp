@@ -18,6 +18,17 @@ namespace fastbotx {
 
     Widget::Widget() = default;
 
+    static const InternedString EditableClasses[] = {
+            InternedString("android.widget.EditText"),
+            InternedString("android.inputmethodservice.ExtractEditText"),
+            InternedString("android.widget.AutoCompleteTextView"),
+            InternedString("android.widget.MultiAutoCompleteTextView")};
+
+    static const InternedString ListClasses[] = {
+            InternedString("android.widget.ListView"),
+            InternedString("android.support.v7.widget.RecyclerView"),
+            InternedString("androidx.recyclerview.widget.RecyclerView")};
+
     const auto ifCharIsDigitOrBlank = [](const char &c) -> bool {
         return c == ' ' || (c >= '0' && c <= '9');
     };
@@ -96,20 +107,17 @@ namespace fastbotx {
         }
 
         if (this->hasAction()) {
-            this->_clazz = (element->getClassname());
-            this->_isEditable = ("android.widget.EditText" == this->_clazz
-                                 || "android.inputmethodservice.ExtractEditText" == this->_clazz
-                                 || "android.widget.AutoCompleteTextView" == this->_clazz
-                                 || "android.widget.MultiAutoCompleteTextView" == this->_clazz);
-
-            if (SCROLL_BOTTOM_UP_N_ENABLE && (0 == this->_clazz.compare("android.widget.ListView")
-                                              || 0 == this->_clazz.compare(
-                    "android.support.v7.widget.RecyclerView")
-                                              || 0 == this->_clazz.compare(
-                    "androidx.recyclerview.widget.RecyclerView"))) {
+            this->_clazz = element->getInternedClassname();
+            this->_isEditable = std::end(EditableClasses) != std::find(std::begin(EditableClasses),
+                                                                       std::end(EditableClasses),
+                                                                       this->_clazz);
+
+            if (SCROLL_BOTTOM_UP_N_ENABLE
+                && std::end(ListClasses) != std::find(std::begin(ListClasses),
+                                                      std::end(ListClasses), this->_clazz)) {
                 this->_actions.insert(ActionType::SCROLL_BOTTOM_UP_N);
             }
-            this->_resourceID = (element->getResourceID());
+            this->_resourceID = element->getInternedResourceID();
         }
         if (element->getBounds())
             this->_bounds = element->getBounds();
@@ -118,8 +126,8 @@ namespace fastbotx {
         this->_text = element->getText();
         this->_contextDesc = (element->getContentDesc());
         // compute for only 1 time
-        uintptr_t hashcode1 = std::hash<std::string>{}(this->_clazz);
-        uintptr_t hashcode2 = std::hash<std::string>{}(this->_resourceID);
+        uintptr_t hashcode1 = this->_clazz.hash();
+        uintptr_t hashcode2 = this->_resourceID.hash();
         uintptr_t hashcode3 = std::hash<int>{}(this->_operateMask);
         uintptr_t hashcode4 = std::hash<int>{}(scrollType);
 
@@ -132,10 +140,10 @@ namespace fastbotx {
     }
 
     void Widget::clearDetails() {
-        this->_clazz.clear();
+        this->_clazz = InternedString();
         this->_text.clear();
         this->_contextDesc.clear();
-        this->_resourceID.clear();
+        this->_resourceID = InternedString();
         this->_bounds = Rect::RectZero;
     }
 
@@ -162,8 +170,8 @@ namespace fastbotx {
 
         std::stringstream stringStream;
         stringStream << "{xpath: /*" <<
-                     "[@class=\"" << this->_clazz << "\"]" <<
-                     "[@resource-id=\"" << this->_resourceID << "\"]" <<
+                     "[@class=\"" << this->_clazz.str() << "\"]" <<
+                     "[@resource-id=\"" << this->_resourceID.str() << "\"]" <<
                      "[@text=\"" << this->_text << "\"]" <<
                      "[@content-desc=\"" << this->_contextDesc << "\"]" <<
                      "[@index=" << this->_index << "]" <<
@@ -65,8 +65,8 @@ namespace fastbotx {
         std::shared_ptr<Widget> _parent;
         std::string _text;
         int _index{};
-        std::string _clazz;
-        std::string _resourceID;
+        InternedString _clazz;
+        InternedString _resourceID;
         bool _enabled{};
         bool _isEditable{};
         int _operateMask{OperateType::None};
@@ -18,8 +18,8 @@ namespace fastbotx {
 
     RichWidget::RichWidget(WidgetPtr parent, const ElementPtr &element)
             : Widget(std::move(parent), element) {
-        uintptr_t hashcode1 = std::hash<std::string>{}(this->_clazz);
-        uintptr_t hashcode2 = std::hash<std::string>{}(this->_resourceID);
+        uintptr_t hashcode1 = this->_clazz.hash();
+        uintptr_t hashcode2 = this->_resourceID.hash();
         uintptr_t hashcode3 = 0x1;
         for (int i: this->getActions()) {
             hashcode3 ^= (127U * std::hash<int>{}(i));
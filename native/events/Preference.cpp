@@ -41,6 +41,7 @@ namespace fastbotx {
         opt->waitTime = this->waitTime;
         opt->adbInput = this->adbInput;
         opt->allowFuzzing = this->allowFuzzing;
+        opt->widgetKey = this->widgetKey;
         if (opt->act == ActionType::SHELL_EVENT) {
             opt->setText(this->command);
         }
@@ -85,9 +86,10 @@ namespace fastbotx {
     }
 
 
-    Preference::Preference()
+    Preference::Preference(const std::string &configDirectory)
             : _randomInputText(false), _doInputFuzzing(true), _pruningValidTexts(false),
-              _skipAllActionsFromModel(false), _rootScreenSize(nullptr) {
+              _skipAllActionsFromModel(false), _rootScreenSize(nullptr),
+              _configDirectory(configDirectory) {
         loadConfigs();
     }
 
@@ -114,8 +116,9 @@ namespace fastbotx {
     }
 
     ActionPtr Preference::resolvePageAndGetSpecifiedAction(const std::string &activity,
-                                                           const ElementPtr &rootXML) {
-        if (nullptr != rootXML)
+                                                           const ElementPtr &rootXML,
+                                                           bool pageResolved) {
+        if (nullptr != rootXML && !pageResolved)
             this->resolvePage(activity, rootXML);
 
         // resolve action
@@ -162,6 +165,46 @@ namespace fastbotx {
         return returnAction;
     }
 
+    CustomActionPtrVec Preference::takePlannedActions(const ElementPtr &rootXML, int maxSteps) {
+        CustomActionPtrVec plannedActions;
+        if (nullptr == rootXML)
+            return plannedActions;
+        while (!this->_currentActions.empty() && static_cast<int>(plannedActions.size()) < maxSteps) {
+            auto frontAction = this->_currentActions.front();
+            if (frontAction->getActionType() < ActionType::CLICK ||
+                frontAction->getActionType() > ActionType::SCROLL_RIGHT_LEFT)
+                break;
+            auto customAction = std::dynamic_pointer_cast<CustomAction>(frontAction);
+            // the rest waits for the page it is meant for
+            if (!this->patchActionBounds(customAction, rootXML))
+                break;
+            this->_currentActions.pop();
+            plannedActions.push_back(customAction);
+        }
+        if (!plannedActions.empty())
+            BLOG("planned %d custom actions", (int) plannedActions.size());
+        this->_plannedActions = plannedActions;
+        return plannedActions;
+    }
+
+    void Preference::restorePlannedActions(int executedSteps) {
+        if (this->_plannedActions.empty())
+            return;
+        if (executedSteps < static_cast<int>(this->_plannedActions.size())) {
+            BLOG("%d of %d planned custom actions ran, queue the others again", executedSteps,
+                 (int) this->_plannedActions.size());
+            std::queue<ActionPtr> actions;
+            for (size_t i = std::max(executedSteps, 0); i < this->_plannedActions.size(); i++)
+                actions.push(this->_plannedActions[i]);
+            while (!this->_currentActions.empty()) {
+                actions.push(this->_currentActions.front());
+                this->_currentActions.pop();
+            }
+            this->_currentActions.swap(actions);
+        }
+        this->_plannedActions.clear();
+    }
+
     /// Used for get the bounding boxes of the specified actions
     /// \param action The action specified by users, need to query its bounding box from XML tree
     /// \param rootXML The XML tree of the current page
@@ -174,6 +217,9 @@ namespace fastbotx {
         if (!elementVector.empty()) {
             // the matched elements could be more than one, but we only use the first matched one
             RectPtr rect = elementVector.at(0)->getBounds();
+            // an action may be matched again, on another page
+            action->bounds.clear();
+            action->widgetKey = elementVector.at(0)->widgetKey();
             action->bounds.push_back(static_cast<float>(rect->left));
             action->bounds.push_back(static_cast<float>(rect->top));
             action->bounds.push_back(static_cast<float>(rect->right));
@@ -333,10 +379,9 @@ namespace fastbotx {
     }
 
     bool Preference::checkPointIsInBlackRects(const std::string &activity, int pointX, int pointY) {
-        bool isInsideBlackList;
+        bool isInsideBlackList = false;
         auto iter = this->_cachedBlackWidgetRects.find(activity);
-        isInsideBlackList = iter != this->_cachedBlackWidgetRects.end();
-        if (isInsideBlackList) {
+        if (iter != this->_cachedBlackWidgetRects.end()) {
             const Point p(pointX, pointY);
             for (const auto &rect: iter->second) {
                 if (rect->contains(p)) {
@@ -350,6 +395,15 @@ namespace fastbotx {
         return isInsideBlackList;
     }
 
+    bool Preference::getBlackWidgetRects(const std::string &activity,
+                                         std::vector<RectPtr> &rects) const {
+        auto iter = this->_cachedBlackWidgetRects.find(activity);
+        if (iter == this->_cachedBlackWidgetRects.end())
+            return false;
+        rects = iter->second;
+        return true;
+    }
+
     void Preference::resolveTreePruning(const ElementPtr &elem, const std::string &activity) {
         if (!this->_treePrunings.empty()) {
             for (const auto &prun: this->_treePrunings) {
@@ -499,10 +553,14 @@ namespace fastbotx {
     }
 
     void Preference::loadConfigs() {
-#if defined(__ANDROID__) || defined(_DEBUG_)
+#if !defined(__ANDROID__) && !defined(_DEBUG_)
+        // a host has no /sdcard, only the files a device sent are read
+        if (this->_configDirectory.empty())
+            return;
+#endif
         try {
-            loadMixResMapping(DefaultResMappingFilePath); // loading mapping
-            loadValidTexts(ValidTextFilePath);
+            loadMixResMapping(configFilePath(DefaultResMappingFilePath)); // loading mapping
+            loadValidTexts(configFilePath(ValidTextFilePath));
             loadBaseConfig();
             loadBlackWidgets();
             loadActions();
@@ -513,16 +571,22 @@ namespace fastbotx {
         catch (std::exception &ex) {
             BLOGE("load configs Error! %s", ex.what());
         }
-#endif
+    }
+
+    std::string Preference::configFilePath(const std::string &devicePath) const {
+        if (this->_configDirectory.empty())
+            return devicePath;
+        return this->_configDirectory + devicePath.substr(devicePath.find_last_of('/'));
     }
 
 #define MaxRandomPickSTR  "max.randomPickFromStringList"
 #define InputFuzzSTR "max.doinputtextFuzzing"
 #define ListenMode "max.listenMode"
+#define ReuseModelMemoryLimit "max.reuseModelMemoryLimit"
 
     void Preference::loadBaseConfig() {
         LOGI("pref init checking curr packageName is offset: %s", Preference::PackageName.c_str());
-        std::string configContent = loadFileContent(BaseConfigFilePath);
+        std::string configContent = loadFileContent(configFilePath(BaseConfigFilePath));
         BLOG("max.config:\n %s", configContent.c_str());
         std::vector<std::string> lines;
         splitString(configContent, lines, '\n');
@@ -543,6 +607,9 @@ namespace fastbotx {
             } else if (ListenMode == key_value[0]) {
                 BDLOG("set %s", ListenMode);
                 this->setListenMode("true" == key_value[1]);
+            } else if (ReuseModelMemoryLimit == key_value[0]) {
+                this->_reuseModelMemoryLimit = std::max(0, atoi(key_value[1].c_str()));
+                BLOG("set %s %d MB", ReuseModelMemoryLimit, this->_reuseModelMemoryLimit);
             }
         }
     }
@@ -570,10 +637,11 @@ namespace fastbotx {
     }
 
     void Preference::loadActions() {
-        std::string fileContent = loadFileContent(ActionConfigFilePath);
+        std::string actionConfigFilePath = configFilePath(ActionConfigFilePath);
+        std::string fileContent = loadFileContent(actionConfigFilePath);
         if (fileContent.empty())
             return;
-        BLOG("loading actions  : %s", ActionConfigFilePath.c_str());
+        BLOG("loading actions  : %s", actionConfigFilePath.c_str());
         try {
             ::nlohmann::json actionEvents = ::nlohmann::json::parse(fileContent);
             for (const ::nlohmann::json &actionEvent: actionEvents) {
@@ -611,11 +679,12 @@ namespace fastbotx {
     }
 
     void Preference::loadBlackWidgets() {
-        std::string fileContent = fastbotx::Preference::loadFileContent(BlackWidgetFilePath);
+        std::string blackWidgetFilePath = configFilePath(BlackWidgetFilePath);
+        std::string fileContent = fastbotx::Preference::loadFileContent(blackWidgetFilePath);
         if (fileContent.empty())
             return;
         try {
-            BLOG("loading black widgets  : %s", BlackWidgetFilePath.c_str());
+            BLOG("loading black widgets  : %s", blackWidgetFilePath.c_str());
             ::nlohmann::json actions = ::nlohmann::json::parse(fileContent);
             for (const ::nlohmann::json &action: actions) {
                 CustomActionPtr act = std::make_shared<CustomAction>();
@@ -642,14 +711,16 @@ namespace fastbotx {
     }
 
     void Preference::loadWhiteBlackList() {
-        std::string contentBlack = fastbotx::Preference::loadFileContent(BlackListFilePath);
+        std::string contentBlack = fastbotx::Preference::loadFileContent(
+                configFilePath(BlackListFilePath));
         if (contentBlack.empty())
             return;
         std::vector<std::string> texts;
         splitString(contentBlack, texts, '\n');
         this->_blackList.swap(texts);
         BLOG("blacklist :\n %s", contentBlack.c_str());
-        std::string contentWhite = fastbotx::Preference::loadFileContent(WhiteListFilePath);
+        std::string contentWhite = fastbotx::Preference::loadFileContent(
+                configFilePath(WhiteListFilePath));
         std::vector<std::string> textsw;
         splitString(contentWhite, textsw, '\n');
         this->_whiteList.swap(textsw);
@@ -659,14 +730,16 @@ namespace fastbotx {
 ///Load texts for input from specified file of designed text or file of fuzzing text
     void Preference::loadInputTexts() {
         // load specified designed text by tester
-        std::string content = fastbotx::Preference::loadFileContent(InputTextConfigFilePath);
+        std::string content = fastbotx::Preference::loadFileContent(
+                configFilePath(InputTextConfigFilePath));
         if (!content.empty()) {
             std::vector<std::string> texts;
             splitString(content, texts, '\n');
             this->_inputTexts.assign(texts.begin(), texts.end());
         }
         // load fuzzing texts
-        std::string fuzzContent = fastbotx::Preference::loadFileContent(FuzzingTextsFilePath);
+        std::string fuzzContent = fastbotx::Preference::loadFileContent(
+                configFilePath(FuzzingTextsFilePath));
         if (!fuzzContent.empty()) {
             std::vector<std::string> fuzzTexts;
             splitString(fuzzContent, fuzzTexts, '\n');
@@ -680,7 +753,8 @@ namespace fastbotx {
     }
 
     void Preference::loadTreePruning() {
-        std::string fileContent = fastbotx::Preference::loadFileContent(TreePruningFilePath);
+        std::string fileContent = fastbotx::Preference::loadFileContent(
+                configFilePath(TreePruningFilePath));
         if (fileContent.empty())
             return;
         try {
@@ -36,6 +36,7 @@ namespace fastbotx {
         std::string activity;
         std::string command;
         std::vector<float> bounds;
+        uint64_t widgetKey{};
         bool allowFuzzing{true};
         bool clearText{};
         int throttle{};
@@ -63,14 +64,27 @@ namespace fastbotx {
 
     class Preference {
     public:
-        Preference();
+        /// \param configDirectory if not empty, the files are read from this directory instead of
+        ///        /sdcard, by the same names; fastbot_server keeps the files each device sent there
+        explicit Preference(const std::string &configDirectory = "");
 
         static std::shared_ptr<Preference> inst();
 
         //@brief use custom preference correct the root xml, and return a custom action,
+        //@param pageResolved the root xml was corrected before, only match the action on it
         //@return nullptr if no custom action happened
         ActionPtr
-        resolvePageAndGetSpecifiedAction(const std::string &activity, const ElementPtr &rootXML);
+        resolvePageAndGetSpecifiedAction(const std::string &activity, const ElementPtr &rootXML,
+                                         bool pageResolved = false);
+
+        //@brief take the custom actions queued after the one just returned whose targets are
+        //       all on the same page, for the monkey to run them without asking again
+        //@param rootXML the page the last custom action was matched on
+        //@return the actions, at most maxSteps, in order
+        CustomActionPtrVec takePlannedActions(const ElementPtr &rootXML, int maxSteps);
+
+        //@brief put the planned actions the monkey did not run back in front of the queue
+        void restorePlannedActions(int executedSteps);
 
         //@brief patch operate: 1. fuzz input text 2. ..
         void patchOperate(const OperatePtr &opt);
@@ -83,6 +97,14 @@ namespace fastbotx {
 
         bool checkPointIsInBlackRects(const std::string &activity, int pointX, int pointY);
 
+        //@brief black widget rects resolved for the activity on the last resolved page
+        //@return false if no black widget of the activity was resolved yet
+        bool getBlackWidgetRects(const std::string &activity, std::vector<RectPtr> &rects) const;
+
+        void setBlackWidgetRects(const std::string &activity, const std::vector<RectPtr> &rects) {
+            this->_cachedBlackWidgetRects[activity] = rects;
+        }
+
         void setListenMode(bool listen);
 
         bool skipAllActionsFromModel() const { return this->_skipAllActionsFromModel; }
@@ -91,6 +113,9 @@ namespace fastbotx {
 
         int getForceMaxBlockStateTimes() const { return this->_forceMaxBlockStateTimes; }
 
+        // MB the changed entries of the reuse model may take before the coldest are evicted
+        int getReuseModelMemoryLimit() const { return this->_reuseModelMemoryLimit; }
+
         ~Preference();
 
     protected:
@@ -140,6 +165,8 @@ namespace fastbotx {
         static std::shared_ptr<Preference> _preferenceInst;
 
         std::queue<ActionPtr> _currentActions;
+        // taken by takePlannedActions, until the monkey tells how many of them it ran
+        CustomActionPtrVec _plannedActions;
 
         CustomEventPtrVec _customEvents;
         // remember the times of this event being visited.
@@ -166,10 +193,16 @@ namespace fastbotx {
         bool _skipAllActionsFromModel;
         bool _forceUseTextModel{};
         int _forceMaxBlockStateTimes{};
+        int _reuseModelMemoryLimit{128};
         RectPtr _rootScreenSize;
 
         static std::string loadFileContent(const std::string &fileAbsolutePath);
 
+        // where a file of the device is read from, see configDirectory
+        std::string configFilePath(const std::string &devicePath) const;
+
+        std::string _configDirectory;
+
         StringRectsMap _cachedBlackWidgetRects;
 
     public:
@@ -12,6 +12,7 @@
 #include "../utils.hpp"
 #include <ctime>
 #include <iostream>
+#include <algorithm>
 
 namespace fastbotx {
 
@@ -48,20 +49,122 @@ namespace fastbotx {
     }
 
 
+    std::string Model::getOperate(const void *guiTreeBuffer, size_t bufferLength,
+                                  const std::string &activity, const std::string &deviceID,
+                                  int64_t treeHash) {
+        OperatePtr opt = this->getOperateOpt(guiTreeBuffer, bufferLength, activity, deviceID,
+                                             treeHash);
+        return nullptr == opt ? "" : opt->toString();
+    }
+
+    std::string Model::getOperateByTreeHash(int64_t treeHash, const std::string &activity,
+                                            const std::string &deviceID) {
+        OperatePtr opt = this->getOperateOptByTreeHash(treeHash, activity, deviceID);
+        return nullptr == opt ? "" : opt->toString();
+    }
+
+    OperatePtr Model::getOperateOpt(const void *guiTreeBuffer, size_t bufferLength,
+                                    const std::string &activity, const std::string &deviceID,
+                                    int64_t treeHash, std::vector<OperatePtr> *plan,
+                                    int maxPlanSteps) {
+        ElementPtr elem = Element::createFromBuffer(guiTreeBuffer, bufferLength);
+        if (nullptr == elem)
+            return nullptr;
+        if (0 == treeHash)
+            return this->getOperateOpt(elem, activity, deviceID, nullptr, plan, maxPlanSteps);
+        TreeCacheEntry &entry = this->cacheTree(treeHash, activity, deviceID, elem);
+        return this->getOperateOpt(elem, activity, deviceID, &entry, plan, maxPlanSteps);
+    }
+
+    OperatePtr Model::getOperateOptByTreeHash(int64_t treeHash, const std::string &activity,
+                                              const std::string &deviceID,
+                                              std::vector<OperatePtr> *plan, int maxPlanSteps) {
+        auto iter = std::find_if(this->_treeCache.begin(), this->_treeCache.end(),
+                                 [treeHash, &activity, &deviceID](const TreeCacheEntry &entry) {
+                                     return entry.treeHash == treeHash && entry.activity == activity
+                                            && entry.deviceID == deviceID;
+                                 });
+        if (iter == this->_treeCache.end()) {
+            BDLOG("tree %lld of %s is not cached", (long long) treeHash, activity.c_str());
+            return nullptr;
+        }
+        // move to the front, most recently used first
+        this->_treeCache.splice(this->_treeCache.begin(), this->_treeCache, iter);
+        TreeCacheEntry &entry = this->_treeCache.front();
+        BDLOG("tree %lld of %s is cached", (long long) treeHash, activity.c_str());
+        PreferencePtr preference = this->getPreference(deviceID);
+        if (entry.hasBlackWidgetRects && preference)
+            preference->setBlackWidgetRects(activity, entry.blackWidgetRects);
+        return this->getOperateOpt(entry.element, activity, deviceID, &entry, plan, maxPlanSteps);
+    }
+
+    Model::TreeCacheEntry &Model::cacheTree(int64_t treeHash, const std::string &activity,
+                                            const std::string &deviceID,
+                                            const ElementPtr &element) {
+        for (auto iter = this->_treeCache.begin(); iter != this->_treeCache.end(); iter++) {
+            if (iter->treeHash == treeHash && iter->activity == activity
+                && iter->deviceID == deviceID) {
+                this->releaseTreeCacheEntry(*iter);
+                this->_treeCache.erase(iter);
+                break;
+            }
+        }
+        TreeCacheEntry entry;
+        entry.treeHash = treeHash;
+        entry.activity = activity;
+        entry.deviceID = deviceID;
+        entry.element = element;
+        entry.resolved = false;
+        entry.hasBlackWidgetRects = false;
+        entry.algorithmType = AlgorithmType::Random;
+        entry.state = nullptr;
+        this->_treeCache.push_front(entry);
+        while (this->_treeCache.size() > TREE_CACHE_SIZE) {
+            this->releaseTreeCacheEntry(this->_treeCache.back());
+            this->_treeCache.pop_back();
+        }
+        return this->_treeCache.front();
+    }
+
+    void Model::releaseTreeCacheEntry(const TreeCacheEntry &entry) {
+        if (!DROP_DETAIL_AFTER_SATE || nullptr == entry.state || entry.state->hasNoDetail())
+            return;
+        for (const auto &other: this->_treeCache) {
+            if (&other != &entry && other.state == entry.state)
+                return;
+        }
+        entry.state->clearDetails();
+    }
+
+
 #define DefaultDeviceID "0000001"
 
     AbstractAgentPtr Model::addAgent(const std::string &deviceIDString, AlgorithmType agentType,
                                      DeviceType deviceType) {
-        auto agent = AgentFactory::create(agentType, shared_from_this(), deviceType);
         const std::string &deviceID = deviceIDString.empty() ? DefaultDeviceID
                                                              : deviceIDString; // deviceID is device id
+        auto existing = this->_deviceIDAgentMap.find(deviceID);
+        if (existing != this->_deviceIDAgentMap.end()) // the device connected again
+            return (*existing).second;
+        auto agent = AgentFactory::create(agentType, shared_from_this(), deviceType);
         this->_deviceIDAgentMap.emplace(deviceID,
                                         agent); // add the pair of device and agent to the _deviceIDAgentMap
-        this->_graph->addListener(
-                agent); // add the agent to the graph and listen to updates of this graph.
+        // the agent is not a listener of the graph, the graph is shared by the agents of all devices
+        // while only the agent of the device that reached a state moves to it, see getOperateOpt
         return agent;
     }
 
+    PreferencePtr Model::getPreference(const std::string &deviceID) const {
+        auto iter = this->_devicePreferences.find(deviceID);
+        if (iter != this->_devicePreferences.end())
+            return (*iter).second;
+        return this->_preference;
+    }
+
+    void Model::setPreference(const std::string &deviceID, const PreferencePtr &preference) {
+        this->_devicePreferences[deviceID] = preference;
+    }
+
     AbstractAgentPtr Model::getAgent(const std::string &deviceID) const {
         const std::string &d = deviceID.empty() ? DefaultDeviceID : deviceID;
         auto iter = this->_deviceIDAgentMap.find(d);
@@ -81,25 +184,40 @@ namespace fastbotx {
 
     OperatePtr Model::getOperateOpt(const ElementPtr &element, const std::string &activity,
                                     const std::string &deviceID) {
+        return this->getOperateOpt(element, activity, deviceID, nullptr);
+    }
+
+    OperatePtr Model::getOperateOpt(const ElementPtr &element, const std::string &activity,
+                                    const std::string &deviceID, TreeCacheEntry *cacheEntry,
+                                    std::vector<OperatePtr> *plan, int maxPlanSteps) {
         // the whole process begins.
         double methodStartTimestamp = currentStamp(); //the time stamp of this current time
         ActionPtr customActionPtr = nullptr;
-        if (this->_preference) //load the preferred action in preference file specified by user in sdcard
+        PreferencePtr preference = this->getPreference(deviceID);
+        if (preference) //load the preferred action in preference file specified by user in sdcard
         {
             BLOG("try get custom action from preference");
-            customActionPtr = this->_preference->resolvePageAndGetSpecifiedAction(activity,
-                                                                                  element);
+            // a cached element was corrected by the preference when it was parsed
+            bool resolved = nullptr != cacheEntry && cacheEntry->resolved;
+            customActionPtr = preference->resolvePageAndGetSpecifiedAction(activity, element,
+                                                                           resolved);
+            if (nullptr != customActionPtr && nullptr != plan && maxPlanSteps > 0) {
+                for (const auto &plannedAction: preference->takePlannedActions(element,
+                                                                               maxPlanSteps)) {
+                    OperatePtr plannedOperate = plannedAction->toOperate();
+                    preference->patchOperate(plannedOperate);
+                    plan->push_back(plannedOperate);
+                }
+            }
+            if (nullptr != cacheEntry && !resolved) {
+                cacheEntry->resolved = true;
+                cacheEntry->hasBlackWidgetRects = preference->getBlackWidgetRects(
+                        activity, cacheEntry->blackWidgetRects);
+            }
         }
         // get activity
-        stringPtrSet activityStringPtrSet = this->_graph->getVisitedActivities();
-        stringPtr activityPtr = std::make_shared<std::string>(activity);
-        auto founded = activityStringPtrSet.find(
-                activityPtr); //Searches the container for an element equivalent to val and returns an iterator to it if found, otherwise it returns an iterator to set::end.
-        stringPtr activityStringPtr = nullptr;
-        if (founded == activityStringPtrSet.end())
-            activityStringPtr = activityPtr; //this is a new activity.
-        else
-            activityStringPtr = *founded; // use the cached activity.
+        // the same activity is always the same interned string
+        stringPtr activityStringPtr = InternedString(activity).shared();
         //  get agent
         if (this->_deviceIDAgentMap.empty())  // create a default agent
         {
@@ -113,18 +231,35 @@ namespace fastbotx {
         else
             agent = (*agentIterator).second; // get the found agent
 
+        // the learning of the last step may still be running while events were injected, the
+        // graph is shared with the agents of the other devices
+        for (const auto &deviceAgent: this->_deviceIDAgentMap) {
+            deviceAgent.second->waitForLearning();
+        }
+
         // get state
         StatePtr state = nullptr;
         if (nullptr != element) // make sure the XML is not null
         {
             //according to the type of the used agent, create the state of this page
             //include all the possible actions according to the widgets inside.
-            state = StateFactory::createState(agent->getAlgorithmType(), activityStringPtr,
-                                              element);
+            if (nullptr != cacheEntry && nullptr != cacheEntry->state
+                && !cacheEntry->state->hasNoDetail()
+                && cacheEntry->algorithmType == agent->getAlgorithmType()) {
+                state = cacheEntry->state;
+            } else {
+                state = StateFactory::createState(agent->getAlgorithmType(), activityStringPtr,
+                                                  element);
+            }
             // add state
             // add this state, and the agent will treat this state as the new state(_newState)
             state = this->_graph->addState(state);
+            agent->onAddNode(state);
             state->visit(this->_graph->getTimestamp());
+            if (nullptr != cacheEntry) {
+                cacheEntry->algorithmType = agent->getAlgorithmType();
+                cacheEntry->state = state;
+            }
         }
 
         // new state is prepared, record the current time
@@ -135,35 +270,31 @@ namespace fastbotx {
 
         double startGeneratingActionTimestamp = currentStamp();
         double endGeneratingActionTimestamp = currentStamp();
-        bool shouldSkipActionsFromModel = this->_preference->skipAllActionsFromModel();
+        bool shouldSkipActionsFromModel = preference->skipAllActionsFromModel();
         if (shouldSkipActionsFromModel) // seems that user could specify if the model should be used?
         {
             LOGI("listen mode skip get action from model");
         }
 
         // if there is no action specified by user, ask the agent for a new action.
+        bool learnFromAction = false;
         if (nullptr == customActionPtr && !shouldSkipActionsFromModel) {
             if (-1 != BLOCK_STATE_TIME_RESTART &&
-                -1 != Preference::inst()->getForceMaxBlockStateTimes() &&
+                -1 != preference->getForceMaxBlockStateTimes() &&
                 agent->getCurrentStateBlockTimes() > BLOCK_STATE_TIME_RESTART) {
                 action = Action::RESTART;
                 BLOG("Ran into a block state %s", state ? state->getId().c_str() : "");
             } else {
                 // this is also an entry for modifying RL model
                 action = std::dynamic_pointer_cast<Action>(agent->resolveNewAction());
-                // update the strategy based on the new action
-                agent->updateStrategy();
                 if (nullptr == action) {
                     BDLOGE("get null action!!!!");
                     // handle null action by returning the nop operation to the upper caller.
                     return DeviceOperateWrapper::OperateNop;
                 }
+                learnFromAction = true;
             }
             endGeneratingActionTimestamp = currentStamp();
-            if (action->isModelAct() && state) {
-                action->visit(this->_graph->getTimestamp());
-                agent->moveForward(state); // update _currentState/Action with _newState/Action
-            }
         }
 
 
@@ -172,13 +303,19 @@ namespace fastbotx {
         if (action != nullptr) {
             BLOG("selected action %s", action->toString().c_str());
             opt = action->toOperate();
-            if (this->_preference) {
-                this->_preference->patchOperate(opt);
+            if (preference) {
+                preference->patchOperate(opt);
             }
 
-            if (DROP_DETAIL_AFTER_SATE && state && !state->hasNoDetail())
+            // states in the tree cache keep their details until they are evicted
+            if (DROP_DETAIL_AFTER_SATE && state && !state->hasNoDetail() && nullptr == cacheEntry)
                 state->clearDetails();
         }
+        // the operate is made, update the strategy based on the new action, visit the action and
+        // update _currentState/Action with _newState/Action, on the agent's thread if it has one
+        if (learnFromAction) {
+            agent->learn(action, state, this->_graph->getTimestamp());
+        }
         // the whole process end, record the current time.
         double methodEndTimestamp = currentStamp();
         BLOG("build state cost: %.3fs action cost: %.3fs total cost %.3fs",
@@ -189,6 +326,9 @@ namespace fastbotx {
     }
 
     Model::~Model() {
+        for (const auto &deviceAgent: this->_deviceIDAgentMap) {
+            deviceAgent.second->waitForLearning();
+        }
         this->_deviceIDAgentMap.clear();
     }
 
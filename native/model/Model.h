@@ -8,6 +8,7 @@
 #define  Model_H_
 
 #include <memory>
+#include <list>
 #include "Base.h"
 #include "State.h"
 #include "Element.h"
@@ -55,6 +56,44 @@ namespace fastbotx {
         std::string getOperate(const std::string &descContent, const std::string &activity,
                                const std::string &deviceID = "");
 
+        /// Same as the xml entrance, but the page comes as a GuiTree flatbuffer which is read in place
+        /// \param guiTreeBuffer the GuiTree flatbuffer of the current page
+        /// \param bufferLength size of the flatbuffer in bytes
+        /// \param activity activity name
+        /// \param deviceID The default value is "", you could provide your intended ID
+        /// \return the next operation step in json format
+        /// \param treeHash structural hash of the page computed by the monkey, if not 0 the parsed
+        ///        page is kept in the tree cache so that the next visits can pass only the hash
+        std::string getOperate(const void *guiTreeBuffer, size_t bufferLength,
+                               const std::string &activity, const std::string &deviceID = "",
+                               int64_t treeHash = 0);
+
+        /// Same as the buffer entrance for a page recently passed with its tree hash, the parsed
+        /// Element and its State are taken from the tree cache
+        /// \param treeHash structural hash of the page computed by the monkey
+        /// \param activity activity name
+        /// \param deviceID The default value is "", you could provide your intended ID
+        /// \return the next operation step in json format, "" if the page is no longer cached
+        std::string getOperateByTreeHash(int64_t treeHash, const std::string &activity,
+                                         const std::string &deviceID = "");
+
+        /// The buffer entrance returning the operation itself, for callers that do not want json
+        /// \param plan if not null, receives the custom operations that follow the returned one on
+        ///        this page, for the caller to run them while their targets are still there
+        /// \param maxPlanSteps at most this many operations are planned
+        /// \return the next operation, nullptr if the buffer is not a valid GuiTree
+        OperatePtr getOperateOpt(const void *guiTreeBuffer, size_t bufferLength,
+                                 const std::string &activity, const std::string &deviceID = "",
+                                 int64_t treeHash = 0, std::vector<OperatePtr> *plan = nullptr,
+                                 int maxPlanSteps = 0);
+
+        /// The tree hash entrance returning the operation itself, plans as above
+        /// \return the next operation, nullptr if the page is no longer cached
+        OperatePtr getOperateOptByTreeHash(int64_t treeHash, const std::string &activity,
+                                           const std::string &deviceID = "",
+                                           std::vector<OperatePtr> *plan = nullptr,
+                                           int maxPlanSteps = 0);
+
         // get state from xml doc; for ios
         /// According to the constructed XML object of the current page, return the next operation step in json format with RL model
         /// \param element XML object of the current page, in XML format
@@ -74,6 +113,13 @@ namespace fastbotx {
 
         PreferencePtr getPreference() const { return this->_preference; }
 
+        /// \return the preference of the device, the one of this process if the device set none
+        PreferencePtr getPreference(const std::string &deviceID) const;
+
+        /// Use the preference for the requests of a device instead of the one of this process,
+        /// fastbot_server reads it from the files the device sent
+        void setPreference(const std::string &deviceID, const PreferencePtr &preference);
+
         void setPackageName(
                 const std::string &packageName) { this->_netActionParam.packageName = packageName; }
 
@@ -87,16 +133,46 @@ namespace fastbotx {
         Model();
 
     private:
+        /// A page parsed from a gui tree buffer, with what was derived from it
+        struct TreeCacheEntry {
+            int64_t treeHash;
+            std::string activity;
+            // pages are resolved by the preference of the device that sent them
+            std::string deviceID;
+            ElementPtr element;
+            // the preference already corrected the element, black widget rects it found
+            bool resolved;
+            bool hasBlackWidgetRects;
+            std::vector<RectPtr> blackWidgetRects;
+            // state of the page in the graph, its details are kept while it is cached
+            AlgorithmType algorithmType;
+            StatePtr state;
+        };
+
+        OperatePtr getOperateOpt(const ElementPtr &element, const std::string &activity,
+                                 const std::string &deviceID, TreeCacheEntry *cacheEntry,
+                                 std::vector<OperatePtr> *plan = nullptr, int maxPlanSteps = 0);
+
+        TreeCacheEntry &cacheTree(int64_t treeHash, const std::string &activity,
+                                  const std::string &deviceID, const ElementPtr &element);
+
+        void releaseTreeCacheEntry(const TreeCacheEntry &entry);
+
         // The smart pointer of the graph object
         GraphPtr _graph;
         // A map containing pairs of device id and the corresponding agent object
         AbstractAgentPtrStrMap _deviceIDAgentMap;
         // Preference specified by users
         PreferencePtr _preference;
+        // Preferences of the devices that sent their own, by device id
+        std::map<std::string, PreferencePtr> _devicePreferences;
 
         // The parameters for communicating with the net model
         NetActionParam _netActionParam;
 
+        // Pages recently parsed from gui tree buffers, most recently used first
+        std::list<TreeCacheEntry> _treeCache;
+
     };
 
     typedef std::shared_ptr<Model> ModelPtr;
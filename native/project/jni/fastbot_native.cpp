@@ -4,6 +4,8 @@
 /**
  * @authors Jianqiang Guo, Yuhui Su
  */
+#include <algorithm>
+#include <cstring>
 #include "fastbot_native.h"
 #include "Model.h"
 #include "ModelReusableAgent.h"
@@ -32,6 +34,140 @@ jstring JNICALL Java_com_bytedance_fastbot_AiClient_b0bhkadf(JNIEnv *env, jobjec
     return env->NewStringUTF(operationString.c_str());
 }
 
+//getAction, the gui tree is a GuiTree flatbuffer read in place from a direct ByteBuffer
+jstring JNICALL Java_com_bytedance_fastbot_AiClient_b2bhkadf(JNIEnv *env, jobject, jstring activity,
+                                                             jobject guiTreeBuffer, jint length,
+                                                             jlong treeHash) {
+    if (nullptr == _fastbot_model) {
+        _fastbot_model = fastbotx::Model::create();
+    }
+    void *guiTreeAddress = env->GetDirectBufferAddress(guiTreeBuffer);
+    if (nullptr == guiTreeAddress || length <= 0) {
+        BLOGE("%s", "gui tree is not a direct buffer or is empty");
+        return env->NewStringUTF("");
+    }
+    const char *activityCString = env->GetStringUTFChars(activity, nullptr);
+    std::string activityString = std::string(activityCString);
+    std::string operationString = _fastbot_model->getOperate(guiTreeAddress,
+                                                             static_cast<size_t>(length),
+                                                             activityString, "",
+                                                             static_cast<int64_t>(treeHash));
+    LOGD("do action opt is : %s", operationString.c_str());
+    env->ReleaseStringUTFChars(activity, activityCString);
+    return env->NewStringUTF(operationString.c_str());
+}
+
+//getAction, the gui tree was passed before with the same tree hash, "" if it is no longer cached
+jstring JNICALL Java_com_bytedance_fastbot_AiClient_b4bhkadf(JNIEnv *env, jobject, jstring activity,
+                                                             jlong treeHash) {
+    if (nullptr == _fastbot_model) {
+        _fastbot_model = fastbotx::Model::create();
+    }
+    const char *activityCString = env->GetStringUTFChars(activity, nullptr);
+    std::string activityString = std::string(activityCString);
+    std::string operationString = _fastbot_model->getOperateByTreeHash(
+            static_cast<int64_t>(treeHash), activityString);
+    LOGD("do action opt is : %s", operationString.c_str());
+    env->ReleaseStringUTFChars(activity, activityCString);
+    return env->NewStringUTF(operationString.c_str());
+}
+
+// the planned operations of the last call the monkey ran, the others are queued again
+static void restorePlan(jint executedPlanSteps) {
+    auto preference = _fastbot_model->getPreference();
+    if (preference) {
+        preference->restorePlannedActions(executedPlanSteps);
+    }
+}
+
+// write the operate to the direct buffer of the java side, then the int32 number of planned
+// operations and each as its int64 widget key and operate, 0 if there is none or it does not fit.
+// java passes the int32 number of sids and aids it has interned at the start of the buffer
+static jint writeOperate(JNIEnv *env, const fastbotx::OperatePtr &opt,
+                         const std::vector<fastbotx::OperatePtr> &plan, jobject operateBuffer) {
+    if (nullptr == opt)
+        return 0;
+    auto *operateAddress = static_cast<uint8_t *>(env->GetDirectBufferAddress(operateBuffer));
+    jlong capacity = env->GetDirectBufferCapacity(operateBuffer);
+    if (nullptr == operateAddress || capacity <= 0) {
+        BLOGE("%s", "operate buffer is not a direct buffer");
+        return 0;
+    }
+    auto bufferSize = static_cast<size_t>(capacity);
+    if (bufferSize >= sizeof(int32_t)) {
+        int32_t known = 0;
+        memcpy(&known, operateAddress, sizeof(int32_t));
+        fastbotx::DeviceOperateWrapper::keepOperateStrings(static_cast<size_t>(std::max(known, 0)));
+    }
+    size_t length = opt->writeTo(operateAddress, bufferSize);
+    BDLOG("do action %s at [%d,%d,%d,%d] aid %s", fastbotx::actName[opt->act].c_str(),
+          opt->pos.left, opt->pos.top, opt->pos.right, opt->pos.bottom, opt->aid.c_str());
+    if (0 == length || length + sizeof(int32_t) > bufferSize)
+        return static_cast<jint>(length);
+    size_t countOffset = length;
+    length += sizeof(int32_t);
+    int32_t planned = 0;
+    for (const auto &plannedOperate: plan) {
+        if (length + sizeof(uint64_t) > bufferSize)
+            break;
+        size_t plannedLength = plannedOperate->writeTo(operateAddress + length + sizeof(uint64_t),
+                                                       bufferSize - length - sizeof(uint64_t));
+        if (0 == plannedLength)
+            break;
+        memcpy(operateAddress + length, &plannedOperate->widgetKey, sizeof(uint64_t));
+        length += sizeof(uint64_t) + plannedLength;
+        planned++;
+    }
+    // what did not fit is not run, and queued again on the next call
+    memcpy(operateAddress + countOffset, &planned, sizeof(int32_t));
+    return static_cast<jint>(length);
+}
+
+//getAction, the gui tree is read in place and the operate written in place
+jint JNICALL Java_com_bytedance_fastbot_AiClient_b6bhkadf(JNIEnv *env, jobject, jstring activity,
+                                                          jobject guiTreeBuffer, jint length,
+                                                          jlong treeHash, jint maxPlanSteps,
+                                                          jint executedPlanSteps,
+                                                          jobject operateBuffer) {
+    if (nullptr == _fastbot_model) {
+        _fastbot_model = fastbotx::Model::create();
+    }
+    void *guiTreeAddress = env->GetDirectBufferAddress(guiTreeBuffer);
+    if (nullptr == guiTreeAddress || length <= 0) {
+        BLOGE("%s", "gui tree is not a direct buffer or is empty");
+        return 0;
+    }
+    restorePlan(executedPlanSteps);
+    const char *activityCString = env->GetStringUTFChars(activity, nullptr);
+    std::string activityString = std::string(activityCString);
+    std::vector<fastbotx::OperatePtr> plan;
+    fastbotx::OperatePtr opt = _fastbot_model->getOperateOpt(guiTreeAddress,
+                                                             static_cast<size_t>(length),
+                                                             activityString, "",
+                                                             static_cast<int64_t>(treeHash),
+                                                             &plan, maxPlanSteps);
+    env->ReleaseStringUTFChars(activity, activityCString);
+    return writeOperate(env, opt, plan, operateBuffer);
+}
+
+//getAction on a cached gui tree, the operate is written in place, 0 if it is no longer cached
+jint JNICALL Java_com_bytedance_fastbot_AiClient_b8bhkadf(JNIEnv *env, jobject, jstring activity,
+                                                          jlong treeHash, jint maxPlanSteps,
+                                                          jint executedPlanSteps,
+                                                          jobject operateBuffer) {
+    if (nullptr == _fastbot_model) {
+        _fastbot_model = fastbotx::Model::create();
+    }
+    restorePlan(executedPlanSteps);
+    const char *activityCString = env->GetStringUTFChars(activity, nullptr);
+    std::string activityString = std::string(activityCString);
+    std::vector<fastbotx::OperatePtr> plan;
+    fastbotx::OperatePtr opt = _fastbot_model->getOperateOptByTreeHash(
+            static_cast<int64_t>(treeHash), activityString, "", &plan, maxPlanSteps);
+    env->ReleaseStringUTFChars(activity, activityCString);
+    return writeOperate(env, opt, plan, operateBuffer);
+}
+
 // for single device, just addAgent as empty device //InitAgent
 void JNICALL Java_com_bytedance_fastbot_AiClient_fgdsaf5d(JNIEnv *env, jobject, jint agentType,
                                                           jstring packageName, jint deviceType) {
@@ -39,6 +175,8 @@ void JNICALL Java_com_bytedance_fastbot_AiClient_fgdsaf5d(JNIEnv *env, jobject,
         _fastbot_model = fastbotx::Model::create();
     }
     auto algorithmType = (fastbotx::AlgorithmType) agentType;
+    // java starts its table of sids and aids over with the agent
+    fastbotx::DeviceOperateWrapper::keepOperateStrings(0);
     auto agentPointer = _fastbot_model->addAgent("", algorithmType,
                                                  (fastbotx::DeviceType) deviceType);
     const char *packageNameCString = "";
@@ -89,6 +227,35 @@ Java_com_bytedance_fastbot_AiClient_nkksdhdk(JNIEnv *env, jobject, jstring activ
     return isShield;
 }
 
+// black widget rects of the activity as left, top, right, bottom of each rect
+jintArray JNICALL
+Java_com_bytedance_fastbot_AiClient_b10bhkadf(JNIEnv *env, jobject, jstring activity) {
+    std::vector<fastbotx::RectPtr> rects;
+    if (nullptr == _fastbot_model) {
+        BLOGE("%s", "model null, get black widget rects failed!");
+    } else {
+        auto preference = _fastbot_model->getPreference();
+        const char *activityStr = env->GetStringUTFChars(activity, nullptr);
+        if (preference) {
+            preference->getBlackWidgetRects(std::string(activityStr), rects);
+        }
+        env->ReleaseStringUTFChars(activity, activityStr);
+    }
+    std::vector<jint> flat;
+    flat.reserve(4 * rects.size());
+    for (const auto &rect: rects) {
+        flat.push_back(rect->left);
+        flat.push_back(rect->top);
+        flat.push_back(rect->right);
+        flat.push_back(rect->bottom);
+    }
+    jintArray array = env->NewIntArray(static_cast<jsize>(flat.size()));
+    if (nullptr != array && !flat.empty()) {
+        env->SetIntArrayRegion(array, 0, static_cast<jsize>(flat.size()), flat.data());
+    }
+    return array;
+}
+
 jstring JNICALL Java_com_bytedance_fastbot_AiClient_getNativeVersion(JNIEnv *env, jclass clazz) {
     return env->NewStringUTF(FASTBOT_VERSION);
 }
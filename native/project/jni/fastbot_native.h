@@ -16,6 +16,25 @@ extern "C" {
 JNIEXPORT jstring JNICALL
 Java_com_bytedance_fastbot_AiClient_b0bhkadf(JNIEnv *env, jobject, jstring, jstring);
 
+// getAction with the gui tree in a direct ByteBuffer, cached under the tree hash if not 0
+JNIEXPORT jstring JNICALL
+Java_com_bytedance_fastbot_AiClient_b2bhkadf(JNIEnv *env, jobject, jstring, jobject, jint, jlong);
+
+// getAction on a gui tree cached by its tree hash
+JNIEXPORT jstring JNICALL
+Java_com_bytedance_fastbot_AiClient_b4bhkadf(JNIEnv *env, jobject, jstring, jlong);
+
+// getAction with the gui tree in a direct ByteBuffer, the operate and its plan are written to
+// another direct ByteBuffer in the layout of DeviceOperateWrapper::writeTo, returns the length
+JNIEXPORT jint JNICALL
+Java_com_bytedance_fastbot_AiClient_b6bhkadf(JNIEnv *env, jobject, jstring, jobject, jint, jlong,
+                                             jint, jint, jobject);
+
+// getAction on a gui tree cached by its tree hash, the operate is written as above, 0 if not cached
+JNIEXPORT jint JNICALL
+Java_com_bytedance_fastbot_AiClient_b8bhkadf(JNIEnv *env, jobject, jstring, jlong, jint, jint,
+                                             jobject);
+
 //InitAgent
 JNIEXPORT void JNICALL
 Java_com_bytedance_fastbot_AiClient_fgdsaf5d(JNIEnv *env, jobject, jint, jstring, jint);
@@ -26,6 +45,10 @@ JNIEXPORT void JNICALL Java_com_bytedance_fastbot_AiClient_jdasdbil(JNIEnv *env,
 JNIEXPORT jboolean JNICALL
 Java_com_bytedance_fastbot_AiClient_nkksdhdk(JNIEnv *env, jobject, jstring activity, jfloat pointX,
                                              jfloat pointY);
+// black widget rects resolved on the last page of the activity, 4 ints per rect
+JNIEXPORT jintArray JNICALL
+Java_com_bytedance_fastbot_AiClient_b10bhkadf(JNIEnv *env, jobject, jstring activity);
+
 JNIEXPORT jstring JNICALL
 Java_com_bytedance_fastbot_AiClient_getNativeVersion(JNIEnv *env, jclass clazz);
 
@@ -0,0 +1,412 @@
+/*
+ * This code is licensed under the Fastbot license. You may obtain a copy of this license in the LICENSE.txt file in the root directory of this source tree.
+ */
+#include <arpa/inet.h>
+#include <netinet/in.h>
+#include <netinet/tcp.h>
+#include <sys/socket.h>
+#include <unistd.h>
+#include <cerrno>
+#include <csignal>
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+#include <atomic>
+#include <thread>
+#include "fastbot_server.h"
+#include "Model.h"
+#include "ModelReusableAgent.h"
+#include "utils.hpp"
+
+namespace fastbotx {
+    namespace server {
+
+        static ModelPtr _fastbot_model = nullptr;
+        /// the model is not thread safe, requests of all devices are served one at a time
+        static std::mutex _modelLock;
+
+        static int _listenSocket = -1;
+        static std::atomic<bool> _stopped(false);
+
+        /// reads the arguments of a request, ok turns false once a read runs past the end
+        class RequestReader {
+        public:
+            RequestReader(const uint8_t *data, size_t length)
+                    : _data(data), _length(length), _offset(0), ok(true) {}
+
+            uint8_t readByte() {
+                if (!require(1))
+                    return 0;
+                return _data[_offset++];
+            }
+
+            int32_t readInt() {
+                if (!require(4))
+                    return 0;
+                uint32_t value = 0;
+                for (int i = 0; i < 4; i++)
+                    value = (value << 8) | _data[_offset++];
+                return static_cast<int32_t>(value);
+            }
+
+            int64_t readLong() {
+                if (!require(8))
+                    return 0;
+                uint64_t value = 0;
+                for (int i = 0; i < 8; i++)
+                    value = (value << 8) | _data[_offset++];
+                return static_cast<int64_t>(value);
+            }
+
+            float readFloat() {
+                int32_t bits = readInt();
+                float value;
+                memcpy(&value, &bits, sizeof(value));
+                return value;
+            }
+
+            /// a string or a byte array, the bytes stay in the request
+            const uint8_t *readBytes(size_t &length) {
+                int32_t size = readInt();
+                if (size < 0 || !require(static_cast<size_t>(size))) {
+                    ok = false;
+                    length = 0;
+                    return nullptr;
+                }
+                const uint8_t *bytes = _data + _offset;
+                _offset += static_cast<size_t>(size);
+                length = static_cast<size_t>(size);
+                return bytes;
+            }
+
+            std::string readString() {
+                size_t length = 0;
+                const uint8_t *bytes = readBytes(length);
+                return nullptr == bytes ? "" : std::string(reinterpret_cast<const char *>(bytes),
+                                                           length);
+            }
+
+        private:
+            bool require(size_t size) {
+                if (!ok || _length - _offset < size) {
+                    ok = false;
+                    return false;
+                }
+                return true;
+            }
+
+            const uint8_t *_data;
+            size_t _length;
+            size_t _offset;
+
+        public:
+            bool ok;
+        };
+
+        static void writeInt(std::string &out, int32_t value) {
+            auto bits = static_cast<uint32_t>(value);
+            for (int shift = 24; shift >= 0; shift -= 8)
+                out.push_back(static_cast<char>((bits >> shift) & 0xff));
+        }
+
+        static void writeString(std::string &out, const std::string &value) {
+            writeInt(out, static_cast<int32_t>(value.size()));
+            out.append(value);
+        }
+
+        static bool readFully(int socket, void *buffer, size_t length) {
+            auto *bytes = static_cast<uint8_t *>(buffer);
+            while (length > 0) {
+                ssize_t n = recv(socket, bytes, length, 0);
+                if (n <= 0)
+                    return false;
+                bytes += n;
+                length -= static_cast<size_t>(n);
+            }
+            return true;
+        }
+
+        static bool writeFully(int socket, const void *buffer, size_t length) {
+            auto *bytes = static_cast<const uint8_t *>(buffer);
+            while (length > 0) {
+                ssize_t n = send(socket, bytes, length, MSG_NOSIGNAL);
+                if (n <= 0)
+                    return false;
+                bytes += n;
+                length -= static_cast<size_t>(n);
+            }
+            return true;
+        }
+
+        static void initAgent(const std::string &deviceID, RequestReader &in) {
+            auto algorithmType = (AlgorithmType) in.readInt();
+            std::string packageName = in.readString();
+            auto deviceType = (DeviceType) in.readInt();
+            if (!in.ok)
+                return;
+            if (_fastbot_model->getAgent(deviceID)) {
+                BLOG("device %s connected again", deviceID.c_str());
+                return;
+            }
+            auto agentPointer = _fastbot_model->addAgent(deviceID, algorithmType, deviceType);
+            _fastbot_model->setPackageName(packageName);
+            BLOG("init agent for device %s with type %d, %s", deviceID.c_str(), (int) algorithmType,
+                 packageName.c_str());
+            if (algorithmType == AlgorithmType::Reuse) {
+                auto reuseAgentPtr = std::dynamic_pointer_cast<ModelReusableAgent>(agentPointer);
+                reuseAgentPtr->loadReuseModel(packageName);
+            }
+        }
+
+        /// the preference files of a device go to a directory of their own, a Preference reads
+        /// them from there by name
+        static void loadPreference(const std::string &deviceID, RequestReader &in) {
+            int32_t count = in.readInt();
+            std::vector<std::pair<std::string, std::string>> files;
+            for (int32_t i = 0; in.ok && i < count; i++) {
+                std::string name = in.readString();
+                std::string content = in.readString();
+                if (name.empty() || name[0] == '.' || name.find('/') != std::string::npos) {
+                    BLOGE("device %s sent a preference file named %s, skipped", deviceID.c_str(),
+                          name.c_str());
+                    continue;
+                }
+                files.emplace_back(name, content);
+            }
+            if (!in.ok)
+                return;
+            if (_fastbot_model->getPreference(deviceID) != _fastbot_model->getPreference()) {
+                BLOG("device %s keeps its preference", deviceID.c_str());
+                return;
+            }
+            char directory[] = "/tmp/fastbot_preference_XXXXXX";
+            if (nullptr == mkdtemp(directory)) {
+                BLOGE("can not create a directory for the preference of device %s",
+                      deviceID.c_str());
+                return;
+            }
+            std::vector<std::string> paths;
+            for (const auto &file: files) {
+                std::string path = std::string(directory) + "/" + file.first;
+                FILE *out = fopen(path.c_str(), "wb");
+                if (nullptr == out) {
+                    BLOGE("can not write %s", path.c_str());
+                    continue;
+                }
+                fwrite(file.second.data(), 1, file.second.size(), out);
+                fclose(out);
+                paths.push_back(path);
+            }
+            // everything is read when the preference is made
+            _fastbot_model->setPreference(deviceID, std::make_shared<Preference>(directory));
+            for (const auto &path: paths)
+                unlink(path.c_str());
+            rmdir(directory);
+            BLOG("device %s sent %d preference files", deviceID.c_str(), (int) paths.size());
+        }
+
+        static void loadResMapping(const std::string &deviceID, RequestReader &in) {
+            size_t length = 0;
+            const uint8_t *content = in.readBytes(length);
+            if (!in.ok)
+                return;
+            // the preference loads the mapping from a file
+            char path[] = "/tmp/fastbot_mapping_XXXXXX";
+            int file = mkstemp(path);
+            if (file < 0) {
+                BLOGE("%s", "can not create a file for the res mapping");
+                return;
+            }
+            bool written = true;
+            for (size_t offset = 0; written && offset < length;) {
+                ssize_t n = write(file, content + offset, length - offset);
+                written = n > 0;
+                offset += written ? static_cast<size_t>(n) : 0;
+            }
+            close(file);
+            auto preference = _fastbot_model->getPreference(deviceID);
+            if (written && preference) {
+                preference->loadMixResMapping(std::string(path));
+            }
+            unlink(path);
+        }
+
+        static void getBlackWidgetRects(const std::string &deviceID, RequestReader &in,
+                                        std::string &out) {
+            std::string activity = in.readString();
+            std::vector<RectPtr> rects;
+            auto preference = _fastbot_model->getPreference(deviceID);
+            if (in.ok && preference) {
+                preference->getBlackWidgetRects(activity, rects);
+            }
+            writeInt(out, static_cast<int32_t>(rects.size()));
+            for (const auto &rect: rects) {
+                writeInt(out, rect->left);
+                writeInt(out, rect->top);
+                writeInt(out, rect->right);
+                writeInt(out, rect->bottom);
+            }
+        }
+
+        /// \return false if the request is malformed
+        static bool handle(std::string &deviceID, RequestReader &in, std::string &out) {
+            auto command = static_cast<Command>(in.readByte());
+            if (command != InitAgent && command != LoadPreference && command != LoadResMapping
+                && deviceID.empty()) {
+                BLOGE("command %d before the agent is initialized", (int) command);
+                return false;
+            }
+            switch (command) {
+                case InitAgent:
+                    deviceID = in.readString();
+                    initAgent(deviceID, in);
+                    break;
+                case LoadPreference:
+                    deviceID = in.readString();
+                    loadPreference(deviceID, in);
+                    break;
+                case LoadResMapping:
+                    loadResMapping(deviceID, in);
+                    break;
+                case GetOperate: {
+                    std::string activity = in.readString();
+                    std::string xml = in.readString();
+                    if (in.ok)
+                        writeString(out, _fastbot_model->getOperate(xml, activity, deviceID));
+                    break;
+                }
+                case GetOperateByBuffer: {
+                    std::string activity = in.readString();
+                    size_t length = 0;
+                    const uint8_t *guiTree = in.readBytes(length);
+                    int64_t treeHash = in.readLong();
+                    if (in.ok)
+                        writeString(out, _fastbot_model->getOperate(guiTree, length, activity,
+                                                                    deviceID, treeHash));
+                    break;
+                }
+                case GetOperateByTreeHash: {
+                    std::string activity = in.readString();
+                    int64_t treeHash = in.readLong();
+                    if (in.ok)
+                        writeString(out, _fastbot_model->getOperateByTreeHash(treeHash, activity,
+                                                                              deviceID));
+                    break;
+                }
+                case CheckPoint: {
+                    std::string activity = in.readString();
+                    float x = in.readFloat();
+                    float y = in.readFloat();
+                    bool isShield = false;
+                    auto preference = _fastbot_model->getPreference(deviceID);
+                    if (in.ok && preference) {
+                        isShield = preference->checkPointIsInBlackRects(activity,
+                                                                        static_cast<int>(x),
+                                                                        static_cast<int>(y));
+                    }
+                    out.push_back(isShield ? 1 : 0);
+                    break;
+                }
+                case GetBlackWidgetRects:
+                    getBlackWidgetRects(deviceID, in, out);
+                    break;
+                default:
+                    BLOGE("unknown command %d from device %s", (int) command, deviceID.c_str());
+                    return false;
+            }
+            return in.ok;
+        }
+
+        static void serve(int socket) {
+            std::string deviceID;
+            std::vector<uint8_t> request;
+            std::string reply;
+            while (!_stopped) {
+                uint8_t header[4];
+                if (!readFully(socket, header, sizeof(header)))
+                    break;
+                RequestReader lengthReader(header, sizeof(header));
+                int32_t length = lengthReader.readInt();
+                if (length <= 0 || length > MaxRequestLength) {
+                    BLOGE("bad request length %d from device %s", length, deviceID.c_str());
+                    break;
+                }
+                request.resize(static_cast<size_t>(length));
+                if (!readFully(socket, request.data(), request.size()))
+                    break;
+                reply.clear();
+                writeInt(reply, 0); // length, filled in below
+                RequestReader in(request.data(), request.size());
+                bool handled;
+                {
+                    std::lock_guard<std::mutex> modelGuard(_modelLock);
+                    handled = nullptr != _fastbot_model && handle(deviceID, in, reply);
+                }
+                if (!handled) {
+                    BLOGE("bad request from device %s", deviceID.c_str());
+                    break;
+                }
+                std::string replyLength;
+                writeInt(replyLength, static_cast<int32_t>(reply.size() - 4));
+                reply.replace(0, 4, replyLength);
+                if (!writeFully(socket, reply.data(), reply.size()))
+                    break;
+            }
+            BLOG("device %s disconnected", deviceID.c_str());
+            close(socket);
+        }
+
+        static void stop(int) {
+            _stopped = true;
+            // wakes accept up, the reuse models are saved on the way out of main
+            shutdown(_listenSocket, SHUT_RDWR);
+        }
+    }
+}
+
+/// fastbot_server [port [address]], listens on 127.0.0.1:9987 by default, devices reach it with
+/// adb reverse tcp:9987 tcp:9987
+int main(int argc, char *argv[]) {
+    using namespace fastbotx;
+    using namespace fastbotx::server;
+    int port = argc > 1 ? atoi(argv[1]) : DefaultPort;
+    const char *address = argc > 2 ? argv[2] : "127.0.0.1";
+
+    _fastbot_model = Model::create();
+    _listenSocket = socket(AF_INET, SOCK_STREAM, 0);
+    int reuseAddress = 1;
+    setsockopt(_listenSocket, SOL_SOCKET, SO_REUSEADDR, &reuseAddress, sizeof(reuseAddress));
+    sockaddr_in listenAddress{};
+    listenAddress.sin_family = AF_INET;
+    listenAddress.sin_port = htons(static_cast<uint16_t>(port));
+    if (inet_pton(AF_INET, address, &listenAddress.sin_addr) != 1
+        || bind(_listenSocket, (sockaddr *) &listenAddress, sizeof(listenAddress)) != 0
+        || listen(_listenSocket, 64) != 0) {
+        BLOGE("can not listen on %s:%d, %s", address, port, strerror(errno));
+        return 1;
+    }
+    signal(SIGINT, stop);
+    signal(SIGTERM, stop);
+    BLOG("fastbot server %s listening on %s:%d", FASTBOT_VERSION, address, port);
+    BLOG("%s", "preference files are taken from each device as it connects, not from this host");
+
+    while (!_stopped) {
+        int client = accept(_listenSocket, nullptr, nullptr);
+        if (client < 0) {
+            if (errno == EINTR)
+                continue;
+            break;
+        }
+        int noDelay = 1;
+        setsockopt(client, IPPROTO_TCP, TCP_NODELAY, &noDelay, sizeof(noDelay));
+        std::thread(serve, client).detach();
+    }
+    close(_listenSocket);
+    {
+        // the agents save their reuse models when the model goes away
+        std::lock_guard<std::mutex> modelGuard(_modelLock);
+        _fastbot_model.reset();
+    }
+    BLOG("%s", "fastbot server stopped");
+    return 0;
+}
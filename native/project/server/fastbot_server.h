@@ -0,0 +1,55 @@
+/*
+ * This code is licensed under the Fastbot license. You may obtain a copy of this license in the LICENSE.txt file in the root directory of this source tree.
+ */
+#ifndef __Fastbot_Server_H__
+#define __Fastbot_Server_H__
+
+#include <cstdint>
+
+/// fastbot_server runs the model as a standalone process on the host, so that the monkeys of
+/// many devices testing the same app share one graph and one reuse model. A monkey started with
+/// max.fastbotServer connects with its own device id, usually through adb reverse, and sends the
+/// calls it would otherwise make to libfastbot_native.so.
+///
+/// Every request is an int32 length, then the command byte and its arguments. Every reply is an
+/// int32 length and the result. Integers are big endian, as java.io.DataOutputStream writes them,
+/// a string or a byte array is an int32 length and the bytes. The model is called by one request
+/// at a time.
+///
+/// The host has no /sdcard: a monkey sends its preference files (max.config, max.xpath.actions,
+/// max.widget.black, ...) with LoadPreference right after it connects, and the server keeps a
+/// Preference per device. A device that sends none runs without custom actions, black widgets
+/// and input texts.
+namespace fastbotx {
+    namespace server {
+
+        static const int DefaultPort = 9987;
+
+        /// requests longer than this are refused and the connection is closed
+        static const int32_t MaxRequestLength = 64 * 1024 * 1024;
+
+        enum Command : uint8_t {
+            /// string deviceID, int32 agentType, string packageName, int32 deviceType -> nothing;
+            /// the device id is used for the following requests of the connection
+            InitAgent = 1,
+            /// bytes content of a max.mapping file -> nothing
+            LoadResMapping = 2,
+            /// string activity, string xml -> string operate json
+            GetOperate = 3,
+            /// string activity, bytes GuiTree, int64 treeHash -> string operate json
+            GetOperateByBuffer = 4,
+            /// string activity, int64 treeHash -> string operate json, empty if it is no longer cached
+            GetOperateByTreeHash = 5,
+            /// string activity, float x, float y -> byte 1 if the point is in a black widget
+            CheckPoint = 6,
+            /// string activity -> int32 count, then left, top, right, bottom of each rect as int32
+            GetBlackWidgetRects = 7,
+            /// string deviceID, int32 count, then string name and bytes content of each preference
+            /// file the device has -> nothing; the device id is used for the following requests
+            /// of the connection, a device that connects again keeps its preference
+            LoadPreference = 8,
+        };
+    }
+}
+
+#endif //__Fastbot_Server_H__
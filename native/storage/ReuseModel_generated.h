@@ -180,7 +180,8 @@ inline flatbuffers::Offset<ReuseEntry> CreateReuseEntryDirect(
 struct ReuseModel FLATBUFFERS_FINAL_CLASS : private flatbuffers::Table {
     typedef ReuseModelBuilder Builder;
     enum FlatBuffersVTableOffset FLATBUFFERS_VTABLE_UNDERLYING_TYPE {
-        VT_MODEL = 4
+        VT_MODEL = 4,
+        VT_JOURNAL = 6
     };
 
     const flatbuffers::Vector<flatbuffers::Offset<fastbotx::ReuseEntry>> *model() const {
@@ -188,11 +189,16 @@ struct ReuseModel FLATBUFFERS_FINAL_CLASS : private flatbuffers::Table {
                 VT_MODEL);
     }
 
+    uint64_t journal() const {
+        return GetField<uint64_t>(VT_JOURNAL, 0);
+    }
+
     bool Verify(flatbuffers::Verifier &verifier) const {
         return VerifyTableStart(verifier) &&
                VerifyOffset(verifier, VT_MODEL) &&
                verifier.VerifyVector(model()) &&
                verifier.VerifyVectorOfTables(model()) &&
+               VerifyField<uint64_t>(verifier, VT_JOURNAL) &&
                verifier.EndTable();
     }
 };
@@ -207,6 +213,10 @@ struct ReuseModelBuilder {
         fbb_.AddOffset(ReuseModel::VT_MODEL, model);
     }
 
+    void add_journal(uint64_t journal) {
+        fbb_.AddElement<uint64_t>(ReuseModel::VT_JOURNAL, journal, 0);
+    }
+
     explicit ReuseModelBuilder(flatbuffers::FlatBufferBuilder &_fbb)
             : fbb_(_fbb) {
         start_ = fbb_.StartTable();
@@ -221,8 +231,10 @@ struct ReuseModelBuilder {
 
 inline flatbuffers::Offset<ReuseModel> CreateReuseModel(
         flatbuffers::FlatBufferBuilder &_fbb,
-        flatbuffers::Offset<flatbuffers::Vector<flatbuffers::Offset<fastbotx::ReuseEntry>>> model = 0) {
+        flatbuffers::Offset<flatbuffers::Vector<flatbuffers::Offset<fastbotx::ReuseEntry>>> model = 0,
+        uint64_t journal = 0) {
     ReuseModelBuilder builder_(_fbb);
+    builder_.add_journal(journal);
     builder_.add_model(model);
     return builder_.Finish();
 }
@@ -46,6 +46,10 @@
 // If should drop detail after hashing
 #define DROP_DETAIL_AFTER_SATE 1
 
+// If the agent should learn from the last transition on its worker thread,
+// after the next action is returned
+#define DEFER_STRATEGY_UPDATE  1
+
 // If should generate hash based on text
 #define STATE_WITH_TEXT        0
 
@@ -65,6 +69,13 @@
 
 #define BLOCK_STATE_TIME_RESTART (-1)
 
+// How many pages parsed from gui tree buffers are kept for the monkey to refer to by tree hash
+#define TREE_CACHE_SIZE 8
+
+// Deepest gui tree buffer that is read, the root node at level 1; the monkey clamps
+// max.treeMaxDepth to it
+#define GUI_TREE_MAX_DEPTH 128
+
 #define FORCE_EDITTEXT_CLICK_TRUE 1
 
 #define PARENT_CLICK_CHANGE_CHILDREN 1